@@ -0,0 +1,8 @@
+package io.contained;
+
+public record CacheStatistics(long hits, long misses, long evictions) {
+    public double hitRatio() {
+        var lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
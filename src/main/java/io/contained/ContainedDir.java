@@ -3,6 +3,18 @@ package io.contained;
 import java.util.List;
 
 public record ContainedDir(String name, String path, List<String> subDirs, List<String> files) {
+    /**
+     * Greatest name listed, or {@code null} if there is none. Pages listed in name order continue after it.
+     */
+    public String lastName() {
+        var lastSubDir = subDirs.isEmpty() ? null : subDirs.getLast();
+        var lastFile = files.isEmpty() ? null : files.getLast();
+        if (lastSubDir == null || lastFile == null) {
+            return lastSubDir != null ? lastSubDir : lastFile;
+        }
+        return lastSubDir.compareTo(lastFile) > 0 ? lastSubDir : lastFile;
+    }
+
     @Override
     public String toString() {
         return "ContainedDir {" +
@@ -0,0 +1,257 @@
+package io.contained;
+
+import io.contained.internals.RangeLocks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.util.Objects;
+
+/**
+ * Channel over a contained file. Every operation goes through the container and takes its locks, so the channel
+ * itself only tracks the position.
+ */
+final class ContainedFileChannel extends FileChannel {
+    private final Container container;
+    private final String path;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+    private long position;
+
+    ContainedFileChannel(Container container, String path, boolean readable, boolean writable, boolean append) {
+        this.container = container;
+        this.path = path;
+        this.readable = readable;
+        this.writable = writable;
+        this.append = append;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        var read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, dsts.length);
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (!dsts[i].hasRemaining()) {
+                continue;
+            }
+            var read = read(dsts[i]);
+            if (read < 0) {
+                return total > 0 ? total : -1;
+            }
+            total += read;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        ensureReadable();
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        return container.readInto(path, position, dst);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        ensureWritable();
+        var length = src.remaining();
+        position = container.write(path, append ? -1 : position, src);
+        return length;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, srcs.length);
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        ensureWritable();
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        var length = src.remaining();
+        container.write(path, position, src);
+        return length;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return container.size(path);
+    }
+
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException {
+        ensureWritable();
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        container.truncate(path, size);
+        position = Math.min(position, size);
+        return this;
+    }
+
+    /**
+     * Writes go straight to the partition, there is nothing buffered in the channel.
+     */
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ensureOpen();
+        container.sync();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ensureReadable();
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Negative position or count");
+        }
+        return container.transferTo(path, position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        ensureWritable();
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Negative position or count");
+        }
+        return container.transferFrom(path, src, position, count);
+    }
+
+    /**
+     * Not supported: file content lives in blocks spread over the container, there is no region of the underlying
+     * file a mapping could stand for.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("Contained files cannot be mapped");
+    }
+
+    /**
+     * Locks a range of the file against other channels of this container, waiting for incompatible locks to be
+     * released. The locks are advisory and keyed by path, reads and writes do not check them.
+     */
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        ensureLockable(position, size, shared);
+        try {
+            var range = container.lockRange(path, position, size, shared, this);
+            return new ContainedFileLock(position, size, shared, range);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileLockInterruptionException();
+        }
+    }
+
+    /**
+     * Locks a range of the file like {@link #lock(long, long, boolean)}, returns null instead of waiting when another
+     * channel holds an incompatible lock.
+     */
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        ensureLockable(position, size, shared);
+        var range = container.tryLockRange(path, position, size, shared, this);
+        return range != null ? new ContainedFileLock(position, size, shared, range) : null;
+    }
+
+    @Override
+    protected void implCloseChannel() {
+        container.unlockRanges(this);
+    }
+
+    private void ensureLockable(long position, long size, boolean shared) throws IOException {
+        if (position < 0 || size < 0) {
+            throw new IllegalArgumentException("Negative position or size");
+        }
+        if (shared) {
+            ensureReadable();
+        } else {
+            ensureWritable();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void ensureReadable() throws IOException {
+        ensureOpen();
+        if (!readable) {
+            throw new NonReadableChannelException();
+        }
+    }
+
+    private void ensureWritable() throws IOException {
+        ensureOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+    }
+
+    private final class ContainedFileLock extends FileLock {
+        private final RangeLocks.Range range;
+
+        private ContainedFileLock(long position, long size, boolean shared, RangeLocks.Range range) {
+            super(ContainedFileChannel.this, position, size, shared);
+            this.range = range;
+        }
+
+        @Override
+        public boolean isValid() {
+            return container.isRangeLocked(range);
+        }
+
+        @Override
+        public void release() throws IOException {
+            if (!isValid()) {
+                return;
+            }
+            ensureOpen();
+            container.unlockRange(range);
+        }
+    }
+}
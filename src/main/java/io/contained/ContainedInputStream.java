@@ -0,0 +1,112 @@
+package io.contained;
+
+import io.contained.internals.ChainCursor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Reads a contained file through a buffer that starts at one block and doubles with every refill while the file is
+ * read front to back, up to a maximum size. Skipping ahead shrinks it back to one block. Reads larger than the
+ * buffer go straight into the caller's array. A chained file is followed on from the block the last read stopped at.
+ */
+final class ContainedInputStream extends InputStream {
+    private final Container container;
+    private final String path;
+    private final int bufferSize;
+    private final int maxBufferSize;
+    private final ChainCursor cursor = new ChainCursor();
+    private ByteBuffer buffer;
+    private long position;
+    private boolean closed;
+
+    ContainedInputStream(Container container, String path, int bufferSize, int maxBufferSize) {
+        this.container = container;
+        this.path = path;
+        this.bufferSize = bufferSize;
+        this.maxBufferSize = maxBufferSize;
+        this.buffer = ByteBuffer.allocate(bufferSize).flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && fill() < 0) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        if (length == 0) {
+            return 0;
+        }
+        if (buffer.hasRemaining()) {
+            var size = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, size);
+            return size;
+        }
+        if (length < buffer.capacity()) {
+            if (fill() < 0) {
+                return -1;
+            }
+            return read(bytes, offset, length);
+        }
+
+        ensureOpen();
+        var read = container.readInto(path, position, ByteBuffer.wrap(bytes, offset, length), cursor);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0) {
+            return 0;
+        }
+        var buffered = Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + (int) buffered);
+        if (n > buffered) {
+            position += n - buffered;
+            buffer = ByteBuffer.allocate(bufferSize).flip();
+        }
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private int fill() throws IOException {
+        ensureOpen();
+        buffer.clear();
+        var read = container.readInto(path, position, buffer, cursor);
+        buffer.flip();
+        if (read > 0) {
+            position += read;
+        }
+        if (read == buffer.capacity() && buffer.capacity() < maxBufferSize) {
+            var grown = ByteBuffer.allocate(Math.min(maxBufferSize, buffer.capacity() * 2));
+            buffer = grown.put(buffer).flip();
+        }
+        return read;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.contained;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Appends to a contained file whenever the buffer fills up, so blocks are allocated as data arrives and the file
+ * size is final once the stream is closed.
+ */
+final class ContainedOutputStream extends OutputStream {
+    private final Container container;
+    private final String path;
+    private final byte[] buffer;
+    private int count;
+    private boolean closed;
+
+    ContainedOutputStream(Container container, String path, int bufferSize) {
+        this.container = container;
+        this.path = path;
+        this.buffer = new byte[bufferSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            flush();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        ensureOpen();
+        while (length > 0) {
+            if (count == buffer.length) {
+                flush();
+            }
+            var size = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, size);
+            count += size;
+            offset += size;
+            length -= size;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count > 0) {
+            container.append(path, count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+            count = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            flush();
+            closed = true;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
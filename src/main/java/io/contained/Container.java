@@ -4,149 +4,465 @@ import io.contained.internals.*;
 import io.contained.internals.util.ByteArrayTransformer;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 
 public class Container extends ContainerOperations {
+    private static final int STREAM_BUFFER_BLOCKS = 16;
+
+    private final int inlineDataThreshold;
+    private final Durability durability;
+    private final RangeLocks rangeLocks = new RangeLocks();
 
     Container(Partition partition, ContainerDescriptor descriptor, AllocationTable allocationTable) {
-        super(descriptor, allocationTable, ContainerDescriptor.BYTES + allocationTable.size(), partition);
+        this(partition, descriptor, allocationTable, ContainerOptions.defaults());
+    }
+
+    Container(Partition partition, ContainerDescriptor descriptor, AllocationTable allocationTable, ContainerOptions options) {
+        super(descriptor, allocationTable, ContainerDescriptor.BYTES + allocationTable.size(), partition,
+            new BlockCache(options.blockCacheSize()), new DentryCache(options.dentryCacheSize()),
+            options.allocationFlushInterval(), options.journaled() ? new Journal(partition,
+                (int) descriptor.getJournalOffset(), descriptor.getBlockSize() + Configuration.journalSize,
+                descriptor.getBlockSize()) : null, syncPolicyOf(options), options.copyOnWrite(),
+            options.writeBackBufferSize() > 0
+                ? new WriteBackBuffer(options.writeBackBufferSize(), descriptor.getBlockSize())
+                : null);
+        this.inlineDataThreshold = options.inlineDataThreshold();
+        this.durability = options.durability();
+    }
+
+    public CacheStatistics getBlockCacheStatistics() {
+        var blockCache = getBlockCache();
+        return new CacheStatistics(blockCache.getHits(), blockCache.getMisses(), blockCache.getEvictions());
+    }
+
+    public JournalStatistics getJournalStatistics() {
+        return new JournalStatistics(getJournalCommitCount(), getJournalForceCount());
+    }
+
+    public DurabilityStatistics getDurabilityStatistics() {
+        var groupForce = getGroupForce();
+        return new DurabilityStatistics(durability, getCommitCount(), groupForce.getForceCount(),
+            groupForce.getForcedBytes(), groupForce.getUnforcedBytes(), groupForce.getForceNanos());
+    }
+
+    /**
+     * Forces everything changed so far to disk, whatever the durability of the container.
+     */
+    public void sync() throws IOException {
+        syncCommitted();
+    }
+
+    /**
+     * Writes blocks held for write-back and changed pages of the allocation table in place, without forcing them to
+     * disk as {@link #sync()} does.
+     */
+    public void flush() throws IOException {
+        flushWriteBack();
+        flushAllocationTable();
+    }
+
+    public CacheStatistics getDentryCacheStatistics() {
+        var dentryCache = getDentryCache();
+        return new CacheStatistics(dentryCache.getHits(), dentryCache.getMisses(), dentryCache.getEvictions());
     }
 
     public void createDir(String path) throws IOException {
         var pathToDir = new Path(path);
-        var parentPath = pathToDir.getParentPath();
-        var grandParentPath = parentPath.getParentPath();
-        var parentPosition = 0;
-        MetaDataBlock parentMetaDataBlock;
-
-        if (grandParentPath != null) {
-            parentMetaDataBlock = traverseTo(grandParentPath);
-            parentPosition = getChildBlock(parentMetaDataBlock, parentPath.getName());
-        }
-        parentMetaDataBlock = readMetaDataBlock(parentPosition);
+        change(() -> {
+            var parentPath = pathToDir.getParentPath();
+            var parentPosition = lookup(parentPath);
+            var parentMetaDataBlock = readMetaData(parentPath, parentPosition);
 
-        if (!parentMetaDataBlock.isDir()) {
-            throw new IOException(String.format("%s is not a dir", path));
-        }
-
-        var inodes = readInodes(parentMetaDataBlock);
-        if (inodes.stream().anyMatch(inode -> inode.getName().equals(pathToDir.getName()))) {
-            throw new IOException(String.format("%s already exists", path));
-        }
+            if (!parentMetaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a dir", path));
+            }
 
-        var newDirMetaDataBlock = new MetaDataBlock(ByteArrayTransformer.fromString(pathToDir.getName()));
-        List<Integer> blocks = getAvailableBlocks(1);
+            if (findEntry(parentMetaDataBlock, pathToDir.getName()) != null) {
+                throw new IOException(String.format("%s already exists", path));
+            }
 
-        writeBlock(newDirMetaDataBlock, blocks.getFirst());
-        allocateBlocks(blocks); //TODO: weak spot it may fail when updating indices leaving this block not accessible
-        //I could pass this new dir block to expand method add to map and allocate block for it there... or pass information
-        //there on how many blocks has to be allocated for new file/dir and save everything at the end
+            var newDirMetaDataBlock = new MetaDataBlock(ByteArrayTransformer.fromString(pathToDir.getName()));
+            // top level directories spread over the allocation groups, anything below stays with its parent
+            var goal = parentPath.size() == 0 ? getEmptiestGroupStart() : parentPosition;
+            List<Integer> blocks = getAvailableBlocks(1, goal);
 
-        inodes.add(new Inode(pathToDir.getName(), blocks.getFirst(), true));
+            try {
+                writeBlock(newDirMetaDataBlock, blocks.getFirst());
+            } catch (IOException e) {
+                releaseBlocks(blocks);
+                throw e;
+            }
+            allocateBlocks(blocks);
 
-        var inodesAsBytes = ByteArrayTransformer.fromInodesList(inodes);
-        writeDir(parentMetaDataBlock, parentPosition, inodesAsBytes);
+            addEntry(parentMetaDataBlock, parentPosition, new Inode(pathToDir.getName(), blocks.getFirst(), true));
+            invalidateLookups(pathToDir);
+        }, PathLock.exclusive(pathToDir.getParentPath()));
     }
 
     public void createFile(String path, byte[] data) throws IOException {
-        var numberOfBlocksNeeded = occupyBlocks(data.length);
-        List<Integer> blocks = getAvailableBlocks(numberOfBlocksNeeded);
-
         var pathToFile = new Path(path);
+        change(() -> {
+            var parentPath = pathToFile.getParentPath();
+            var parentPosition = lookup(parentPath);
+            var parentMetaDataBlock = readMetaData(parentPath, parentPosition);
 
-        var parentPath = pathToFile.getParentPath();
-        var grandParentPath = parentPath.getParentPath();
-        var parentPosition = 0;
-        MetaDataBlock parentMetaDataBlock;
+            if (!parentMetaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a dir", path));
+            }
 
-        if (grandParentPath != null) {
-            parentMetaDataBlock = traverseTo(grandParentPath);
-            parentPosition = getChildBlock(parentMetaDataBlock, parentPath.getName());
+            if (findEntry(parentMetaDataBlock, pathToFile.getName()) != null) {
+                throw new IOException(String.format("%s already exists", path));
+            }
+
+            addFile(pathToFile, parentMetaDataBlock, parentPosition, data);
+        }, PathLock.exclusive(pathToFile.getParentPath()));
+    }
+
+    /**
+     * Opens a stream reading the file block by block at first, more blocks at a time as it keeps reading on, up to
+     * {@link Configuration#readAheadBlocks} like chains read ahead.
+     */
+    public InputStream newInputStream(String path) throws IOException {
+        var pathToFile = new Path(path);
+        try (var ignored = lock(PathLock.shared(pathToFile))) {
+            readFileMetaData(pathToFile);
         }
-        parentMetaDataBlock = readMetaDataBlock(parentPosition);
+        return new ContainedInputStream(this, path, getBlockSize(), getBlockSize() * Configuration.readAheadBlocks);
+    }
+
+    /**
+     * Opens a stream writing the file from scratch, the file is created if missing and truncated otherwise. Blocks
+     * are allocated as the buffered data is flushed, so memory use does not depend on the file size.
+     */
+    public OutputStream newOutputStream(String path) throws IOException {
+        prepareFile(new Path(path), true, false, true);
+        return new ContainedOutputStream(this, path, getBlockSize() * STREAM_BUFFER_BLOCKS);
+    }
 
-        if (!parentMetaDataBlock.isDir()) {
-            throw new IOException(String.format("%s is not a dir", path));
+    /**
+     * Opens a channel with the semantics of {@link java.nio.file.Files#newByteChannel}. Seeking only moves the
+     * channel's position, each read or write locates its blocks from the file's extents.
+     */
+    public FileChannel newByteChannel(String path, OpenOption... options) throws IOException {
+        var optionSet = new HashSet<>(Arrays.asList(options));
+        var append = optionSet.contains(StandardOpenOption.APPEND);
+        var writable = append || optionSet.contains(StandardOpenOption.WRITE);
+        var readable = optionSet.contains(StandardOpenOption.READ) || !writable;
+
+        if (append && optionSet.contains(StandardOpenOption.READ)) {
+            throw new IllegalArgumentException("READ + APPEND not allowed");
+        }
+        if (append && optionSet.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            throw new IllegalArgumentException("APPEND + TRUNCATE_EXISTING not allowed");
         }
 
-        var inodes = readInodes(parentMetaDataBlock);
-        if (inodes.stream().anyMatch(inode -> inode.getName().equals(pathToFile.getName()))) {
-            throw new IOException(String.format("%s already exists", path));
+        var pathToFile = new Path(path);
+        if (writable) {
+            var createNew = optionSet.contains(StandardOpenOption.CREATE_NEW);
+            var create = createNew || optionSet.contains(StandardOpenOption.CREATE);
+            prepareFile(pathToFile, create, createNew, optionSet.contains(StandardOpenOption.TRUNCATE_EXISTING));
+        } else {
+            try (var ignored = lock(PathLock.shared(pathToFile))) {
+                readFileMetaData(pathToFile);
+            }
         }
+        return new ContainedFileChannel(this, path, readable, writable, append);
+    }
+
+    RangeLocks.Range lockRange(String path, long position, long size, boolean shared, Object holder)
+        throws InterruptedException {
+        return rangeLocks.acquire(new Path(path), position, size, shared, holder);
+    }
+
+    RangeLocks.Range tryLockRange(String path, long position, long size, boolean shared, Object holder) {
+        return rangeLocks.tryAcquire(new Path(path), position, size, shared, holder);
+    }
 
-        writeFile(pathToFile.getName(), data, blocks);
-        allocateBlocks(blocks); //TODO: weak spot it may fail when updating indices leaving this block not accessible
-        //I could pass this new dir block to expand method add to map and allocate block for it there... or pass information
-        //there on how many blocks has to be allocated for new file/dir and save everything at the end
+    boolean isRangeLocked(RangeLocks.Range range) {
+        return rangeLocks.isHeld(range);
+    }
 
-        inodes.add(new Inode(pathToFile.getName(), blocks.getFirst(), false));
+    void unlockRange(RangeLocks.Range range) {
+        rangeLocks.release(range);
+    }
 
-        var inodesAsBytes = ByteArrayTransformer.fromInodesList(inodes);
-        writeDir(parentMetaDataBlock, parentPosition, inodesAsBytes);
+    void unlockRanges(Object holder) {
+        rangeLocks.releaseAll(holder);
     }
 
     public void write(String path, byte[] data) throws IOException {
         var pathToFile = new Path(path);
-        var metaDataBlock = traverseTo(pathToFile.getParentPath());
-        var fileBlock = getChildBlock(metaDataBlock, pathToFile.getName());
+        change(() -> {
+            var fileBlock = lookup(pathToFile);
+            if (fileBlock == Configuration.inlineDataMarker) {
+                storeData(pathToFile, data);
+                return;
+            }
+            var metaDataBlock = readMetaDataBlock(fileBlock);
 
-        metaDataBlock = readMetaDataBlock(fileBlock);
+            if (metaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a file", path));
+            }
+            writeFile(metaDataBlock, fileBlock, data);
+        }, PathLock.exclusive(pathToFile));
+    }
 
-        if (metaDataBlock.isDir()) {
-            throw new IOException(String.format("%s is not a file", path));
+    public void append(String path, byte[] data) throws IOException {
+        var pathToFile = new Path(path);
+        change(() -> {
+            var fileBlock = lookup(pathToFile);
+            if (fileBlock == Configuration.inlineDataMarker) {
+                var inlineData = readEntryData(pathToFile);
+                var newData = Arrays.copyOf(inlineData, inlineData.length + data.length);
+                System.arraycopy(data, 0, newData, inlineData.length, data.length);
+                storeData(pathToFile, newData);
+                return;
+            }
+            var metaDataBlock = readMetaDataBlock(fileBlock);
+
+            if (metaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a file", path));
+            }
+            appendFile(metaDataBlock, fileBlock, data);
+        }, PathLock.exclusive(pathToFile));
+    }
+
+    long size(String path) throws IOException {
+        var pathToFile = new Path(path);
+        try (var ignored = lock(PathLock.shared(pathToFile))) {
+            return readFileMetaData(pathToFile).getDataFullSize();
         }
-        writeFile(metaDataBlock, fileBlock, data);
     }
 
-    public void append(String path, byte[] data) throws IOException {
+    /**
+     * Writes the remaining bytes of {@code src} at {@code offset}, or at the end of the file when it is negative.
+     * Returns the offset right after the written bytes.
+     */
+    long write(String path, long offset, ByteBuffer src) throws IOException {
         var pathToFile = new Path(path);
-        var metaDataBlock = traverseTo(pathToFile.getParentPath());
-        var fileBlock = getChildBlock(metaDataBlock, pathToFile.getName());
+        return change(() -> {
+            var fileBlock = lookup(pathToFile);
+            var metaDataBlock = readFileMetaData(pathToFile, fileBlock);
+            var start = offset < 0 ? metaDataBlock.getDataFullSize() : checkOffset(offset + src.remaining()) - src.remaining();
+
+            var length = src.remaining();
+            if (fileBlock == Configuration.inlineDataMarker) {
+                if (start + length < Configuration.packedDataThreshold) {
+                    var data = Arrays.copyOf(metaDataBlock.getData(), Math.max(start + length, metaDataBlock.getDataFullSize()));
+                    src.get(data, start, length);
+                    storeData(pathToFile, data);
+                    return start + length;
+                }
+                fileBlock = moveToBlock(pathToFile, metaDataBlock.getData());
+                metaDataBlock = readMetaDataBlock(fileBlock);
+            }
+            if (src.hasArray()) {
+                writeBytes(metaDataBlock, fileBlock, start, src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.limit());
+            } else {
+                var data = new byte[length];
+                src.get(data);
+                writeBytes(metaDataBlock, fileBlock, start, data, 0, length);
+            }
+            return start + length;
+        }, PathLock.exclusive(pathToFile));
+    }
 
-        metaDataBlock = readMetaDataBlock(fileBlock);
+    void truncate(String path, long size) throws IOException {
+        var pathToFile = new Path(path);
+        change(() -> {
+            var fileBlock = lookup(pathToFile);
+            var metaDataBlock = readFileMetaData(pathToFile, fileBlock);
+            var newSize = (int) Math.min(size, metaDataBlock.getDataFullSize());
+            if (fileBlock == Configuration.inlineDataMarker) {
+                storeData(pathToFile, Arrays.copyOf(metaDataBlock.getData(), newSize));
+            } else {
+                truncateFile(metaDataBlock, fileBlock, newSize);
+            }
+        }, PathLock.exclusive(pathToFile));
+    }
 
-        if (metaDataBlock.isDir()) {
-            throw new IOException(String.format("%s is not a file", path));
+    long transferTo(String path, long offset, long count, WritableByteChannel target) throws IOException {
+        var pathToFile = new Path(path);
+        try (var ignored = lock(PathLock.shared(pathToFile))) {
+            var metaDataBlock = readFileMetaData(pathToFile);
+            if (offset >= metaDataBlock.getDataFullSize()) {
+                return 0;
+            }
+            return transferTo(metaDataBlock, (int) offset, (int) Math.min(count, Integer.MAX_VALUE), target);
         }
-        appendFile(metaDataBlock, fileBlock, data);
+    }
+
+    long transferFrom(String path, ReadableByteChannel source, long offset, long count) throws IOException {
+        var pathToFile = new Path(path);
+        return change(() -> {
+            var fileBlock = lookup(pathToFile);
+            var metaDataBlock = readFileMetaData(pathToFile, fileBlock);
+            if (offset > metaDataBlock.getDataFullSize()) {
+                return 0L;
+            }
+            if (fileBlock == Configuration.inlineDataMarker) {
+                fileBlock = moveToBlock(pathToFile, metaDataBlock.getData());
+                metaDataBlock = readMetaDataBlock(fileBlock);
+            }
+            // counts beyond what the file can take are common, Long.MAX_VALUE meaning up to the end of the source
+            var length = (int) Math.min(count, Integer.MAX_VALUE - offset);
+            if (length == 0 && count > 0) {
+                throw new IOException("File size limit exceeded");
+            }
+            return transferFrom(metaDataBlock, fileBlock, source, (int) offset, length);
+        }, PathLock.exclusive(pathToFile));
     }
 
     public ContainedDir listDir(String path) throws IOException {
-        var pathToDir = new Path(path);
-        var metaDataBlock = traverseTo(pathToDir);
+        return listDir(new Path(path), this::listEntries);
+    }
 
-        if (!metaDataBlock.isDir()) {
-            throw new IOException(String.format("%s is not a dir", pathToDir));
+    /**
+     * Lists up to {@code limit} entries following {@code startAfter} in name order, or from the first one if it is
+     * {@code null}. The last name of a page is where the next one starts, see {@link ContainedDir#lastName()}.
+     */
+    public ContainedDir listDir(String path, String startAfter, int limit) throws IOException {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
         }
+        return listDir(new Path(path), dir -> listEntries(dir, startAfter, limit));
+    }
 
-        var inodes = readInodes(metaDataBlock);
-        var subDirs = new ArrayList<String>();
-        var files = new ArrayList<String>();
+    /**
+     * Lists the entries whose name starts with the given prefix in name order.
+     */
+    public ContainedDir listDir(String path, String prefix) throws IOException {
+        Objects.requireNonNull(prefix, "prefix");
+        return listDir(new Path(path), dir -> listEntriesWithPrefix(dir, prefix));
+    }
 
-        for (var inode : inodes) {
-            if (inode.isDir()) {
-                subDirs.add(inode.getName());
-            } else {
-                files.add(inode.getName());
+    private ContainedDir listDir(Path pathToDir, EntryLister lister) throws IOException {
+        try (var ignored = lock(PathLock.shared(pathToDir))) {
+            var metaDataBlock = readMetaData(pathToDir, lookup(pathToDir));
+
+            if (!metaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a dir", pathToDir));
+            }
+
+            var inodes = lister.list(metaDataBlock);
+            var subDirs = new ArrayList<String>();
+            var files = new ArrayList<String>();
+
+            for (var inode : inodes) {
+                if (inode.isDir()) {
+                    subDirs.add(inode.getName());
+                } else {
+                    files.add(inode.getName());
+                }
             }
-        }
 
-        var parent = pathToDir.getParentPath();
-        return new ContainedDir(pathToDir.getName(), parent != null ? parent.toString() : pathToDir.toString(), subDirs, files);
+            var parent = pathToDir.getParentPath();
+            return new ContainedDir(pathToDir.getName(), parent != null ? parent.toString() : pathToDir.toString(), subDirs, files);
+        }
     }
 
     public ContainedFile read(String path) throws IOException {
         var pathToFile = new Path(path);
-        var metaDataBlock = traverseTo(pathToFile);
+        try (var ignored = lock(PathLock.shared(pathToFile))) {
+            var metaDataBlock = readMetaData(pathToFile, lookup(pathToFile));
 
-        if (metaDataBlock.isDir()) {
-            throw new IOException(String.format("%s is not a file", path));
+            if (metaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a file", path));
+            }
+
+            var data = readAllBytes(metaDataBlock);
+
+            return new ContainedFile(pathToFile.getName(), pathToFile.getParentPath().toString(), data);
         }
+    }
 
-        var data = readAllBytes(metaDataBlock);
+    /**
+     * Captures the content of a file as it is now, later changes to the file don't show in the snapshot. Only
+     * containers using copy-on-write take snapshots; the blocks a snapshot reads stay allocated until it is closed.
+     */
+    public FileSnapshot snapshot(String path) throws IOException {
+        var pathToFile = new Path(path);
+        try (var ignored = lock(PathLock.shared(pathToFile))) {
+            return new FileSnapshot(this, pathToFile.getName(), takeSnapshot(readFileMetaData(pathToFile)));
+        }
+    }
 
-        return new ContainedFile(pathToFile.getName(), pathToFile.getParentPath().toString(), data);
+    byte[] read(Snapshot snapshot, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length must not be negative");
+        }
+        var size = (int) Math.max(0, Math.min(length, snapshot.size() - offset));
+        var data = new byte[size];
+        readSnapshot(snapshot, (int) offset, data, 0, size);
+        return data;
+    }
+
+    void release(Snapshot snapshot) {
+        releaseSnapshot(snapshot);
+    }
+
+    /**
+     * Reads {@code length} bytes starting at {@code offset}, fewer if the file ends before.
+     */
+    public byte[] read(String path, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length must not be negative");
+        }
+        var pathToFile = new Path(path);
+        try (var ignored = lock(PathLock.shared(pathToFile))) {
+            var metaDataBlock = readFileMetaData(pathToFile);
+            var size = (int) Math.max(0, Math.min(length, metaDataBlock.getDataFullSize() - offset));
+
+            var data = new byte[size];
+            readBytes(metaDataBlock, (int) offset, data, 0, size);
+            return data;
+        }
+    }
+
+    /**
+     * Fills {@code dst} with file content starting at {@code offset}, returns the number of bytes read or -1 when
+     * the offset is at or past the end of the file.
+     */
+    public int readInto(String path, long offset, ByteBuffer dst) throws IOException {
+        return readInto(path, offset, dst, null);
+    }
+
+    /**
+     * Like {@link #readInto(String, long, ByteBuffer)}, continuing a chained file from where the {@code cursor}
+     * stopped, see {@link ContainerOperations#readBytes(MetaDataBlock, int, int, byte[], int, int, ChainCursor)}.
+     */
+    int readInto(String path, long offset, ByteBuffer dst, ChainCursor cursor) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative");
+        }
+        var pathToFile = new Path(path);
+        try (var ignored = lock(PathLock.shared(pathToFile))) {
+            var fileBlock = lookup(pathToFile);
+            var metaDataBlock = readFileMetaData(pathToFile, fileBlock);
+            if (offset >= metaDataBlock.getDataFullSize()) {
+                return -1;
+            }
+
+            if (dst.hasArray()) {
+                var read = readBytes(metaDataBlock, fileBlock, (int) offset, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining(),
+                    cursor);
+                dst.position(dst.position() + read);
+                return read;
+            }
+            var data = new byte[(int) Math.min(dst.remaining(), metaDataBlock.getDataFullSize() - offset)];
+            var read = readBytes(metaDataBlock, fileBlock, (int) offset, data, 0, data.length, cursor);
+            dst.put(data, 0, read);
+            return read;
+        }
     }
 
     public void deleteDir(String path) throws IOException {
@@ -160,46 +476,30 @@ public class Container extends ContainerOperations {
             throw new IllegalArgumentException("Cannot delete root directory");
         }
 
-        var parentPath = pathToDir.getParentPath();
-        var grandParentPath = parentPath.getParentPath();
-        var parentPosition = 0;
-        MetaDataBlock parentMetaDataBlock;
+        change(() -> {
+            var parentPath = pathToDir.getParentPath();
+            var parentPosition = lookup(parentPath);
+            var parentMetaDataBlock = readMetaDataBlock(parentPosition);
 
-        if (grandParentPath != null) {
-            parentMetaDataBlock = traverseTo(grandParentPath);
-            parentPosition = getChildBlock(parentMetaDataBlock, parentPath.getName());
-        }
-        parentMetaDataBlock = readMetaDataBlock(parentPosition);
-
-        var block = getChildBlock(parentMetaDataBlock, pathToDir.getName());
-        var metaDataBlock = readMetaDataBlock(block);
-
-        if (!metaDataBlock.isDir() && !recursive) {
-            throw new IOException(String.format("%s is not a dir", path));
-        }
-        if (!recursive && metaDataBlock.getDataSize() > 0) {
-            throw new IOException(String.format("%s is not empty", path));
-        }
+            var block = lookup(pathToDir);
+            var metaDataBlock = readMetaData(pathToDir, block);
 
-        if (metaDataBlock.getDataSize() > 0) {
-            var inodes = readInodes(metaDataBlock);
-            for (var inode : inodes) {
-                if (inode.isDir()) {
-                    deleteDir(pathToDir.join(inode.getName()), recursive);
-                } else {
-                    var fileBlock = getChildBlock(metaDataBlock, inode.getName());
-                    var fileMetadataBlock = readMetaDataBlock(fileBlock);
-                    deleteDirOrFile(fileMetadataBlock, fileBlock);
-                }
+            if (!metaDataBlock.isDir() && !recursive) {
+                throw new IOException(String.format("%s is not a dir", path));
+            }
+            if (!recursive && !isEmptyDir(metaDataBlock)) {
+                throw new IOException(String.format("%s is not empty", path));
             }
-        }
 
-        var parentInodes = readInodes(parentMetaDataBlock);
-        parentInodes.removeIf(inode -> inode.getName().equals(pathToDir.getName()));
-        var inodesAsBytes = ByteArrayTransformer.fromInodesList(parentInodes);
-        writeDir(parentMetaDataBlock, parentPosition, inodesAsBytes);
+            var inode = removeEntry(parentMetaDataBlock, parentPosition, pathToDir.getName());
+            invalidateLookups(pathToDir);
 
-        deleteDirOrFile(metaDataBlock, block);
+            if (block == Configuration.inlineDataMarker) {
+                removeEntryData(inode);
+            } else {
+                deleteTree(metaDataBlock, block);
+            }
+        }, PathLock.exclusiveWithParent(pathToDir));
     }
 
     public void delete(String path) throws IOException {
@@ -209,30 +509,27 @@ public class Container extends ContainerOperations {
             throw new IllegalArgumentException("Cannot delete root directory");
         }
 
-        var parentPath = pathToFile.getParentPath();
-        var grandParentPath = parentPath.getParentPath();
-        var parentPosition = 0;
-        MetaDataBlock parentMetaDataBlock;
-
-        if (grandParentPath != null) {
-            parentMetaDataBlock = traverseTo(grandParentPath);
-            parentPosition = getChildBlock(parentMetaDataBlock, parentPath.getName());
-        }
-        parentMetaDataBlock = readMetaDataBlock(parentPosition);
+        change(() -> {
+            var parentPath = pathToFile.getParentPath();
+            var parentPosition = lookup(parentPath);
+            var parentMetaDataBlock = readMetaDataBlock(parentPosition);
 
-        var block = getChildBlock(parentMetaDataBlock, pathToFile.getName());
-        var metaDataBlock = readMetaDataBlock(block);
+            var block = lookup(pathToFile);
+            var metaDataBlock = readMetaData(pathToFile, block);
 
-        if (metaDataBlock.isDir()) {
-            throw new IOException(String.format("%s is not a file", path));
-        }
+            if (metaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a file", path));
+            }
 
-        var parentInodes = readInodes(parentMetaDataBlock);
-        parentInodes.removeIf(inode -> inode.getName().equals(pathToFile.getName()));
-        var inodesAsBytes = ByteArrayTransformer.fromInodesList(parentInodes);
-        writeDir(parentMetaDataBlock, parentPosition, inodesAsBytes);
+            var inode = removeEntry(parentMetaDataBlock, parentPosition, pathToFile.getName());
+            invalidateLookups(pathToFile);
 
-        deleteDirOrFile(metaDataBlock, block);
+            if (block == Configuration.inlineDataMarker) {
+                removeEntryData(inode);
+            } else {
+                deleteDirOrFile(metaDataBlock, block);
+            }
+        }, PathLock.exclusiveWithParent(pathToFile));
     }
 
     public void rename(String path, String newName) throws IOException {
@@ -242,70 +539,251 @@ public class Container extends ContainerOperations {
             throw new IllegalArgumentException("Cannot rename root directory");
         }
 
-        var parentPath = pathToFileOrDir.getParentPath();
-        var grandParentPath = parentPath.getParentPath();
-        var parentPosition = 0;
-        MetaDataBlock parentMetaDataBlock;
-
-        if (grandParentPath != null) {
-            parentMetaDataBlock = traverseTo(grandParentPath);
-            parentPosition = getChildBlock(parentMetaDataBlock, parentPath.getName());
-        }
-        parentMetaDataBlock = readMetaDataBlock(parentPosition);
+        change(() -> {
+            var parentPath = pathToFileOrDir.getParentPath();
+            var parentPosition = lookup(parentPath);
+            var parentMetaDataBlock = readMetaDataBlock(parentPosition);
 
-        var block = getChildBlock(parentMetaDataBlock, pathToFileOrDir.getName());
-        var inodes = readInodes(parentMetaDataBlock);
-        inodes.stream()
-            .filter(inode -> inode.getName().equals(pathToFileOrDir.getName()))
-            .findFirst()
-            .ifPresent(inode -> inode.setName(newName));
+            var block = lookup(pathToFileOrDir);
+            if (findEntry(parentMetaDataBlock, newName) != null) {
+                throw new IOException(String.format("%s already exists", parentPath.join(newName)));
+            }
 
-        var inodesAsBytes = ByteArrayTransformer.fromInodesList(inodes);
-        writeDir(parentMetaDataBlock, parentPosition, inodesAsBytes);
+            renameEntry(parentMetaDataBlock, parentPosition, pathToFileOrDir.getName(), newName);
+            invalidateLookups(pathToFileOrDir);
+            invalidateLookups(new Path(parentPath.join(newName)));
 
-        //TODO: this needs transactional handling too
-        var metaDataBlock = readMetaDataBlock(block);
-        metaDataBlock.setName(ByteArrayTransformer.fromString(newName));
-        writeBlock(metaDataBlock, block);
+            if (block != Configuration.inlineDataMarker) {
+                var metaDataBlock = readMetaDataBlock(block);
+                metaDataBlock.setName(ByteArrayTransformer.fromString(newName));
+                writeBlock(metaDataBlock, block);
+            }
+        }, PathLock.exclusiveWithParent(pathToFileOrDir));
     }
 
     public void move(String from, String to) throws IOException {
         var pathToDir = new Path(from);
-        var parentPath = pathToDir.getParentPath();
-        var grandParentPath = parentPath.getParentPath();
-        var parentPosition = 0;
-        MetaDataBlock parentMetaDataBlock;
-
-        if (grandParentPath != null) {
-            parentMetaDataBlock = traverseTo(grandParentPath);
-            parentPosition = getChildBlock(parentMetaDataBlock, parentPath.getName());
+        var dstPath = new Path(to);
+        change(() -> {
+            var parentPath = pathToDir.getParentPath();
+            var parentPosition = lookup(parentPath);
+            var parentMetaDataBlock = readMetaDataBlock(parentPosition);
+
+            var dstPosition = lookup(dstPath);
+            var dstMetaDataBlock = readMetaData(dstPath, dstPosition);
+
+            if (!dstMetaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a dir", dstPath));
+            }
+
+            var inodeToMove = findEntry(parentMetaDataBlock, pathToDir.getName());
+            if (inodeToMove == null) {
+                throw new IOException(String.format("%s does not exist", from));
+            }
+            if (findEntry(dstMetaDataBlock, pathToDir.getName()) != null) {
+                throw new IOException(String.format("%s already exists", dstPath.join(pathToDir.getName())));
+            }
+
+            addEntry(dstMetaDataBlock, dstPosition, inodeToMove);
+            removeEntry(parentMetaDataBlock, parentPosition, pathToDir.getName());
+            invalidateLookups(pathToDir);
+            invalidateLookups(new Path(dstPath.join(pathToDir.getName())));
+        }, PathLock.exclusive(pathToDir.getParentPath()), PathLock.exclusive(dstPath));
+    }
+
+    /**
+     * Adds a file, files smaller than the inline threshold are kept in the parent's entry without a block of their
+     * own and those smaller than {@link Configuration#packedDataThreshold} share a packed block with others.
+     */
+    private void addFile(Path pathToFile, MetaDataBlock parentMetaDataBlock, int parentPosition, byte[] data)
+        throws IOException {
+        if (data.length < inlineDataThreshold) {
+            addEntry(parentMetaDataBlock, parentPosition, new Inode(pathToFile.getName(), data));
+        } else if (data.length < Configuration.packedDataThreshold && parentMetaDataBlock.isCompact()) {
+            addEntry(parentMetaDataBlock, parentPosition, writePacked(pathToFile.getName(), data));
+        } else {
+            var block = writeNewFile(pathToFile.getName(), data, parentPosition);
+            addEntry(parentMetaDataBlock, parentPosition, new Inode(pathToFile.getName(), block, false));
         }
-        parentMetaDataBlock = readMetaDataBlock(parentPosition);
+        invalidateLookups(pathToFile);
+    }
 
-        var dstPath = new Path(to);
-        var dstParentPath = dstPath.getParentPath();
-        var dstPosition = 0;
-        if (dstParentPath != null) {
-            var dstParentMetaData = traverseTo(dstPath.getParentPath());
-            dstPosition = getChildBlock(dstParentMetaData, dstPath.getName());
+    /**
+     * Metadata at the block a path resolved to. For inline and packed files it is made up from the parent's entry
+     * as a file of a single block, which every read path handles without further I/O.
+     */
+    private MetaDataBlock readMetaData(Path path, int block) throws IOException {
+        if (block != Configuration.inlineDataMarker) {
+            return readMetaDataBlock(block);
+        }
+        var data = readEntryData(path);
+        return new MetaDataBlock(ByteArrayTransformer.fromString(path.getName()), data.length, false, data);
+    }
+
+    /**
+     * Data of a file kept with its entry, callers hold a lock on the file which for such files is one on the parent.
+     */
+    private byte[] readEntryData(Path pathToFile) throws IOException {
+        var parentMetaDataBlock = readMetaDataBlock(lookup(pathToFile.getParentPath()));
+        return readEntryData(findEntry(parentMetaDataBlock, pathToFile.getName()));
+    }
+
+    /**
+     * Replaces the data of a file kept with its entry. Depending on the new size it stays inline, is packed or moves
+     * to a block of its own. Returns the block the file ends up at.
+     */
+    private int storeData(Path pathToFile, byte[] data) throws IOException {
+        if (data.length >= Configuration.packedDataThreshold) {
+            return moveToBlock(pathToFile, data);
+        }
+        var parentPosition = lookup(pathToFile.getParentPath());
+        var parentMetaDataBlock = readMetaDataBlock(parentPosition);
+        var inode = findEntry(parentMetaDataBlock, pathToFile.getName());
+        if (data.length >= inlineDataThreshold && inode.isPacked() && updatePacked(inode, data)) {
+            return Configuration.inlineDataMarker;
+        }
+
+        var newInode = data.length < inlineDataThreshold
+            ? new Inode(pathToFile.getName(), data)
+            : writePacked(pathToFile.getName(), data);
+        updateEntry(parentMetaDataBlock, parentPosition, newInode);
+        removeEntryData(inode);
+        return Configuration.inlineDataMarker;
+    }
+
+    /**
+     * Writes a file kept with its entry to a block of its own. Callers hold an exclusive lock on the parent, so
+     * nobody can reach the new block before they are done with it.
+     */
+    private int moveToBlock(Path pathToFile, byte[] data) throws IOException {
+        var parentPosition = lookup(pathToFile.getParentPath());
+        var parentMetaDataBlock = readMetaDataBlock(parentPosition);
+        var inode = findEntry(parentMetaDataBlock, pathToFile.getName());
+        var block = writeNewFile(pathToFile.getName(), data, parentPosition);
+        updateEntry(parentMetaDataBlock, parentPosition, new Inode(pathToFile.getName(), block, false));
+        removeEntryData(inode);
+        invalidateLookups(pathToFile);
+        return block;
+    }
+
+    private MetaDataBlock readFileMetaData(Path pathToFile) throws IOException {
+        return readFileMetaData(pathToFile, lookup(pathToFile));
+    }
+
+    private MetaDataBlock readFileMetaData(Path pathToFile, int fileBlock) throws IOException {
+        var metaDataBlock = readMetaData(pathToFile, fileBlock);
+        if (metaDataBlock.isDir()) {
+            throw new IOException(String.format("%s is not a file", pathToFile));
         }
-        var dstMetaDataBlock = readMetaDataBlock(dstPosition);
+        return metaDataBlock;
+    }
 
-        if (!dstMetaDataBlock.isDir()) {
-            throw new IOException(String.format("%s is not a dir", dstPath));
+    /**
+     * Makes sure the file exists, holding an exclusive lock on its parent so nobody else opens or creates it meanwhile.
+     */
+    private void prepareFile(Path pathToFile, boolean create, boolean createNew, boolean truncate) throws IOException {
+        change(() -> {
+            var parentPath = pathToFile.getParentPath();
+            var parentPosition = lookup(parentPath);
+            var parentMetaDataBlock = readMetaData(parentPath, parentPosition);
+
+            if (!parentMetaDataBlock.isDir()) {
+                throw new IOException(String.format("%s is not a dir", pathToFile));
+            }
+
+            var existing = findEntry(parentMetaDataBlock, pathToFile.getName());
+
+            if (existing == null) {
+                if (!create) {
+                    throw new IOException(String.format("%s does not exist", pathToFile));
+                }
+                addFile(pathToFile, parentMetaDataBlock, parentPosition, new byte[0]);
+            } else if (createNew) {
+                throw new IOException(String.format("%s already exists", pathToFile));
+            } else if (existing.isDir()) {
+                throw new IOException(String.format("%s is not a file", pathToFile));
+            } else if (truncate && existing.isStoredWithEntry()) {
+                storeData(pathToFile, new byte[0]);
+            } else if (truncate) {
+                var fileBlock = existing.getBlock();
+                writeFile(readMetaDataBlock(fileBlock), fileBlock, new byte[0]);
+            }
+        }, PathLock.exclusive(pathToFile.getParentPath()));
+    }
+
+    /**
+     * Redoes operations committed to the journal but not yet written in place when the container was last closed.
+     */
+    void recover() throws IOException {
+        replayJournal();
+    }
+
+    /**
+     * Closes a container that failed to open, see {@link #closeWithoutWriting()}.
+     */
+    void discard() throws Exception {
+        closeWithoutWriting();
+    }
+
+    /**
+     * Rewrites every directory still in an older format in the current one, returns how many were rewritten.
+     */
+    int migrateDirectories() throws IOException {
+        var migrated = 0;
+        Deque<Path> dirs = new ArrayDeque<>();
+        dirs.push(new Path("/"));
+        while (!dirs.isEmpty()) {
+            var pathToDir = dirs.pop();
+            var rewritten = change(() -> {
+                var position = lookup(pathToDir);
+                var changed = migrateDirectory(readMetaDataBlock(position), position);
+                for (var inode : listEntries(readMetaDataBlock(position))) {
+                    if (inode.isDir()) {
+                        dirs.push(new Path(pathToDir.join(inode.getName())));
+                    }
+                }
+                return changed;
+            }, PathLock.exclusive(pathToDir));
+            if (rewritten) {
+                migrated++;
+            }
         }
+        return migrated;
+    }
+
+    private static SyncPolicy syncPolicyOf(ContainerOptions options) {
+        return switch (options.durability()) {
+            case NONE -> SyncPolicy.NONE;
+            case PERIODIC -> new SyncPolicy(false, options.syncInterval(), options.syncBytes());
+            case SYNC -> new SyncPolicy(true, 0, 0);
+        };
+    }
 
-        var srcInodes = readInodes(parentMetaDataBlock);
-        var inodeToMove = srcInodes.stream()
-            .filter(inode -> inode.getName().equals(pathToDir.getName()))
-            .findAny()
-            .orElse(null);
+    private static int checkOffset(long offset) throws IOException {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("File size limit exceeded");
+        }
+        return (int) offset;
+    }
 
-        var dstInodes = readInodes(dstMetaDataBlock);
-        dstInodes.add(inodeToMove);
-        writeDir(dstMetaDataBlock, dstPosition, ByteArrayTransformer.fromInodesList(dstInodes));
+    /**
+     * Frees a file or a whole directory tree, callers hold an exclusive lock on its root.
+     */
+    private void deleteTree(MetaDataBlock metaDataBlock, int block) throws IOException {
+        if (metaDataBlock.isDir() && !isEmptyDir(metaDataBlock)) {
+            for (var inode : listEntries(metaDataBlock)) {
+                if (inode.isStoredWithEntry()) {
+                    removeEntryData(inode);
+                } else {
+                    deleteTree(readMetaDataBlock(inode.getBlock()), inode.getBlock());
+                }
+            }
+        }
+        deleteDirOrFile(metaDataBlock, block);
+    }
 
-        srcInodes.removeIf(inode -> inode.getName().equals(pathToDir.getName()));
-        writeDir(parentMetaDataBlock, parentPosition, ByteArrayTransformer.fromInodesList(srcInodes));
+    @FunctionalInterface
+    private interface EntryLister {
+        List<Inode> list(MetaDataBlock dir) throws IOException;
     }
 }
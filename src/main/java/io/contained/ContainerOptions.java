@@ -0,0 +1,144 @@
+package io.contained;
+
+import io.contained.internals.Configuration;
+
+/**
+ * With {@code migrateDirectories} opening a container rewrites every directory still using the fixed entry format
+ * or a hash ordered tree of older versions in the current format. Those directories stay readable and writable
+ * either way, but can only be listed page by page after reading them as a whole.
+ * <p>
+ * Files smaller than {@code inlineDataThreshold} bytes are kept in their parent's directory entry instead of a
+ * block of their own, zero turns this off.
+ * <p>
+ * Blocks allocated or freed are written back to the allocation table every {@code allocationFlushInterval}
+ * milliseconds, only changed pages of it. Zero defers this to closing the container, a crash before loses every
+ * change to the table since it was opened.
+ * <p>
+ * With {@code journaled} every operation is first committed to a journal inside the container and only then written
+ * in place, so a crash leaves either all or none of the directory and allocation changes of an operation. Without
+ * it blocks are written in place right away. The {@link #defaults()} are not journaled.
+ * <p>
+ * The {@code durability} decides when changes are forced to disk, see {@link Durability}. Periodic forces happen
+ * every {@code syncInterval} milliseconds and once {@code syncBytes} were written since the last one, zero turns
+ * either off. The {@link #defaults()} never force, callers opt in to journaling and forcing.
+ * <p>
+ * With {@code copyOnWrite} file content is never overwritten in place. Changed blocks go to fresh blocks and the
+ * file's meta data block, written last, switches over to them, so a crash leaves either the old or the new content
+ * without journaling the data. It also allows taking snapshots of files, see {@link Container#snapshot}.
+ * <p>
+ * With a positive {@code writeBackBufferSize} blocks written in place are held in a buffer of that many bytes, so
+ * repeated writes to the same block reach the partition once. A background flush writes them in block order, as does
+ * a writer filling the buffer, {@link Container#flush()} and closing the container. Zero writes them right away.
+ * Without a journal blocks still buffered are lost if the process dies, forces flush the buffer first. With one
+ * the journal covers them until the next checkpoint, which flushes the buffer.
+ */
+public record ContainerOptions(int blockCacheSize, int dentryCacheSize, boolean memoryMapped,
+                               boolean migrateDirectories, int inlineDataThreshold, int allocationFlushInterval,
+                               boolean journaled, Durability durability, int syncInterval, int syncBytes,
+                               boolean copyOnWrite, int writeBackBufferSize) {
+    public ContainerOptions {
+        if (blockCacheSize < 0) {
+            throw new IllegalArgumentException("Block cache size must not be negative");
+        }
+        if (dentryCacheSize < 0) {
+            throw new IllegalArgumentException("Dentry cache size must not be negative");
+        }
+        if (inlineDataThreshold < 0 || inlineDataThreshold > Configuration.maxInlineDataThreshold) {
+            throw new IllegalArgumentException("Inline data threshold must be between 0 and "
+                + Configuration.maxInlineDataThreshold);
+        }
+        if (allocationFlushInterval < 0) {
+            throw new IllegalArgumentException("Allocation flush interval must not be negative");
+        }
+        if (durability == null) {
+            throw new IllegalArgumentException("Durability must not be null");
+        }
+        if (syncInterval < 0 || syncBytes < 0) {
+            throw new IllegalArgumentException("Sync interval and bytes must not be negative");
+        }
+        if (durability == Durability.PERIODIC && syncInterval == 0 && syncBytes == 0) {
+            throw new IllegalArgumentException("Periodic durability needs a sync interval or bytes");
+        }
+        if (writeBackBufferSize < 0) {
+            throw new IllegalArgumentException("Write-back buffer size must not be negative");
+        }
+    }
+
+    public static ContainerOptions defaults() {
+        return new ContainerOptions(Configuration.blockCacheSize, Configuration.dentryCacheSize, false, false,
+            Configuration.inlineDataThreshold, Configuration.allocationFlushInterval, false,
+            Durability.NONE, Configuration.syncInterval, Configuration.syncBytes, false, 0);
+    }
+
+    public ContainerOptions withBlockCacheSize(int blockCacheSize) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withDentryCacheSize(int dentryCacheSize) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withMemoryMapping(boolean memoryMapped) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withDirectoryMigration(boolean migrateDirectories) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withInlineDataThreshold(int inlineDataThreshold) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withAllocationFlushInterval(int allocationFlushInterval) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withJournal(boolean journaled) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withDurability(Durability durability) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withSyncInterval(int syncInterval) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withSyncBytes(int syncBytes) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withCopyOnWrite(boolean copyOnWrite) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+
+    public ContainerOptions withWriteBackBufferSize(int writeBackBufferSize) {
+        return new ContainerOptions(blockCacheSize, dentryCacheSize, memoryMapped, migrateDirectories,
+            inlineDataThreshold, allocationFlushInterval, journaled, durability, syncInterval, syncBytes,
+            copyOnWrite, writeBackBufferSize);
+    }
+}
@@ -0,0 +1,22 @@
+package io.contained;
+
+/**
+ * When changes are forced from the operating system's page cache to disk.
+ */
+public enum Durability {
+    /**
+     * Never, the operating system writes them back whenever it likes. Changes survive the process dying but not
+     * the machine.
+     */
+    NONE,
+    /**
+     * In the background, every {@link ContainerOptions#syncInterval()} milliseconds or once
+     * {@link ContainerOptions#syncBytes()} bytes were written since the last force. A crash loses at most the
+     * operations since then.
+     */
+    PERIODIC,
+    /**
+     * Before every changing operation returns. Operations finishing at the same time share a single force.
+     */
+    SYNC
+}
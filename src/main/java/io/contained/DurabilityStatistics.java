@@ -0,0 +1,12 @@
+package io.contained;
+
+public record DurabilityStatistics(Durability durability, long commits, long forces, long forcedBytes,
+                                   long unforcedBytes, long forceNanos) {
+    public double commitsPerForce() {
+        return forces == 0 ? 0 : (double) commits / forces;
+    }
+
+    public double averageForceMillis() {
+        return forces == 0 ? 0 : forceNanos / 1e6 / forces;
+    }
+}
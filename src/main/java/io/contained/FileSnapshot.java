@@ -0,0 +1,45 @@
+package io.contained;
+
+import io.contained.internals.Snapshot;
+
+import java.io.IOException;
+
+/**
+ * Read-only view of a file as it was when {@link Container#snapshot} was called. Closing it frees the blocks only it
+ * still reads.
+ */
+public class FileSnapshot implements AutoCloseable {
+    private final Container container;
+    private final String name;
+    private final Snapshot snapshot;
+
+    FileSnapshot(Container container, String name, Snapshot snapshot) {
+        this.container = container;
+        this.name = name;
+        this.snapshot = snapshot;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    public byte[] read() throws IOException {
+        return read(0, size());
+    }
+
+    /**
+     * Reads {@code length} bytes starting at {@code offset}, fewer if the file ends before.
+     */
+    public byte[] read(long offset, int length) throws IOException {
+        return container.read(snapshot, offset, length);
+    }
+
+    @Override
+    public void close() {
+        container.release(snapshot);
+    }
+}
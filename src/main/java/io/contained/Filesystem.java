@@ -2,10 +2,12 @@ package io.contained;
 
 import io.contained.internals.AllocationTable;
 import io.contained.internals.ContainerDescriptor;
+import io.contained.internals.MappedPartition;
 import io.contained.internals.MetaDataBlock;
 import io.contained.internals.Partition;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -15,6 +17,10 @@ public final class Filesystem {
     private Filesystem() {}
 
     public static Container create(Path path, int size) throws IOException {
+        return create(path, size, ContainerOptions.defaults());
+    }
+
+    public static Container create(Path path, int size, ContainerOptions options) throws IOException {
         if (Files.exists(path)) {
             throw new IllegalArgumentException("Filesystem already exists: " + path);
         }
@@ -29,44 +35,91 @@ public final class Filesystem {
         if (path.getParent() != null) {
             Files.createDirectories(path.getParent());
         }
-        var output = Files.newByteChannel(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-        var input = Files.newByteChannel(path, StandardOpenOption.READ);
-
-
-        var partition = new Partition(input, output);
+        var partition = openPartition(path, descriptor, options);
         partition.writeBytes(descriptor.toByteArray(), 0);
         partition.writeBytes(allocationTable.toByteArray(), ContainerDescriptor.BYTES);
 
-        var container = new Container(partition, descriptor, allocationTable);
-
-        var rootMetaData = new MetaDataBlock(new byte[0]);
-        partition.writeBytes(rootMetaData.toByteArray(), container.getMasterBlockSize());
-        allocationTable.allocateBlocks(List.of(0));
-
+        var container = new Container(partition, descriptor, allocationTable, options);
+        try {
+            var rootMetaData = new MetaDataBlock(new byte[0]);
+            partition.writeBytes(rootMetaData.toByteArray(), container.getMasterBlockSize());
+            allocationTable.allocateBlocks(List.of(0));
+            container.recover();
+        } catch (IOException | RuntimeException e) {
+            discard(container, e);
+            throw e;
+        }
         return container;
     }
 
     public static Container open(Path path) throws IOException {
+        return open(path, ContainerOptions.defaults());
+    }
+
+    public static Container open(Path path, ContainerOptions options) throws IOException {
         if (Files.notExists(path)) {
             throw new IllegalArgumentException("Filesystem not found: " + path);
         }
-        var output = Files.newByteChannel(path, StandardOpenOption.WRITE);
-        var input = Files.newByteChannel(path, StandardOpenOption.READ);
-
-        var partition = new Partition(input, output);
+        byte[] descriptorBytes;
+        try (var input = Files.newInputStream(path)) {
+            descriptorBytes = input.readNBytes(ContainerDescriptor.BYTES);
+        }
 
-        var descriptorBytes = partition.readBytes(0, ContainerDescriptor.BYTES);
+        ContainerDescriptor descriptor;
         try {
-            var descriptor = ContainerDescriptor.fromByteArray(descriptorBytes);
+            descriptor = ContainerDescriptor.fromByteArray(descriptorBytes);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("File is not compatible with cdfs");
+        }
 
+        var partition = openPartition(path, descriptor, options);
+        Container container;
+        try {
             var allocationTableBytes = partition.readBytes(ContainerDescriptor.BYTES, AllocationTable.sizeOf(descriptor.getBlockCount()));
             var allocationTable = AllocationTable.fromByteArray(allocationTableBytes);
 
             //TODO: validate partition (e.g. check signature)
 
-            return new Container(partition, descriptor, allocationTable);
+            container = new Container(partition, descriptor, allocationTable, options);
         } catch (Exception e) {
-            throw new IllegalArgumentException("File is not compatible with cdfs");
+            var incompatible = new IllegalArgumentException("File is not compatible with cdfs");
+            closePartition(partition, incompatible);
+            throw incompatible;
+        }
+
+        // replaying the journal or migrating may fail as well, the container must not stay open then
+        try {
+            container.recover();
+            if (options.migrateDirectories()) {
+                container.migrateDirectories();
+            }
+        } catch (IOException | RuntimeException e) {
+            discard(container, e);
+            throw e;
+        }
+        return container;
+    }
+
+    private static void discard(Container container, Exception cause) {
+        try {
+            container.discard();
+        } catch (Exception e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    private static void closePartition(Partition partition, Exception cause) {
+        try {
+            partition.close();
+        } catch (Exception e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    private static Partition openPartition(Path path, ContainerDescriptor descriptor, ContainerOptions options) throws IOException {
+        if (options.memoryMapped()) {
+            return MappedPartition.open(path, descriptor.getContainerSize());
         }
+        return new Partition(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
     }
 }
@@ -0,0 +1,9 @@
+package io.contained;
+
+/**
+ * Operations committed to the journal and flushes to disk it took, fewer flushes than commits mean operations
+ * committing at the same time shared one. See {@link DurabilityStatistics} for forces of containers without a
+ * journal as well.
+ */
+public record JournalStatistics(long commits, long forces) {
+}
@@ -0,0 +1,174 @@
+package io.contained.internals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Consecutive range of blocks with a bitmap and free runs of its own, guarded by its own monitor so writers placing
+ * files in different groups do not wait for each other. Blocks are passed in and returned as container positions.
+ * Pages of the bitmap changed since they were last taken are tracked so only those need to be written back.
+ */
+class AllocationGroup {
+    private static final int PAGE_BITS = AllocationTable.PAGE_BYTES * 8;
+
+    private final int start;
+    private final int blockCount;
+    private final BitSet table;
+    private final BitSet reserved;
+    private final HierarchicalBitmap taken;
+    private final FreeExtents freeExtents = new FreeExtents();
+    private final BitSet dirtyPages = new BitSet();
+
+    AllocationGroup(int start, int blockCount, byte[] bytes) {
+        this.start = start;
+        this.blockCount = blockCount;
+        this.table = BitSet.valueOf(bytes);
+        this.reserved = new BitSet(blockCount);
+        this.taken = HierarchicalBitmap.fromByteArray(Arrays.copyOf(bytes, blockCount / 8));
+
+        var free = table.nextClearBit(0);
+        while (free < blockCount) {
+            var end = table.nextSetBit(free);
+            end = end < 0 ? blockCount : end;
+            freeExtents.add(free, end - free);
+            free = table.nextClearBit(end);
+        }
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    int getEnd() {
+        return start + blockCount;
+    }
+
+    synchronized int getFreeBlockCount() {
+        return blockCount - taken.cardinality();
+    }
+
+    /**
+     * Reserves up to {@code blockCount} blocks, fewer if the group does not have as many left.
+     */
+    synchronized List<Integer> reserve(int blockCount, int goal) {
+        var count = Math.min(blockCount, getFreeBlockCount());
+        List<Integer> blocks = new ArrayList<>(count);
+        if (count == 0) {
+            return blocks;
+        }
+        var localGoal = goal >= start && goal < getEnd() ? goal - start : Configuration.noAddressMarker;
+        for (var extent : freeExtents.allocate(count, localGoal)) {
+            for (int block = extent.start(); block < extent.end(); block++) {
+                blocks.add(start + block);
+                reserved.set(block);
+                taken.set(block);
+            }
+        }
+        return blocks;
+    }
+
+    synchronized void allocate(int block) {
+        block -= start;
+        if (!table.get(block)) {
+            table.set(block);
+            markDirty(block);
+        }
+        reserved.clear(block);
+        if (!taken.get(block)) {
+            taken.set(block);
+            freeExtents.take(block, 1);
+        }
+    }
+
+    synchronized void release(int block) {
+        block -= start;
+        reserved.clear(block);
+        if (!table.get(block)) {
+            markFree(block);
+        }
+    }
+
+    /**
+     * Frees the blocks from {@code from} inclusive to {@code to} exclusive. The range is cleared at once and handed
+     * to the free runs run by run, split only around blocks that are free already or reserved.
+     */
+    synchronized void free(int from, int to) {
+        from -= start;
+        to -= start;
+        var firstSet = table.nextSetBit(from);
+        if (firstSet >= 0 && firstSet < to) {
+            var lastSet = table.previousSetBit(to - 1);
+            dirtyPages.set((start + firstSet) / PAGE_BITS, (start + lastSet) / PAGE_BITS + 1);
+            table.clear(firstSet, lastSet + 1);
+        }
+        var block = from;
+        while (block < to) {
+            if (!taken.get(block) || reserved.get(block)) {
+                block++;
+                continue;
+            }
+            var end = Math.min(to, endOf(taken.nextClearBit(block)));
+            end = Math.min(end, endOf(reserved.nextSetBit(block)));
+            taken.clear(block, end);
+            freeExtents.add(block, end - block);
+            block = end;
+        }
+    }
+
+    /**
+     * Keeps the blocks from {@code from} inclusive to {@code to} exclusive from being handed out when they are freed,
+     * like blocks reserved for an allocation.
+     */
+    synchronized void hold(int from, int to) {
+        reserved.set(from - start, to - start);
+    }
+
+    /**
+     * Drops the hold on the given blocks, those freed meanwhile are free again.
+     */
+    synchronized void releaseHeld(int from, int to) {
+        reserved.clear(from - start, to - start);
+        free(from, to);
+    }
+
+    synchronized byte[] toByteArray() {
+        return Arrays.copyOf(table.toByteArray(), blockCount / 8);
+    }
+
+    /**
+     * Adds the changed pages, cut to this group, to {@code pages} and marks them clean.
+     */
+    synchronized void takeDirtyPages(List<AllocationTable.BitmapPage> pages) {
+        for (int page = dirtyPages.nextSetBit(0); page >= 0; page = dirtyPages.nextSetBit(page + 1)) {
+            var from = Math.max(start, page * PAGE_BITS) - start;
+            var to = Math.min(getEnd(), (page + 1) * PAGE_BITS) - start;
+            var bytes = Arrays.copyOf(table.get(from, to).toByteArray(), (to - from) / 8);
+            pages.add(new AllocationTable.BitmapPage((start + from) / 8, bytes));
+        }
+        dirtyPages.clear();
+    }
+
+    /**
+     * Marks the page holding the given byte of the table as changed again, after writing it failed.
+     */
+    synchronized void markDirtyPage(int offset) {
+        dirtyPages.set(offset / AllocationTable.PAGE_BYTES);
+    }
+
+    private void markDirty(int block) {
+        dirtyPages.set((start + block) / PAGE_BITS);
+    }
+
+    private int endOf(int next) {
+        return next < 0 ? blockCount : next;
+    }
+
+    private void markFree(int block) {
+        if (taken.get(block)) {
+            taken.clear(block);
+            freeExtents.add(block, 1);
+        }
+    }
+}
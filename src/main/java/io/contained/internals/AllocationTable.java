@@ -1,46 +1,202 @@
 package io.contained.internals;
 
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
+/**
+ * Tracks which blocks are in use. Changes are written back page by page, see {@link #takeDirtyPages()}.
+ */
 public class AllocationTable {
-    private final BitSet table;
+    public static final int PAGE_BYTES = Configuration.blockSize;
+
+    private final AllocationGroup[] groups;
+    private final int groupSize;
     private final int blockCount;
+    private final Map<Integer, Integer> packedFreeBytes = new HashMap<>();
+    private final NavigableSet<Long> packedBySpace = new TreeSet<>();
+    private final Object spreadLock = new Object();
 
     public AllocationTable(int blockCount) {
-        this.table = new BitSet(blockCount);
-        this.blockCount = blockCount;
+        this(blockCount, Configuration.allocationGroupSize);
     }
 
-    private AllocationTable(byte[] bytes) {
-        this.table = BitSet.valueOf(bytes);
-        this.blockCount = bytes.length * 8;
+    AllocationTable(int blockCount, int groupSize) {
+        this(new byte[sizeOf(blockCount)], blockCount, groupSize);
     }
 
+    private AllocationTable(byte[] bytes, int blockCount, int groupSize) {
+        this.groupSize = groupSize;
+        this.blockCount = blockCount;
+        this.groups = new AllocationGroup[Math.max(1, (blockCount + groupSize - 1) / groupSize)];
+        for (int i = 0; i < groups.length; i++) {
+            var start = i * groupSize;
+            var count = Math.min(groupSize, blockCount - start);
+            groups[i] = new AllocationGroup(start, count, Arrays.copyOfRange(bytes, start / 8, (start + count) / 8));
+        }
+    }
+
+    /**
+     * Returns free blocks and reserves them until they are allocated or released, so concurrent callers never get
+     * the same blocks. Reservations are never persisted.
+     */
     public List<Integer> getAvailableBlocks(int blockCount) {
-        if (table.cardinality() + blockCount > this.blockCount) {
-            throw new IllegalStateException("Not enough free space to allocate blocks");
+        return getAvailableBlocks(blockCount, Configuration.noAddressMarker);
+    }
+
+    /**
+     * Like {@link #getAvailableBlocks(int)}, preferring the allocation group of {@code goal} and the blocks from
+     * {@code goal} on so a file grows in place. Within a group the blocks come from the smallest free run that holds
+     * all of them, or from as few runs as possible, in ascending order. Only when the group cannot hold all of them
+     * the next group that can is used, and only when there is none they are spread over several groups. Requests
+     * spread over several groups are served one at a time, two of them each holding part of the space would
+     * otherwise both fail where one of them fits.
+     */
+    public List<Integer> getAvailableBlocks(int blockCount, int goal) {
+        var preferred = goal >= 0 && goal < this.blockCount ? goal / groupSize : 0;
+        for (int i = 0; i < groups.length; i++) {
+            var group = groups[(preferred + i) % groups.length];
+            if (group.getFreeBlockCount() >= blockCount) {
+                var blocks = group.reserve(blockCount, goal);
+                if (blocks.size() == blockCount) {
+                    return blocks;
+                }
+                // another request got to the group first
+                releaseBlocks(blocks);
+            }
         }
-        List<Integer> blocks = new ArrayList<>(blockCount);
-        var bitIndex = 0;
-        for (int i = 0; i < blockCount; i++) {
-            bitIndex = table.nextClearBit(bitIndex);
-            blocks.add(bitIndex);
-            bitIndex++;
+
+        synchronized (spreadLock) {
+            List<Integer> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < groups.length && blocks.size() < blockCount; i++) {
+                blocks.addAll(groups[(preferred + i) % groups.length].reserve(blockCount - blocks.size(), goal));
+            }
+            if (blocks.size() < blockCount) {
+                releaseBlocks(blocks);
+                throw new IllegalStateException("Not enough free space to allocate blocks");
+            }
+            return blocks;
         }
-        return blocks;
+    }
+
+    /**
+     * Blocks neither allocated nor reserved, kept up to date per group rather than counted.
+     */
+    public int getFreeBlockCount() {
+        var free = 0;
+        for (var group : groups) {
+            free += group.getFreeBlockCount();
+        }
+        return free;
+    }
+
+    /**
+     * First block of the group with the most free blocks. New top level directories start there so unrelated trees
+     * spread over the container while each keeps to its own group.
+     */
+    public int getEmptiestGroupStart() {
+        var emptiest = groups[0];
+        for (var group : groups) {
+            if (group.getFreeBlockCount() > emptiest.getFreeBlockCount()) {
+                emptiest = group;
+            }
+        }
+        return emptiest.getStart();
     }
 
     public void allocateBlocks(List<Integer> blocks) {
         for (Integer block : blocks) {
-            table.set(block);
+            groupOf(block).allocate(block);
+        }
+    }
+
+    public void releaseBlocks(List<Integer> blocks) {
+        for (Integer block : blocks) {
+            groupOf(block).release(block);
         }
     }
 
     public void freeBlocks(List<Integer> blocks) {
         for (Integer block : blocks) {
-            table.clear(block);
+            groupOf(block).free(block, block + 1);
+            untrackPackedBlock(block);
+        }
+    }
+
+    /**
+     * Records the space left in a {@link PackedBlock}. Only blocks written or freed from since the container was
+     * opened are tracked, the others are picked up as soon as one of their slots changes.
+     */
+    public synchronized void trackPackedBlock(int block, int freeBytes) {
+        untrackPackedBlock(block);
+        packedFreeBytes.put(block, freeBytes);
+        packedBySpace.add(spaceKey(freeBytes, block));
+    }
+
+    public synchronized void untrackPackedBlock(int block) {
+        var freeBytes = packedFreeBytes.remove(block);
+        if (freeBytes != null) {
+            packedBySpace.remove(spaceKey(freeBytes, block));
+        }
+    }
+
+    /**
+     * Space left in a tracked packed block, callers check {@link #isPackedBlock(int)} first.
+     */
+    public synchronized int getPackedFreeBytes(int block) {
+        return packedFreeBytes.get(block);
+    }
+
+    public synchronized boolean isPackedBlock(int block) {
+        return packedFreeBytes.containsKey(block);
+    }
+
+    /**
+     * Packed block with the least space left that still has at least the given number of bytes free, or
+     * {@link Configuration#noAddressMarker} if there is none.
+     */
+    public synchronized int findPackedBlock(int size) {
+        var key = packedBySpace.ceiling(spaceKey(size, 0));
+        return key != null ? (int) (long) key : Configuration.noAddressMarker;
+    }
+
+    private static long spaceKey(int freeBytes, int block) {
+        return ((long) freeBytes << Integer.SIZE) | block;
+    }
+
+    public void freeExtents(List<Extent> extents) {
+        forEachGroupRun(extents, AllocationGroup::free);
+    }
+
+    /**
+     * Keeps allocated runs from being handed out once they are freed, until {@link #releaseHeldExtents} is called.
+     * Freeing them still marks them free in the table, so they are only kept back in memory and a crash while they
+     * are held loses none of them.
+     */
+    public void holdExtents(List<Extent> extents) {
+        forEachGroupRun(extents, AllocationGroup::hold);
+    }
+
+    /**
+     * Hands out runs kept back by {@link #holdExtents} again.
+     */
+    public void releaseHeldExtents(List<Extent> extents) {
+        forEachGroupRun(extents, AllocationGroup::releaseHeld);
+    }
+
+    private void forEachGroupRun(List<Extent> extents, GroupRunAction action) {
+        for (Extent extent : extents) {
+            var from = extent.start();
+            while (from < extent.end()) {
+                var group = groupOf(from);
+                var to = Math.min(extent.end(), group.getEnd());
+                action.apply(group, from, to);
+                from = to;
+            }
         }
     }
 
@@ -54,12 +210,50 @@ public class AllocationTable {
 
     public byte[] toByteArray() {
         var data = new byte[size()];
-        var tableAsBytes = table.toByteArray();
-        System.arraycopy(tableAsBytes, 0, data, 0, Math.min(data.length, tableAsBytes.length));
+        for (var group : groups) {
+            var groupBytes = group.toByteArray();
+            System.arraycopy(groupBytes, 0, data, group.getStart() / 8, groupBytes.length);
+        }
         return data;
     }
 
     public static AllocationTable fromByteArray(byte[] data) {
-        return new AllocationTable(data);
+        return new AllocationTable(data, data.length * 8, Configuration.allocationGroupSize);
+    }
+
+    /**
+     * Pages of the table changed since they were last taken, which marks them clean. A page is taken at most once
+     * per group, so its bytes are never older than a change made to it before the call.
+     */
+    public List<BitmapPage> takeDirtyPages() {
+        List<BitmapPage> pages = new ArrayList<>();
+        for (var group : groups) {
+            group.takeDirtyPages(pages);
+        }
+        return pages;
+    }
+
+    /**
+     * Marks taken pages as changed again, for when writing them back failed.
+     */
+    public void markDirty(List<BitmapPage> pages) {
+        for (var page : pages) {
+            groupOf(page.offset() * 8).markDirtyPage(page.offset());
+        }
+    }
+
+    private AllocationGroup groupOf(int block) {
+        return groups[block / groupSize];
+    }
+
+    /**
+     * Bytes of the table starting at {@code offset}, a page or the part of it belonging to one allocation group.
+     */
+    @FunctionalInterface
+    private interface GroupRunAction {
+        void apply(AllocationGroup group, int from, int to);
+    }
+
+    public record BitmapPage(int offset, byte[] bytes) {
     }
 }
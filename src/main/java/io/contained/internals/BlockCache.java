@@ -0,0 +1,82 @@
+package io.contained.internals;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BlockCache {
+    private final long capacity;
+    private final LinkedHashMap<Integer, byte[]> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BlockCache(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Cache capacity must not be negative");
+        }
+        this.capacity = capacity;
+    }
+
+    public synchronized byte[] get(int block) {
+        var bytes = blocks.get(block);
+        if (bytes == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return bytes;
+    }
+
+    public synchronized void put(int block, byte[] bytes) {
+        invalidate(block);
+        if (bytes.length > capacity) {
+            return;
+        }
+        blocks.put(block, bytes);
+        size += bytes.length;
+        evict();
+    }
+
+    public synchronized void invalidate(int block) {
+        var bytes = blocks.remove(block);
+        if (bytes != null) {
+            size -= bytes.length;
+        }
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        size = 0;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, byte[]>> iterator = blocks.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().getValue().length;
+            iterator.remove();
+            evictions++;
+        }
+    }
+}
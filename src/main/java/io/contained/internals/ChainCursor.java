@@ -0,0 +1,40 @@
+package io.contained.internals;
+
+/**
+ * Where the last read of a chained file stopped, so a stream reading on from there continues at that block instead
+ * of following the chain from its start again. A cursor only holds while the file's metadata block is not written
+ * again, any change relinking the chain writes it; changes to other files leave the cursor alone.
+ */
+public class ChainCursor {
+    private int head = Configuration.noAddressMarker;
+    private long version = -1;
+    private int offset;
+    private int block = Configuration.noAddressMarker;
+
+    /**
+     * Whether the cursor can be continued from, for a read at {@code offset} of the file whose metadata block at
+     * {@code head} is at {@code version}.
+     */
+    boolean isValid(int head, long version, int offset) {
+        return this.head == head && this.version == version && block != Configuration.noAddressMarker
+            && this.offset <= offset;
+    }
+
+    /**
+     * File offset of the first byte held by {@link #getBlock()}.
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    int getBlock() {
+        return block;
+    }
+
+    void moveTo(int head, long version, int offset, int block) {
+        this.head = head;
+        this.version = version;
+        this.offset = offset;
+        this.block = block;
+    }
+}
@@ -5,4 +5,18 @@ public abstract class Configuration {
     public static final int blockSize = 4096;
     public static final int filenameLength = 256;
     public static final int noAddressMarker = -1;
+    public static final int blockCacheSize = 1024 * blockSize;
+    public static final int dentryCacheSize = 4096;
+    public static final int directoryIndexThreshold = 64;
+    public static final int inlineDataMarker = -2;
+    public static final int inlineDataThreshold = 128;
+    public static final int maxInlineDataThreshold = 1024;
+    public static final int packedDataThreshold = blockSize / 2;
+    public static final int allocationGroupSize = 32768;
+    public static final int allocationFlushInterval = 1000;
+    public static final int journalSize = 256 * blockSize;
+    public static final int syncInterval = 100;
+    public static final int syncBytes = 1024 * blockSize;
+    public static final int writeBackInterval = 200;
+    public static final int readAheadBlocks = 64;
 }
@@ -36,6 +36,17 @@ public class ContainerDescriptor {
         return blockCount;
     }
 
+    /**
+     * The journal follows the last block, containers written before it existed simply end there.
+     */
+    public long getJournalOffset() {
+        return BYTES + AllocationTable.sizeOf(blockCount) + (long) blockCount * blockSize;
+    }
+
+    public long getContainerSize() {
+        return getJournalOffset() + blockSize + Configuration.journalSize;
+    }
+
     public byte[] toByteArray() {
         var bytes = new byte[BYTES];
 
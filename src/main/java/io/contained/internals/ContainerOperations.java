@@ -2,21 +2,88 @@ package io.contained.internals;
 
 import io.contained.internals.util.ByteArrayTransformer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public abstract class ContainerOperations implements AutoCloseable {
+    private static final int TRANSFER_CHUNK_BLOCKS = 256;
+    private static final int APPLY_LOCK_STRIPES = 64;
+    private static final int BLOCK_VERSION_STRIPES = 1024;
+
     private final ContainerDescriptor descriptor;
     private final AllocationTable allocationTable;
     private final int masterBlockSize;
     private final Partition partition;
+    private final BlockCache blockCache;
+    private final DentryCache dentryCache;
+    private final LockManager lockManager = new LockManager();
+    private final DirectoryTree directoryTree;
+    private final PackedBlocks packedBlocks;
+    private final Object allocationFlushLock = new Object();
+    private final ScheduledExecutorService allocationFlusher;
+    private final Journal journal;
+    private final ReadWriteLock journalLock = new ReentrantReadWriteLock();
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+    private final Map<Integer, JournalRecord.BlockImage> pendingBlocks = new ConcurrentHashMap<>();
+    // serializes writing pending images in place per block, see applyImage
+    private final Object[] applyLocks = new Object[APPLY_LOCK_STRIPES];
+    private final AtomicLong sequence = new AtomicLong();
+    private final GroupForce groupForce;
+    private final SyncPolicy syncPolicy;
+    private final ScheduledExecutorService syncer;
+    private final AtomicBoolean syncRequested = new AtomicBoolean();
+    private final List<Deferred> deferred = new ArrayList<>();
+    private final AtomicLong commits = new AtomicLong();
+    // bumped whenever a block sharing the stripe is written or restored, see ChainCursor
+    private final AtomicLongArray blockVersions = new AtomicLongArray(BLOCK_VERSION_STRIPES);
+    private final boolean copyOnWrite;
+    private final PinnedBlocks pinnedBlocks = new PinnedBlocks();
+    private final WriteBackBuffer writeBack;
+    private final ScheduledExecutorService writeBackFlusher;
 
+    /**
+     * With a positive {@code allocationFlushInterval} changed pages of the allocation table are written back every
+     * that many milliseconds, otherwise only on {@link #close()}. With a {@code journal} blocks written under
+     * {@link #lock} are committed to it before they are written in place, without one they are written right away.
+     * The {@code syncPolicy} decides when they are forced to disk. With {@code copyOnWrite} file content is written
+     * to fresh blocks and published by writing the file's metadata block, never overwritten in place. A
+     * {@code writeBack} buffer holds blocks written in place until it fills up or a background flush writes them.
+     */
     protected ContainerOperations(ContainerDescriptor descriptor, AllocationTable allocationTable,
-                                  int masterBlockSize, Partition partition) {
+                                  int masterBlockSize, Partition partition, BlockCache blockCache,
+                                  DentryCache dentryCache, int allocationFlushInterval, Journal journal,
+                                  SyncPolicy syncPolicy, boolean copyOnWrite, WriteBackBuffer writeBack) {
         this.descriptor = descriptor;
         this.allocationTable = allocationTable;
         this.masterBlockSize = masterBlockSize;
         this.partition = partition;
+        this.blockCache = blockCache;
+        this.dentryCache = dentryCache;
+        this.directoryTree = new DirectoryTree(this, descriptor.getBlockSize());
+        this.packedBlocks = new PackedBlocks(this, allocationTable, descriptor.getBlockSize());
+        this.allocationFlusher = allocationFlushInterval > 0 ? startAllocationFlusher(allocationFlushInterval) : null;
+        this.journal = journal;
+        this.groupForce = journal != null ? journal.getGroupForce() : new GroupForce(partition);
+        this.syncPolicy = syncPolicy;
+        this.syncer = syncPolicy.isPeriodic() ? startSyncer(syncPolicy.interval()) : null;
+        this.copyOnWrite = copyOnWrite;
+        this.writeBack = writeBack;
+        this.writeBackFlusher = writeBack != null ? startWriteBackFlusher() : null;
+        Arrays.setAll(applyLocks, i -> new Object());
     }
 
     //TODO: improve encapsulation
@@ -24,45 +91,177 @@ public abstract class ContainerOperations implements AutoCloseable {
         return masterBlockSize;
     }
 
+    protected int getBlockSize() {
+        return descriptor.getBlockSize();
+    }
+
     protected int relativePosition(int position) {
         return position * descriptor.getBlockSize() + masterBlockSize;
     }
 
+    protected BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    protected DentryCache getDentryCache() {
+        return dentryCache;
+    }
+
     protected MetaDataBlock readMetaDataBlock(int position) throws IOException {
-        byte[] bytes = partition.readBytes(relativePosition(position), descriptor.getBlockSize());
-        return MetaDataBlock.fromByteArray(bytes);
+        return MetaDataBlock.fromByteArray(readBlock(position));
     }
 
     protected DataBlock readDataBlockMetaData(int position) throws IOException {
-        byte[] bytes = partition.readBytes(relativePosition(position), DataBlock.META_BYTES);
-        return DataBlock.fromByteArray(bytes);
+        byte[] bytes = blockCache.get(position);
+        if (bytes == null) {
+            bytes = readUnwritten(position);
+        }
+        if (bytes != null) {
+            return DataBlock.fromByteArray(bytes);
+        }
+        // the header is all that is needed, the payload comes back as zeros like from a short block
+        var header = partition.readBuffer(relativePosition(position), DataBlock.META_BYTES);
+        return new DataBlock(header.getInt(), header.getInt(), new byte[header.getInt()]);
     }
 
     protected DataBlock readDataBlock(int position) throws IOException {
-        byte[] bytes = partition.readBytes(relativePosition(position), descriptor.getBlockSize());
-        return DataBlock.fromByteArray(bytes);
+        return DataBlock.fromByteArray(readBlock(position));
     }
 
     protected void writeBlock(DataBlock dataBlock, int position) throws IOException {
-        partition.writeBytes(dataBlock.toByteArray(), relativePosition(position));
+        writeBlock(dataBlock.toByteArray(), position);
+    }
+
+    /**
+     * Within an operation the block is only kept as pending until the operation commits, reads are served from
+     * that copy meanwhile.
+     */
+    protected void writeBlock(byte[] bytes, int position) throws IOException {
+        var tx = transaction.get();
+        blockCache.invalidate(position);
+        blockVersions.incrementAndGet(Math.floorMod(position, BLOCK_VERSION_STRIPES));
+        if (tx != null && journal != null) {
+            var image = new JournalRecord.BlockImage(position, sequence.incrementAndGet(), bytes);
+            var previous = pendingBlocks.put(position, image);
+            if (tx.images.put(position, image) == null) {
+                tx.replaced.put(position, previous);
+            }
+            tx.written = true;
+        } else {
+            pendingBlocks.remove(position);
+            writeInPlace(bytes, position);
+            markWritten(tx);
+        }
+        blockCache.put(position, bytes);
+    }
+
+    /**
+     * Writes a block where it belongs, through the write-back buffer if there is one. A writer filling the buffer
+     * flushes it itself.
+     */
+    private void writeInPlace(byte[] bytes, int position) throws IOException {
+        if (writeBack == null) {
+            partition.writeBytes(bytes, relativePosition(position));
+            groupForce.written(bytes.length);
+            return;
+        }
+        writeBack.put(position, bytes);
+        if (writeBack.isFull()) {
+            flushWriteBack();
+        }
+    }
+
+    /**
+     * Writes the blocks held for write-back in place, without forcing them to disk.
+     */
+    protected void flushWriteBack() throws IOException {
+        if (writeBack == null) {
+            return;
+        }
+        writeBack.flush((block, bytes) -> {
+            partition.writeBytes(bytes, relativePosition(block));
+            groupForce.written(bytes.length);
+        });
+    }
+
+    protected byte[] readBlock(int position) throws IOException {
+        byte[] bytes = blockCache.get(position);
+        if (bytes == null) {
+            bytes = readUnwritten(position);
+            if (bytes == null) {
+                bytes = partition.readBytes(relativePosition(position), descriptor.getBlockSize());
+            }
+            blockCache.put(position, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Number of chained blocks holding {@code size} bytes.
+     */
+    private int chainedBlocks(int size) {
+        var capacity = descriptor.getBlockSize() - DataBlock.META_BYTES;
+        return (int) ((Math.max(0, size) + (long) capacity - 1) / capacity);
+    }
+
+    /**
+     * Reads {@code count} adjacent blocks with a single partition read. Blocks with a newer copy in the cache, pending
+     * or buffered for write-back are taken from there instead.
+     */
+    private List<byte[]> readBlocks(int position, int count) throws IOException {
+        var blockSize = descriptor.getBlockSize();
+        // blocks are copied out of the run one by one as they go to the cache, the run itself is not kept
+        var run = partition.readBuffer(relativePosition(position), count * blockSize);
+        List<byte[]> blocks = new ArrayList<>(count);
+        for (int i = 0; i < count && i * blockSize < run.limit(); i++) {
+            var bytes = blockCache.get(position + i);
+            if (bytes == null) {
+                bytes = readUnwritten(position + i);
+            }
+            if (bytes == null) {
+                bytes = new byte[Math.min(blockSize, run.limit() - i * blockSize)];
+                run.get(i * blockSize, bytes);
+            }
+            blocks.add(bytes);
+        }
+        return blocks;
+    }
+
+    /**
+     * Latest copy of a block not written in place yet, pending in an operation or buffered for write-back.
+     */
+    private byte[] readUnwritten(int position) {
+        var pending = pendingBlocks.get(position);
+        if (pending != null) {
+            return pending.bytes();
+        }
+        return writeBack != null ? writeBack.get(position) : null;
     }
 
     protected List<Inode> readInodes(MetaDataBlock metaDataBlock) throws IOException {
         byte[] data = readAllBytes(metaDataBlock);
-        return ByteArrayTransformer.toInodesList(data);
+        return metaDataBlock.isCompact()
+            ? ByteArrayTransformer.toCompactInodesList(data)
+            : ByteArrayTransformer.toInodesList(data);
     }
 
     protected byte[] readAllBytes(MetaDataBlock metaDataBlock) throws IOException {
         byte[] data = null;
-        if (metaDataBlock.getDataFullSize() > metaDataBlock.getDataSize()) {
+        if (metaDataBlock.hasExtents()) {
+            if (metaDataBlock.getDataFullSize() > 0) {
+                data = new byte[metaDataBlock.getDataFullSize()];
+                readData(readExtents(metaDataBlock), 0, data, 0, data.length);
+            }
+        } else if (metaDataBlock.getDataFullSize() > metaDataBlock.getDataSize()) {
             data = new byte[metaDataBlock.getDataFullSize()];
             DataBlock dataBlock = metaDataBlock;
             var currentPosition = 0;
+            var chain = new ChainReader();
 
             while (dataBlock.hasNextBlock()) {
                 System.arraycopy(dataBlock.getData(), 0, data, currentPosition, dataBlock.getDataSize());
                 currentPosition += dataBlock.getDataSize();
-                dataBlock = readDataBlock(dataBlock.getNextBlock());
+                dataBlock = chain.next(dataBlock.getNextBlock(), chainedBlocks(data.length - currentPosition));
             }
 
             System.arraycopy(dataBlock.getData(), 0, data, currentPosition, dataBlock.getDataSize());
@@ -73,278 +272,2028 @@ public abstract class ContainerOperations implements AutoCloseable {
         return data;
     }
 
+    /**
+     * Copies up to {@code length} bytes of a file starting at {@code offset} without reading data that precedes it,
+     * returns the number of bytes copied.
+     */
+    protected int readBytes(MetaDataBlock metaDataBlock, int offset, byte[] bytes, int index, int length) throws IOException {
+        return readBytes(metaDataBlock, Configuration.noAddressMarker, offset, bytes, index, length, null);
+    }
+
+    /**
+     * Like {@link #readBytes(MetaDataBlock, int, byte[], int, int)} for the file whose metadata block is at
+     * {@code position}, a chained file is followed from where the {@code cursor} stopped if it still holds and the
+     * cursor is moved to the last block read, so reading a chain front to back in many calls follows every link once.
+     * Every change relinking a chain rewrites its metadata block, so the cursor only holds while that block is not
+     * written again.
+     */
+    protected int readBytes(MetaDataBlock metaDataBlock, int position, int offset, byte[] bytes, int index, int length,
+                            ChainCursor cursor) throws IOException {
+        length = Math.max(0, Math.min(length, metaDataBlock.getDataFullSize() - offset));
+        if (length == 0) {
+            return 0;
+        }
+        if (metaDataBlock.hasExtents()) {
+            readData(readExtents(metaDataBlock), offset, bytes, index, length);
+            return length;
+        }
+
+        var version = cursor != null ? blockVersions.get(Math.floorMod(position, BLOCK_VERSION_STRIPES)) : 0;
+        DataBlock dataBlock = metaDataBlock;
+        var currentPosition = Configuration.noAddressMarker;
+        var blockStart = 0;
+        var headCapacity = descriptor.getBlockSize() - MetaDataBlock.META_BYTES;
+        var chain = new ChainReader();
+        if (offset >= headCapacity) {
+            var capacity = descriptor.getBlockSize() - DataBlock.META_BYTES;
+            currentPosition = metaDataBlock.getNextBlock();
+            blockStart = headCapacity;
+            if (cursor != null && cursor.isValid(position, version, offset)) {
+                currentPosition = cursor.getBlock();
+                blockStart = cursor.getOffset();
+            }
+
+            var skippedBlocks = (offset - blockStart) / capacity;
+            for (int i = 0; i < skippedBlocks; i++) {
+                currentPosition = readDataBlockMetaData(currentPosition).getNextBlock();
+            }
+            blockStart += skippedBlocks * capacity;
+            dataBlock = chain.next(currentPosition, chainedBlocks(offset - blockStart + length));
+        }
+
+        var blockOffset = offset - blockStart;
+        var copied = 0;
+        while (true) {
+            var size = Math.min(length - copied, dataBlock.getDataSize() - blockOffset);
+            System.arraycopy(dataBlock.getData(), blockOffset, bytes, index + copied, size);
+            copied += size;
+            if (copied >= length || !dataBlock.hasNextBlock()) {
+                break;
+            }
+            blockStart += dataBlock.getDataSize();
+            currentPosition = dataBlock.getNextBlock();
+            dataBlock = chain.next(currentPosition, chainedBlocks(length - copied));
+            blockOffset = 0;
+        }
+        if (cursor != null && currentPosition != Configuration.noAddressMarker) {
+            cursor.moveTo(position, version, blockStart, currentPosition);
+        }
+        return copied;
+    }
+
     protected MetaDataBlock traverseTo(Path path) throws IOException {
-        var currentBlock = 0;
-        MetaDataBlock metaDataBlock;
-        var i = 0;
-        do {
-            metaDataBlock = readMetaDataBlock(currentBlock);
+        return readMetaDataBlock(lookup(path));
+    }
+
+    protected int lookup(Path path) throws IOException {
+        var resolution = resolve(path, null, true);
+        if (resolution.failure() != null) {
+            throw resolution.failure();
+        }
+        return resolution.blocks()[resolution.blocks().length - 1];
+    }
+
+    /**
+     * Locks blocks of all given paths. Paths are first resolved without any locks, then locked in block order and
+     * resolved again; if a concurrent operation changed them in between, locks are dropped and the whole thing
+     * is retried. Lookup failures are only reported once the directory they happened in is locked. Files reached
+     * through their parent's entry, inline or packed, resolve to {@link Configuration#inlineDataMarker} and are
+     * guarded by the lock of the parent. The operation runs as a transaction that ends when the outermost locks are
+     * closed, before they are released: it is committed if it was marked as succeeded and rolled back otherwise, so
+     * operations changing anything go through {@link #change(Change, PathLock...)}.
+     */
+    protected OperationLocks lock(PathLock... paths) throws IOException {
+        var locks = lockPaths(paths);
+        var tx = transaction.get();
+        if (tx == null) {
+            tx = new Transaction();
+            transaction.set(tx);
+        }
+        tx.depth++;
+        return new OperationLocks(locks, tx);
+    }
+
+    /**
+     * Runs an operation changing the container under locks of the given paths. It is committed once it returns, if it
+     * throws everything it staged is rolled back, see {@link OperationLocks#close()}.
+     */
+    protected <T> T change(Change<T> change, PathLock... paths) throws IOException {
+        try (var locks = lock(paths)) {
+            var result = change.apply();
+            locks.succeeded = true;
+            return result;
+        }
+    }
 
-            if (i < path.size() - 1) {
-                currentBlock = getChildBlock(metaDataBlock, path.getPart(i + 1));
+    protected void change(VoidChange change, PathLock... paths) throws IOException {
+        change(() -> {
+            change.apply();
+            return null;
+        }, paths);
+    }
+
+    private LockManager.Locks lockPaths(PathLock... paths) throws IOException {
+        while (true) {
+            var resolutions = new Resolution[paths.length];
+            var shared = new TreeSet<Integer>();
+            var exclusive = new TreeSet<Integer>();
+
+            for (int i = 0; i < paths.length; i++) {
+                resolutions[i] = resolve(paths[i].path(), null, false);
+                var blocks = resolutions[i].blocks();
+                var firstExclusive = Math.max(1, paths[i].path().size()) - paths[i].exclusiveDepth();
+                for (int j = 0; j < blocks.length; j++) {
+                    if (blocks[j] == Configuration.inlineDataMarker) {
+                        (j >= firstExclusive ? exclusive : shared).add(blocks[j - 1]);
+                    } else {
+                        (j >= firstExclusive ? exclusive : shared).add(blocks[j]);
+                    }
+                }
+            }
+            shared.removeAll(exclusive);
+
+            var locks = lockManager.acquire(shared, exclusive);
+            try {
+                var valid = true;
+                RuntimeException failure = null;
+                for (int i = 0; i < paths.length && valid; i++) {
+                    var expected = resolutions[i].blocks();
+                    var resolution = resolve(paths[i].path(), expected, true);
+                    valid = Arrays.equals(expected, resolution.blocks());
+                    if (failure == null) {
+                        failure = resolution.failure();
+                    }
+                }
+                if (valid && failure != null) {
+                    throw failure;
+                }
+                if (valid) {
+                    return locks;
+                }
+                locks.close();
+            } catch (IOException | RuntimeException e) {
+                locks.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Walks the path as far as it resolves. With {@code expected} blocks the walk stops at the first directory
+     * outside of them, as those are the only ones the caller holds locks on. Only walks done under locks are cached.
+     */
+    private Resolution resolve(Path path, int[] expected, boolean locked) throws IOException {
+        var generation = dentryCache.generation();
+        var blocks = new int[Math.max(1, path.size())];
+
+        for (int i = 1; i < path.size(); i++) {
+            if (expected != null && (i > expected.length || expected[i - 1] != blocks[i - 1])) {
+                return new Resolution(Arrays.copyOf(blocks, i), null);
+            }
+
+            if (blocks[i - 1] == Configuration.inlineDataMarker) {
+                return new Resolution(Arrays.copyOf(blocks, i),
+                    new IllegalArgumentException("Specified path is not a directory"));
             }
-            i++;
-        } while (i < path.size());
-        return metaDataBlock;
+
+            var prefix = path.getPrefix(i + 1);
+            var cachedBlock = dentryCache.get(prefix);
+            int block;
+
+            if (cachedBlock != null) {
+                block = cachedBlock;
+            } else {
+                try {
+                    block = findChildBlock(readMetaDataBlock(blocks[i - 1]), path.getPart(i));
+                } catch (RuntimeException e) {
+                    return new Resolution(Arrays.copyOf(blocks, i), e);
+                }
+                if (locked) {
+                    dentryCache.put(prefix, block, generation);
+                }
+            }
+
+            if (block == Configuration.noAddressMarker) {
+                return new Resolution(Arrays.copyOf(blocks, i), new IllegalArgumentException("Directory not found"));
+            }
+            blocks[i] = block;
+        }
+        return new Resolution(blocks, null);
+    }
+
+    protected void invalidateLookups(Path path) {
+        dentryCache.invalidate(path.normalized());
     }
 
-    protected int getChildBlock(MetaDataBlock parent, String name) throws IOException {
+    private int findChildBlock(MetaDataBlock parent, String name) throws IOException {
         if (!parent.isDir()) {
             throw new IllegalArgumentException("Specified path is not a directory");
         }
 
-        var inodes = readInodes(parent);
-        int currentBlock = inodes.stream()
+        var inode = findEntry(parent, name);
+        if (inode == null) {
+            return Configuration.noAddressMarker;
+        }
+        return inode.isPacked() ? Configuration.inlineDataMarker : inode.getBlock();
+    }
+
+    protected Inode findEntry(MetaDataBlock dir, String name) throws IOException {
+        if (dir.isIndexed()) {
+            return directoryTree.find(readTreeHeader(dir), name);
+        }
+        return readInodes(dir).stream()
             .filter(inode -> inode.getName().equals(name))
             .findAny()
-            .map(Inode::getBlock)
-            .orElse(Configuration.noAddressMarker);
+            .orElse(null);
+    }
 
-        if (currentBlock == Configuration.noAddressMarker) {
-            throw new IllegalArgumentException("Directory not found");
+    protected List<Inode> listEntries(MetaDataBlock dir) throws IOException {
+        if (dir.isIndexed()) {
+            return directoryTree.list(readTreeHeader(dir));
         }
-        return currentBlock;
+        return readInodes(dir);
     }
 
-    protected int occupyBlocks(int dataFullSize) {
-        var dataInDataBlocksSize = dataFullSize - (descriptor.getBlockSize() - MetaDataBlock.META_BYTES);
-        if (dataInDataBlocksSize <= 0) {
-            return 1;
+    /**
+     * Up to {@code limit} entries following {@code startAfter} in name order, from the first one if it is
+     * {@code null}. Trees ordered by name are only read as far as needed, other directories are read as a whole.
+     */
+    protected List<Inode> listEntries(MetaDataBlock dir, String startAfter, int limit) throws IOException {
+        if (dir.isIndexed() && dir.isSorted()) {
+            return directoryTree.list(readTreeHeader(dir), startAfter, limit);
         }
-        var occupiedBlocks = (int) Math.ceil((double) dataInDataBlocksSize / (descriptor.getBlockSize() - DataBlock.META_BYTES));
-        return occupiedBlocks + 1;
+        return listEntries(dir).stream()
+            .filter(inode -> startAfter == null || inode.getName().compareTo(startAfter) > 0)
+            .sorted(Comparator.comparing(Inode::getName))
+            .limit(limit)
+            .toList();
     }
 
-    protected List<Integer> getAvailableBlocks(int numberOfBlocks) {
-        return allocationTable.getAvailableBlocks(numberOfBlocks);
+    /**
+     * Entries whose name starts with the given prefix in name order.
+     */
+    protected List<Inode> listEntriesWithPrefix(MetaDataBlock dir, String prefix) throws IOException {
+        if (dir.isIndexed() && dir.isSorted()) {
+            return directoryTree.list(readTreeHeader(dir), prefix);
+        }
+        return listEntries(dir).stream()
+            .filter(inode -> inode.getName().startsWith(prefix))
+            .sorted(Comparator.comparing(Inode::getName))
+            .toList();
     }
 
-    protected void allocateBlocks(List<Integer> blocks) {
-        allocationTable.allocateBlocks(blocks);
+    protected boolean isEmptyDir(MetaDataBlock dir) {
+        if (dir.isIndexed()) {
+            return readTreeHeader(dir).count() == 0;
+        }
+        return dir.getDataFullSize() == 0;
     }
 
-    protected void freeBlocks(List<Integer> blocks) {
-        allocationTable.freeBlocks(blocks);
-    }
-
-    protected void writeFile(String name, byte[] bytes, List<Integer> blocks) throws IOException {
-        if (blocks.size() == 1) {
-            var dataBlock = new MetaDataBlock(
-                ByteArrayTransformer.fromString(name),
-                bytes.length,
-                false,
-                Arrays.copyOfRange(bytes, 0, bytes.length)
-            );
-            writeBlock(dataBlock, blocks.getFirst());
+    /**
+     * Adds an entry, callers make sure there is none with the same name. Flat directories growing past their
+     * metadata block, or past {@link Configuration#directoryIndexThreshold} entries in the fixed format, are
+     * converted to a {@link DirectoryTree}.
+     */
+    protected void addEntry(MetaDataBlock dir, int position, Inode inode) throws IOException {
+        inode = fitEntry(dir, position, inode);
+        if (dir.isIndexed()) {
+            writeTreeHeader(dir, position, directoryTree.insert(readTreeHeader(dir), inode));
+            return;
+        }
+        if (dir.isCompact()) {
+            var inodes = readInodes(dir);
+            inodes.add(inode);
+            writeCompactDir(dir, position, inodes);
+            return;
+        }
+
+        var entries = dir.getDataFullSize() / Inode.BYTES;
+        if (entries + 1 > Configuration.directoryIndexThreshold) {
+            var inodes = readInodes(dir);
+            inodes.add(inode);
+            toIndexedDir(dir, position, inodes);
         } else {
-            var dataIndex = 0;
-            for (int i = 0; i < blocks.size() - 1; i++) {
-                int capacity;
-                if (i == 0) {
-                    capacity = descriptor.getBlockSize() - MetaDataBlock.META_BYTES;
-                    var dataBlock = new MetaDataBlock(
-                        ByteArrayTransformer.fromString(name),
-                        bytes.length,
-                        false,
-                        Configuration.noAddressMarker,
-                        blocks.get(i + 1),
-                        Arrays.copyOfRange(bytes, dataIndex, dataIndex + capacity)
-                    );
-                    writeBlock(dataBlock, blocks.get(i));
-                } else {
-                    capacity = descriptor.getBlockSize() - DataBlock.META_BYTES;
-                    var dataBlock = new DataBlock(
-                        blocks.get(i - 1),
-                        blocks.get(i + 1),
-                        Arrays.copyOfRange(bytes, dataIndex, dataIndex + capacity)
-                    );
-                    writeBlock(dataBlock, blocks.get(i));
-                }
-                dataIndex += capacity;
-            }
+            appendChained(dir, position, ByteArrayTransformer.fromInodesList(List.of(inode)));
+        }
+    }
+
+    /**
+     * Returns the removed entry or {@code null} if there is none with the given name.
+     */
+    protected Inode removeEntry(MetaDataBlock dir, int position, String name) throws IOException {
+        var inode = findEntry(dir, name);
+        if (inode == null) {
+            return null;
+        }
+
+        if (dir.isIndexed()) {
+            writeTreeHeader(dir, position, directoryTree.remove(readTreeHeader(dir), name));
+            return inode;
+        }
+        if (dir.isCompact()) {
+            var inodes = readInodes(dir);
+            inodes.remove(indexOf(inodes, name));
+            writeCompactDir(dir, position, inodes);
+            return inode;
+        }
 
-            var dataBlock = new DataBlock(
-                blocks.get(blocks.size() - 2),
-                Arrays.copyOfRange(bytes, dataIndex, bytes.length)
-            );
-            writeBlock(dataBlock, blocks.getLast());
+        var inodes = readInodes(dir);
+        var index = indexOf(inodes, name);
+        var last = inodes.size() - 1;
+        if (index != last) {
+            overwriteChained(dir, position, index * Inode.BYTES, ByteArrayTransformer.fromInodesList(List.of(inodes.get(last))));
         }
+        truncateChained(dir, position, last * Inode.BYTES);
+        return inode;
     }
 
-    protected void writeFile(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
-        if (metaDataBlock.getDataFullSize() <= bytes.length) {
-            write(metaDataBlock, position, bytes, true);
-        } else if (metaDataBlock.getDataFullSize() > bytes.length) {
-            shrink(metaDataBlock, position, bytes);
+    protected void renameEntry(MetaDataBlock dir, int position, String name, String newName) throws IOException {
+        if (dir.isIndexed()) {
+            var inode = findEntry(dir, name);
+            if (inode == null) {
+                return;
+            }
+            var header = directoryTree.remove(readTreeHeader(dir), name);
+            inode.setName(newName);
+            writeTreeHeader(dir, position, directoryTree.insert(header, inode));
+            return;
+        }
+
+        var inodes = readInodes(dir);
+        var index = indexOf(inodes, name);
+        if (index >= 0 && dir.isCompact()) {
+            inodes.get(index).setName(newName);
+            writeCompactDir(dir, position, inodes);
+        } else if (index >= 0) {
+            var inode = inodes.get(index);
+            inode.setName(newName);
+            overwriteChained(dir, position, index * Inode.BYTES, ByteArrayTransformer.fromInodesList(List.of(inode)));
         }
     }
 
-    protected void appendFile(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
-        Map<Integer, DataBlock> blocksToWrite = new HashMap<>();
-        metaDataBlock.setDataFullSize(metaDataBlock.getDataFullSize() + bytes.length);
-        blocksToWrite.put(position, metaDataBlock);
+    /**
+     * Replaces the entry with the same name, which must exist.
+     */
+    protected void updateEntry(MetaDataBlock dir, int position, Inode inode) throws IOException {
+        inode = fitEntry(dir, position, inode);
+        if (dir.isIndexed()) {
+            var header = directoryTree.remove(readTreeHeader(dir), inode.getName());
+            writeTreeHeader(dir, position, directoryTree.insert(header, inode));
+            return;
+        }
 
-        DataBlock dataBlock = metaDataBlock;
-        var currentPosition = position;
-        var dataIndex = 0;
+        var inodes = readInodes(dir);
+        var index = indexOf(inodes, inode.getName());
+        if (dir.isCompact()) {
+            inodes.set(index, inode);
+            writeCompactDir(dir, position, inodes);
+        } else {
+            overwriteChained(dir, position, index * Inode.BYTES, ByteArrayTransformer.fromInodesList(List.of(inode)));
+        }
+    }
 
-        while (dataBlock.hasNextBlock()) {
-            dataBlock = readDataBlockMetaData(currentPosition);
-            currentPosition = dataBlock.getNextBlock();
+    /**
+     * Directories in the fixed format cannot hold inline or packed files, files added to them get a block of their
+     * own.
+     */
+    private Inode fitEntry(MetaDataBlock dir, int position, Inode inode) throws IOException {
+        if (!inode.isStoredWithEntry() || dir.isCompact()) {
+            return inode;
         }
+        var block = writeNewFile(inode.getName(), readEntryData(inode), position);
+        removeEntryData(inode);
+        return new Inode(inode.getName(), block, false);
+    }
 
-        var capacity = descriptor.getBlockSize() - dataBlock.getMetaDataSize();
-        List<Integer> availableBlocks = new ArrayList<>();
+    /**
+     * Data of a file kept with its directory entry, inline or in a packed block.
+     */
+    protected byte[] readEntryData(Inode inode) throws IOException {
+        return inode.isPacked() ? packedBlocks.read(inode.getBlock(), inode.getSlot()) : inode.getData();
+    }
 
-        if (dataBlock.getDataSize() + bytes.length < capacity) {
-            var tempBytes = new byte[dataBlock.getDataSize() + bytes.length];
-            System.arraycopy(dataBlock.getData(), 0, tempBytes, 0, dataBlock.getDataSize());
-            System.arraycopy(bytes, dataIndex, tempBytes, dataBlock.getDataSize(), bytes.length);
+    /**
+     * Stores the data of a small file in a packed block, returns its entry.
+     */
+    protected Inode writePacked(String name, byte[] data) throws IOException {
+        var slot = packedBlocks.write(data, packedClaims());
+        return new Inode(name, slot.block(), slot.slot());
+    }
 
-            dataBlock.setData(tempBytes);
-            blocksToWrite.put(currentPosition, dataBlock);
-        } else {
-            var tempBytes = new byte[capacity];
-            System.arraycopy(dataBlock.getData(), 0, tempBytes, 0, dataBlock.getDataSize());
-            System.arraycopy(bytes, dataIndex, tempBytes, dataBlock.getDataSize(), capacity);
+    /**
+     * Replaces the data of a packed file in its slot, returns {@code false} if it has to move elsewhere.
+     */
+    protected boolean updatePacked(Inode inode, byte[] data) throws IOException {
+        return packedBlocks.update(inode.getBlock(), inode.getSlot(), data, packedClaims());
+    }
 
-            dataBlock.setData(tempBytes);
-            dataIndex += capacity;
-            blocksToWrite.put(currentPosition, dataBlock);
+    /**
+     * Frees the storage of a file kept with its directory entry once the entry is gone. Within an operation a packed
+     * slot is only freed after it has committed.
+     */
+    protected void removeEntryData(Inode inode) throws IOException {
+        if (inode.isPacked()) {
+            packedBlocks.remove(inode.getBlock(), inode.getSlot(), packedClaims());
+        }
+    }
 
-            var requiredBlocks = occupyBlocks(bytes.length - dataIndex);
-            availableBlocks = getAvailableBlocks(requiredBlocks);
-            capacity = descriptor.getBlockSize() - DataBlock.META_BYTES;
-            for (var block : availableBlocks) {
-                dataBlock.setNextBlock(block);
-                dataBlock = new DataBlock(currentPosition, Arrays.copyOfRange(bytes, dataIndex, Math.min(bytes.length, dataIndex + capacity)));
-                currentPosition = block;
-                blocksToWrite.put(block, dataBlock);
-            }
+    private PackedBlocks.Claims packedClaims() {
+        var tx = transaction.get();
+        return tx != null ? tx.packed : null;
+    }
+
+    /**
+     * Frees the packed slots a committed operation dropped. This runs as an operation of its own after the locks of
+     * the one dropping them are released, no entry references the slots anymore. If it fails the slots are lost
+     * until their blocks are freed, but nothing references them.
+     */
+    private void removePackedSlots(List<PackedBlocks.Slot> slots) throws IOException {
+        if (!slots.isEmpty()) {
+            change(() -> packedBlocks.removeAll(slots, packedClaims()));
         }
+    }
 
-        for (var entry : blocksToWrite.entrySet()) {
-            writeBlock(entry.getValue(), entry.getKey());
+    private static int indexOf(List<Inode> inodes, String name) {
+        for (int i = 0; i < inodes.size(); i++) {
+            if (inodes.get(i).getName().equals(name)) {
+                return i;
+            }
         }
+        return -1;
+    }
 
-        allocateBlocks(availableBlocks);
+    private DirectoryTree.Header readTreeHeader(MetaDataBlock dir) {
+        return DirectoryTree.Header.fromByteArray(dir.getData(),
+            new DirectoryTree.Format(dir.isCompact(), dir.isSorted()));
     }
 
-    protected void writeDir(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
-        if (metaDataBlock.getDataFullSize() <= bytes.length) {
-            write(metaDataBlock, position, bytes, metaDataBlock.getDataFullSize() == bytes.length);
-        } else if (metaDataBlock.getDataFullSize() > bytes.length) {
-            shrink(metaDataBlock, position, bytes);
+    private void writeTreeHeader(MetaDataBlock dir, int position, DirectoryTree.Header header) throws IOException {
+        dir.setData(header.toByteArray());
+        dir.setDataFullSize(DirectoryTree.Header.BYTES);
+        writeBlock(dir, position);
+    }
+
+    /**
+     * Compact flat directories are kept within their metadata block, so every update writes a single block. Once
+     * the entries don't fit anymore the directory becomes a tree.
+     */
+    private void writeCompactDir(MetaDataBlock dir, int position, List<Inode> inodes) throws IOException {
+        var bytes = ByteArrayTransformer.fromCompactInodesList(inodes);
+        if (!fitsInline(bytes.length)) {
+            toIndexedDir(dir, position, inodes);
+            return;
         }
+        dir.setData(bytes);
+        dir.setDataFullSize(bytes.length);
+        writeBlock(dir, position);
     }
 
-    protected void deleteDirOrFile(MetaDataBlock metaDataBlock, int position) throws IOException {
-        List<Integer> orphanedBlocks = new ArrayList<>();
-        orphanedBlocks.add(position);
+    /**
+     * Rewrites a flat directory as a tree in place, so the block referenced by its parent stays the same. The tree
+     * always uses the current format.
+     */
+    private void toIndexedDir(MetaDataBlock dir, int position, List<Inode> inodes) throws IOException {
+        var chainedBlocks = directoryBlocks(dir);
+        var header = directoryTree.create(inodes, DirectoryTree.Format.CURRENT);
+        var indexedDir = new MetaDataBlock(dir.getName(), 0,
+            MetaDataBlock.DIR_FLAG | MetaDataBlock.INDEXED_FLAG | MetaDataBlock.COMPACT_FLAG | MetaDataBlock.SORTED_FLAG,
+            Configuration.noAddressMarker, Configuration.noAddressMarker, new byte[0]);
+        writeTreeHeader(indexedDir, position, header);
+        freeBlocks(chainedBlocks);
+    }
 
-        DataBlock dataBlock = metaDataBlock;
+    /**
+     * Rewrites a directory kept in the fixed entry format, or in a tree ordered by hash, in the current format in
+     * place. Returns whether the directory had to be rewritten.
+     */
+    protected boolean migrateDirectory(MetaDataBlock dir, int position) throws IOException {
+        if (dir.isCompact() && (!dir.isIndexed() || dir.isSorted())) {
+            return false;
+        }
+        var inodes = listEntries(dir);
+        var blocks = directoryBlocks(dir);
+        writeCompactDir(new MetaDataBlock(dir.getName()), position, inodes);
+        freeBlocks(blocks);
+        return true;
+    }
+
+    /**
+     * Blocks holding the entries of a directory besides its metadata block.
+     */
+    private List<Integer> directoryBlocks(MetaDataBlock dir) throws IOException {
+        if (dir.isIndexed()) {
+            return directoryTree.blocks(readTreeHeader(dir));
+        }
+        List<Integer> chainedBlocks = new ArrayList<>();
+        DataBlock dataBlock = dir;
         while (dataBlock.hasNextBlock()) {
-            orphanedBlocks.add(dataBlock.getNextBlock());
+            chainedBlocks.add(dataBlock.getNextBlock());
             dataBlock = readDataBlockMetaData(dataBlock.getNextBlock());
         }
-
-        freeBlocks(orphanedBlocks);
+        return chainedBlocks;
     }
 
-    private void shrink(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
-        List<Integer> orphanedBlocks = new ArrayList<>();
+    protected List<Integer> getAvailableBlocks(int numberOfBlocks) throws IOException {
+        return getAvailableBlocks(numberOfBlocks, Configuration.noAddressMarker);
+    }
 
-        Map<Integer, DataBlock> blocksToWrite = new HashMap<>();
-        metaDataBlock.setDataFullSize(bytes.length);
-        blocksToWrite.put(position, metaDataBlock);
+    /**
+     * Blocks freed by operations still waiting for a periodic force are only released once it happened, so running
+     * short of space forces them right away.
+     */
+    protected List<Integer> getAvailableBlocks(int numberOfBlocks, int goal) throws IOException {
+        try {
+            return allocationTable.getAvailableBlocks(numberOfBlocks, goal);
+        } catch (IllegalStateException e) {
+            if (!hasDeferred()) {
+                throw e;
+            }
+            syncCommitted();
+            return allocationTable.getAvailableBlocks(numberOfBlocks, goal);
+        }
+    }
 
-        if (!metaDataBlock.hasNextBlock()) {
-            metaDataBlock.setData(bytes);
-        } else {
-            DataBlock dataBlock = metaDataBlock;
-            var currentPosition = position;
-            var dataIndex = 0;
+    protected int getEmptiestGroupStart() {
+        return allocationTable.getEmptiestGroupStart();
+    }
 
-            while (dataBlock.hasNextBlock()) {
-                dataBlock = readDataBlock(currentPosition);
-                dataBlock.setData(Arrays.copyOfRange(bytes, dataIndex, Math.min(bytes.length, dataIndex + dataBlock.getDataSize())));
-                blocksToWrite.put(currentPosition, dataBlock);
-
-                currentPosition = dataBlock.getNextBlock();
-                dataIndex += dataBlock.getDataSize();
-                if (dataIndex >= bytes.length) {
-                    dataBlock.setNextBlock(Configuration.noAddressMarker);
-                    orphanedBlocks.add(currentPosition);
-                }
+    protected void allocateBlocks(List<Integer> blocks) {
+        allocationTable.allocateBlocks(blocks);
+        var tx = transaction.get();
+        markWritten(tx);
+        if (tx != null && journal != null) {
+            for (var extent : toExtents(blocks)) {
+                tx.allocations.add(new JournalRecord.AllocationChange(extent, sequence.incrementAndGet(), true));
             }
-            dataBlock = readDataBlockMetaData(currentPosition);
-            while (dataBlock.hasNextBlock()) {
-                orphanedBlocks.add(dataBlock.getNextBlock());
-                dataBlock = readDataBlockMetaData(dataBlock.getNextBlock());
+        }
+    }
+
+    protected void releaseBlocks(List<Integer> blocks) {
+        allocationTable.releaseBlocks(blocks);
+    }
+
+    /**
+     * Within an operation the blocks are only freed once it has committed, so they cannot be reused while the
+     * journal still points at them.
+     */
+    protected void freeBlocks(List<Integer> blocks) {
+        var tx = transaction.get();
+        markWritten(tx);
+        if (tx == null || journal == null) {
+            for (var block : blocks) {
+                allocationTable.untrackPackedBlock(block);
             }
+            release(toExtents(blocks));
+            return;
+        }
+        for (var block : blocks) {
+            allocationTable.untrackPackedBlock(block);
         }
+        for (var extent : toExtents(blocks)) {
+            tx.allocations.add(new JournalRecord.AllocationChange(extent, sequence.incrementAndGet(), false));
+            tx.freedExtents.add(extent);
+        }
+    }
 
-        for (var entry : blocksToWrite.entrySet()) {
-            writeBlock(entry.getValue(), entry.getKey());
+    protected void freeExtents(List<Extent> extents) {
+        var tx = transaction.get();
+        markWritten(tx);
+        if (tx == null || journal == null) {
+            release(extents);
+            return;
         }
+        for (var extent : extents) {
+            tx.allocations.add(new JournalRecord.AllocationChange(extent, sequence.incrementAndGet(), false));
+            tx.freedExtents.add(extent);
+        }
+    }
 
-        freeBlocks(orphanedBlocks);
+    /**
+     * Frees the given runs. Blocks a snapshot still reads are free in the table as well but held back until it is
+     * closed, so a crash meanwhile does not lose them.
+     */
+    private void release(List<Extent> extents) {
+        synchronized (pinnedBlocks) {
+            allocationTable.holdExtents(pinnedBlocks.hold(extents));
+        }
+        allocationTable.freeExtents(extents);
     }
 
-    private void write(MetaDataBlock metaDataBlock, int position, byte[] bytes, boolean overwrite) throws IOException {
-        Map<Integer, DataBlock> blocksToWrite = new HashMap<>();
-        metaDataBlock.setDataFullSize(bytes.length);
-        blocksToWrite.put(position, metaDataBlock);
+    private static List<Extent> toExtents(List<Integer> blocks) {
+        List<Extent> extents = new ArrayList<>();
+        var i = 0;
+        while (i < blocks.size()) {
+            var start = blocks.get(i);
+            var length = 1;
+            while (i + length < blocks.size() && blocks.get(i + length) == start + length) {
+                length++;
+            }
+            extents.add(new Extent(start, length));
+            i += length;
+        }
+        return extents;
+    }
 
-        DataBlock dataBlock = metaDataBlock;
-        var currentPosition = position;
-        var dataIndex = 0;
+    /**
+     * Writes a new file and allocates its blocks, returns the block of its metadata. Files that fit next to the
+     * metadata header stay in a single block, larger ones are laid out in extents. As the size is known up front
+     * the metadata and data blocks are taken in one request, which keeps them together in a single run if there is
+     * one that fits, preferably in the allocation group of {@code goal}.
+     */
+    protected int writeNewFile(String name, byte[] bytes, int goal) throws IOException {
+        var inline = fitsInline(bytes.length);
+        var blocks = getAvailableBlocks(inline ? 1 : 1 + dataBlocks(bytes.length), goal);
+        var position = blocks.getFirst();
 
-        while (dataBlock.hasNextBlock()) {
-            if (overwrite) {
-                dataBlock = readDataBlock(currentPosition);
-                dataBlock.setData(Arrays.copyOfRange(bytes, dataIndex, dataIndex + dataBlock.getDataSize()));
-                blocksToWrite.put(currentPosition, dataBlock);
+        try {
+            if (inline) {
+                var metaDataBlock = new MetaDataBlock(ByteArrayTransformer.fromString(name), bytes.length, false,
+                    Arrays.copyOf(bytes, bytes.length));
+                writeBlock(metaDataBlock, position);
             } else {
-                dataBlock = readDataBlockMetaData(currentPosition);
+                var extents = new ExtentMap();
+                extents.append(blocks.subList(1, blocks.size()));
+                var head = new MetaDataBlock(ByteArrayTransformer.fromString(name), bytes.length, false, true,
+                    Configuration.noAddressMarker, Configuration.noAddressMarker, new byte[0]);
+                writeData(extents, 0, bytes, 0, bytes.length);
+                writeExtentTable(head, position, extents);
             }
+        } catch (IOException | RuntimeException e) {
+            releaseBlocks(blocks);
+            throw e;
+        }
 
-            currentPosition = dataBlock.getNextBlock();
-            dataIndex += dataBlock.getDataSize();
+        allocateBlocks(blocks);
+        return position;
+    }
+
+    /**
+     * Copy-on-write moves every file that does not fit into its metadata block to extents, as chains are
+     * rewritten in place.
+     */
+    protected void writeFile(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
+        if (metaDataBlock.hasExtents() || ((!metaDataBlock.hasNextBlock() || copyOnWrite) && !fitsInline(bytes.length))) {
+            writeExtents(metaDataBlock, position, bytes);
+        } else if (metaDataBlock.getDataFullSize() <= bytes.length) {
+            write(metaDataBlock, position, bytes);
+        } else if (metaDataBlock.getDataFullSize() > bytes.length) {
+            shrink(metaDataBlock, position, bytes);
+        }
+    }
+
+    protected void appendFile(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
+        if (metaDataBlock.hasExtents()) {
+            writeBytes(metaDataBlock, position, metaDataBlock.getDataFullSize(), bytes, 0, bytes.length);
+            return;
+        }
+        if (!metaDataBlock.hasNextBlock() && !fitsInline(metaDataBlock.getDataSize() + bytes.length)) {
+            var data = Arrays.copyOf(metaDataBlock.getData(), metaDataBlock.getDataSize() + bytes.length);
+            System.arraycopy(bytes, 0, data, metaDataBlock.getDataSize(), bytes.length);
+            writeExtents(metaDataBlock, position, data);
+            return;
+        }
+        if (copyOnWrite && metaDataBlock.hasNextBlock()) {
+            writeBytes(metaDataBlock, position, metaDataBlock.getDataFullSize(), bytes, 0, bytes.length);
+            return;
+        }
+
+        appendChained(metaDataBlock, position, bytes);
+    }
+
+    /**
+     * Appends to a chain of blocks, only the tail, the head and newly linked blocks are written.
+     */
+    private void appendChained(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
+        Map<Integer, DataBlock> blocksToWrite = new HashMap<>();
+        metaDataBlock.setDataFullSize(metaDataBlock.getDataFullSize() + bytes.length);
+        blocksToWrite.put(position, metaDataBlock);
+
+        DataBlock dataBlock = metaDataBlock;
+        var currentPosition = findTail(metaDataBlock, position);
+        if (currentPosition != position) {
+            dataBlock = readDataBlock(currentPosition);
         }
 
         var capacity = descriptor.getBlockSize() - dataBlock.getMetaDataSize();
-        List<Integer> availableBlocks = new ArrayList<>();
+        var fill = Math.min(bytes.length, capacity - dataBlock.getDataSize());
+        var tempBytes = Arrays.copyOf(dataBlock.getData(), dataBlock.getDataSize() + fill);
+        System.arraycopy(bytes, 0, tempBytes, dataBlock.getDataSize(), fill);
+        dataBlock.setData(tempBytes);
+        blocksToWrite.put(currentPosition, dataBlock);
 
-        if (bytes.length - dataIndex < capacity) {
-            dataBlock.setData(Arrays.copyOfRange(bytes, dataIndex, bytes.length));
-            blocksToWrite.put(currentPosition, dataBlock);
-        } else {
-            dataBlock.setData(Arrays.copyOfRange(bytes, dataIndex, dataIndex + capacity));
-            dataIndex += capacity;
-            blocksToWrite.put(currentPosition, dataBlock);
+        var availableBlocks = chainBlocks(dataBlock, currentPosition, bytes, fill, blocksToWrite);
+        setTail(metaDataBlock, position, currentPosition, availableBlocks);
 
-            var requiredBlocks = occupyBlocks(bytes.length - dataIndex);
-            availableBlocks = getAvailableBlocks(requiredBlocks);
-            capacity = descriptor.getBlockSize() - DataBlock.META_BYTES;
-            for (var block : availableBlocks) {
-                dataBlock.setNextBlock(block);
-                dataBlock = new DataBlock(currentPosition, Arrays.copyOfRange(bytes, dataIndex, Math.min(bytes.length, dataIndex + capacity)));
-                currentPosition = block;
-                blocksToWrite.put(block, dataBlock);
+        try {
+            for (var entry : blocksToWrite.entrySet()) {
+                writeBlock(entry.getValue(), entry.getKey());
             }
+        } catch (IOException e) {
+            releaseBlocks(availableBlocks);
+            throw e;
         }
 
-        for (var entry : blocksToWrite.entrySet()) {
-            writeBlock(entry.getValue(), entry.getKey());
+        allocateBlocks(availableBlocks);
+    }
+
+    protected boolean fitsInline(int size) {
+        return size <= descriptor.getBlockSize() - MetaDataBlock.META_BYTES;
+    }
+
+    protected ExtentMap readExtents(MetaDataBlock metaDataBlock) throws IOException {
+        if (!metaDataBlock.hasExtents()) {
+            return new ExtentMap();
         }
+        var table = new ByteArrayOutputStream();
+        table.writeBytes(metaDataBlock.getData());
 
-        allocateBlocks(availableBlocks);
+        DataBlock dataBlock = metaDataBlock;
+        var chain = new ChainReader();
+        while (dataBlock.hasNextBlock()) {
+            dataBlock = chain.next(dataBlock.getNextBlock(), Configuration.readAheadBlocks);
+            table.writeBytes(dataBlock.getData());
+        }
+        return ExtentMap.fromByteArray(table.toByteArray());
     }
 
+    /**
+     * Reads {@code length} bytes of an extent file starting at {@code offset}, one partition read per extent.
+     */
+    protected void readData(ExtentMap extents, int offset, byte[] bytes, int index, int length) throws IOException {
+        var blockSize = descriptor.getBlockSize();
+        while (length > 0) {
+            var extentIndex = extents.indexOf(offset / blockSize);
+            var extent = extents.getExtents().get(extentIndex);
+            var extentOffset = offset - extents.getFirstBlock(extentIndex) * blockSize;
+            var size = Math.min(length, extent.length() * blockSize - extentOffset);
+
+            partition.readBytes(relativePosition(extent.start()) + extentOffset, bytes, index, size);
+            offset += size;
+            index += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Counterpart of {@link #readData}. Raw data blocks never go through the block cache; blocks holding headers are
+     * always written through it before anything points at them, so entries left for reused blocks are never read.
+     */
+    protected void writeData(ExtentMap extents, int offset, byte[] bytes, int index, int length) throws IOException {
+        var blockSize = descriptor.getBlockSize();
+        while (length > 0) {
+            var extentIndex = extents.indexOf(offset / blockSize);
+            var extent = extents.getExtents().get(extentIndex);
+            var extentOffset = offset - extents.getFirstBlock(extentIndex) * blockSize;
+            var size = Math.min(length, extent.length() * blockSize - extentOffset);
+
+            dropPendingBlocks(extent.start(), extentOffset, size);
+            partition.writeBytes(bytes, index, size, relativePosition(extent.start()) + extentOffset);
+            groupForce.written(size);
+            markWritten(transaction.get());
+            offset += size;
+            index += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Raw data is written in place right away and made durable by the next commit. A block reused for data may still
+     * have an image pending from an operation that freed it, or buffered for write-back, that image must not
+     * overwrite the data later.
+     */
+    private void dropPendingBlocks(int start, int offset, int length) {
+        if (pendingBlocks.isEmpty() && (writeBack == null || writeBack.isEmpty()) || length <= 0) {
+            return;
+        }
+        var blockSize = descriptor.getBlockSize();
+        for (int block = start + offset / blockSize; block <= start + (offset + length - 1) / blockSize; block++) {
+            pendingBlocks.remove(block);
+            if (writeBack != null) {
+                writeBack.discard(block);
+            }
+        }
+    }
+
+    /**
+     * Replaces the content of a file with {@code bytes} in extent layout, reusing the blocks it already has unless
+     * copy-on-write asks for fresh ones near them. Single block files are converted in place so the block referenced
+     * by the parent directory stays the same.
+     */
+    private void writeExtents(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
+        var extents = readExtents(metaDataBlock);
+        List<Integer> availableBlocks;
+        List<Extent> orphanedExtents;
+        if (copyOnWrite) {
+            orphanedExtents = new ArrayList<>(extents.getExtents());
+            var goal = orphanedExtents.isEmpty() ? position : orphanedExtents.getFirst().start();
+            extents = new ExtentMap();
+            availableBlocks = growExtents(extents, goal, bytes.length);
+        } else {
+            availableBlocks = growExtents(extents, position, bytes.length);
+            orphanedExtents = extents.truncate(dataBlocks(bytes.length));
+        }
+
+        var head = metaDataBlock.hasExtents()
+            ? metaDataBlock
+            : new MetaDataBlock(metaDataBlock.getName(), 0, false, true, Configuration.noAddressMarker,
+            Configuration.noAddressMarker, new byte[0]);
+        head.setDataFullSize(bytes.length);
+
+        try {
+            writeData(extents, 0, bytes, 0, bytes.length);
+            writeExtentTable(head, position, extents);
+        } catch (IOException | RuntimeException e) {
+            releaseBlocks(availableBlocks);
+            throw e;
+        }
+
+        allocateBlocks(availableBlocks);
+        freeExtents(orphanedExtents);
+    }
+
+    /**
+     * Writes {@code length} bytes at {@code offset}, growing the file if needed; a gap past the current end is
+     * filled with zeros. Files that no longer fit into a single block are converted to extents first. Writes to an
+     * extent file only touch the blocks in range and the metadata block, with copy-on-write blocks holding bytes of
+     * the file are replaced by fresh ones instead.
+     */
+    protected void writeBytes(MetaDataBlock metaDataBlock, int position, int offset, byte[] bytes, int index,
+                              int length) throws IOException {
+        var size = metaDataBlock.getDataFullSize();
+        var newSize = Math.max(size, offset + length);
+
+        if (!metaDataBlock.hasExtents()) {
+            if (!metaDataBlock.hasNextBlock() && fitsInline(newSize)) {
+                var data = Arrays.copyOf(metaDataBlock.getData(), newSize);
+                System.arraycopy(bytes, index, data, offset, length);
+                metaDataBlock.setData(data);
+                metaDataBlock.setDataFullSize(newSize);
+                writeBlock(metaDataBlock, position);
+                return;
+            }
+            metaDataBlock = toExtents(metaDataBlock, position);
+        }
+
+        var extents = readExtents(metaDataBlock);
+        var availableBlocks = growExtents(extents, position, newSize);
+        var shadow = Shadow.NONE;
+
+        try {
+            if (copyOnWrite) {
+                shadow = shadow(extents, offset, length, size);
+            }
+            if (offset > size) {
+                writeZeros(extents, size, offset - size);
+            }
+            writeData(extents, offset, bytes, index, length);
+            metaDataBlock.setDataFullSize(newSize);
+            writeExtentTable(metaDataBlock, position, extents);
+        } catch (IOException | RuntimeException e) {
+            releaseBlocks(availableBlocks);
+            releaseBlocks(shadow.blocks());
+            throw e;
+        }
+
+        allocateBlocks(availableBlocks);
+        allocateBlocks(shadow.blocks());
+        freeExtents(shadow.replaced());
+    }
+
+    protected void truncateFile(MetaDataBlock metaDataBlock, int position, int size) throws IOException {
+        if (size >= metaDataBlock.getDataFullSize()) {
+            return;
+        }
+        if (!metaDataBlock.hasExtents()) {
+            var data = new byte[size];
+            readBytes(metaDataBlock, 0, data, 0, size);
+            writeFile(metaDataBlock, position, data);
+            return;
+        }
+
+        var extents = readExtents(metaDataBlock);
+        var orphanedExtents = extents.truncate(dataBlocks(size));
+        metaDataBlock.setDataFullSize(size);
+        writeExtentTable(metaDataBlock, position, extents);
+        freeExtents(orphanedExtents);
+    }
+
+    /**
+     * Hands file content straight from the partition to {@code target}, stops at the first partial transfer.
+     */
+    protected long transferTo(MetaDataBlock metaDataBlock, int offset, int count, WritableByteChannel target) throws IOException {
+        count = Math.max(0, Math.min(count, metaDataBlock.getDataFullSize() - offset));
+        if (count == 0) {
+            return 0;
+        }
+        if (!metaDataBlock.hasExtents()) {
+            var data = new byte[count];
+            readBytes(metaDataBlock, offset, data, 0, count);
+            return target.write(ByteBuffer.wrap(data));
+        }
+
+        var extents = readExtents(metaDataBlock);
+        var blockSize = descriptor.getBlockSize();
+        long transferred = 0;
+        while (transferred < count) {
+            var extentIndex = extents.indexOf(offset / blockSize);
+            var extent = extents.getExtents().get(extentIndex);
+            var extentOffset = offset - extents.getFirstBlock(extentIndex) * blockSize;
+            var size = (int) Math.min(count - transferred, extent.length() * blockSize - extentOffset);
+
+            var written = partition.transferTo(relativePosition(extent.start()) + extentOffset, size, target);
+            transferred += written;
+            offset += (int) written;
+            if (written < size) {
+                break;
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Fills the file from {@code source} straight into the partition. As with {@link java.nio.channels.FileChannel},
+     * nothing is transferred when {@code offset} is past the end of the file. Blocks past the end are taken a chunk
+     * at a time as bytes arrive, so a generous {@code count} only costs the space the source actually fills; running
+     * out of space after some bytes arrived ends the transfer there.
+     */
+    protected long transferFrom(MetaDataBlock metaDataBlock, int position, ReadableByteChannel source, int offset,
+                                int count) throws IOException {
+        var size = metaDataBlock.getDataFullSize();
+        if (offset > size || count <= 0) {
+            return 0;
+        }
+        if (!metaDataBlock.hasExtents()) {
+            metaDataBlock = toExtents(metaDataBlock, position);
+        }
+
+        var extents = readExtents(metaDataBlock);
+        var blockCount = extents.getBlockCount();
+        List<Integer> availableBlocks = new ArrayList<>();
+        var blockSize = descriptor.getBlockSize();
+        var end = (int) Math.min(size, (long) offset + count);
+        long transferred = 0;
+        List<Integer> usedBlocks;
+        var shadow = Shadow.NONE;
+
+        try {
+            if (copyOnWrite) {
+                shadow = shadow(extents, offset, count, size);
+            }
+            while (transferred < count) {
+                if ((long) offset >= (long) extents.getBlockCount() * blockSize
+                    && !growForTransfer(extents, position, offset, (int) Math.min(count - transferred,
+                    (long) TRANSFER_CHUNK_BLOCKS * blockSize), availableBlocks, transferred == 0)) {
+                    break;
+                }
+                var extentIndex = extents.indexOf(offset / blockSize);
+                var extent = extents.getExtents().get(extentIndex);
+                var extentOffset = offset - extents.getFirstBlock(extentIndex) * blockSize;
+                var length = (int) Math.min(count - transferred, extent.length() * blockSize - extentOffset);
+
+                dropPendingBlocks(extent.start(), extentOffset, length);
+                var read = partition.transferFrom(source, relativePosition(extent.start()) + extentOffset, length);
+                groupForce.written((int) read);
+                markWritten(transaction.get());
+                transferred += read;
+                offset += (int) read;
+                if (read < length) {
+                    break;
+                }
+            }
+            if (copyOnWrite && offset < end) {
+                copyData(shadow.previous(), extents, offset, end - offset);
+            }
+
+            var newSize = Math.max(size, offset);
+            usedBlocks = availableBlocks.subList(0, Math.max(0, dataBlocks(newSize) - blockCount));
+            extents.truncate(blockCount + usedBlocks.size());
+            metaDataBlock.setDataFullSize(newSize);
+            writeExtentTable(metaDataBlock, position, extents);
+        } catch (IOException | RuntimeException e) {
+            releaseBlocks(availableBlocks);
+            releaseBlocks(shadow.blocks());
+            throw e;
+        }
+
+        releaseBlocks(availableBlocks.subList(usedBlocks.size(), availableBlocks.size()));
+        allocateBlocks(usedBlocks);
+        allocateBlocks(shadow.blocks());
+        freeExtents(shadow.replaced());
+        return transferred;
+    }
+
+    /**
+     * Adds blocks for the next {@code chunk} bytes of a transfer past the end of the file, halving the chunk while
+     * there is not enough space for it. Returns {@code false} if not even a single block is left, unless nothing was
+     * transferred yet, which fails the transfer.
+     */
+    private boolean growForTransfer(ExtentMap extents, int position, int offset, int chunk,
+                                    List<Integer> availableBlocks, boolean required) throws IOException {
+        while (true) {
+            try {
+                availableBlocks.addAll(growExtents(extents, position, offset + chunk));
+                return true;
+            } catch (IllegalStateException e) {
+                if (chunk > descriptor.getBlockSize()) {
+                    chunk = Math.max(descriptor.getBlockSize(), chunk / 2);
+                } else if (required) {
+                    throw e;
+                } else {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites a single block or chained file in extent layout and frees its former chain.
+     */
+    private MetaDataBlock toExtents(MetaDataBlock metaDataBlock, int position) throws IOException {
+        var data = readAllBytes(metaDataBlock);
+
+        List<Integer> chainedBlocks = new ArrayList<>();
+        DataBlock dataBlock = metaDataBlock;
+        while (dataBlock.hasNextBlock()) {
+            chainedBlocks.add(dataBlock.getNextBlock());
+            dataBlock = readDataBlockMetaData(dataBlock.getNextBlock());
+        }
+
+        writeExtents(metaDataBlock, position, data != null ? data : new byte[0]);
+        freeBlocks(chainedBlocks);
+        return readMetaDataBlock(position);
+    }
+
+    /**
+     * Adds the blocks a file of {@code size} bytes lacks, continuing its last extent if possible and otherwise
+     * placed near its metadata block.
+     */
+    private List<Integer> growExtents(ExtentMap extents, int position, int size) throws IOException {
+        var requiredBlocks = dataBlocks(size);
+        if (requiredBlocks <= extents.getBlockCount()) {
+            return List.of();
+        }
+        var goal = extents.getExtents().isEmpty() ? position : extents.getExtents().getLast().end();
+        var availableBlocks = getAvailableBlocks(requiredBlocks - extents.getBlockCount(), goal);
+        extents.append(availableBlocks);
+        return availableBlocks;
+    }
+
+    /**
+     * Maps the blocks of an extent file that hold its bytes from {@code offset} on for {@code length} bytes to fresh
+     * blocks, so writing them leaves what the metadata block on disk points at untouched. Bytes of the first and last
+     * of them outside of the range are copied over. The former blocks may only be freed once the metadata block
+     * pointing at the new ones is written.
+     */
+    private Shadow shadow(ExtentMap extents, int offset, int length, int size) throws IOException {
+        var end = Math.min(size, offset + length);
+        if (offset >= end) {
+            return Shadow.NONE;
+        }
+        var blockSize = descriptor.getBlockSize();
+        var firstBlock = offset / blockSize;
+        var lastBlock = (end - 1) / blockSize;
+        var blocks = getAvailableBlocks(lastBlock - firstBlock + 1, extents.getBlock(firstBlock));
+
+        try {
+            var previous = new ExtentMap(extents.getExtents());
+            var replaced = extents.replace(firstBlock, blocks);
+            if (offset > firstBlock * blockSize) {
+                copyData(previous, extents, firstBlock * blockSize, offset - firstBlock * blockSize);
+            }
+            var lastEnd = Math.min(size, (lastBlock + 1) * blockSize);
+            if (offset + length < lastEnd) {
+                copyData(previous, extents, offset + length, lastEnd - offset - length);
+            }
+            return new Shadow(blocks, replaced, previous);
+        } catch (IOException | RuntimeException e) {
+            releaseBlocks(blocks);
+            throw e;
+        }
+    }
+
+    private void copyData(ExtentMap source, ExtentMap target, int offset, int length) throws IOException {
+        var buffer = new byte[Math.min(length, descriptor.getBlockSize() * 16)];
+        while (length > 0) {
+            var size = Math.min(length, buffer.length);
+            readData(source, offset, buffer, 0, size);
+            writeData(target, offset, buffer, 0, size);
+            offset += size;
+            length -= size;
+        }
+    }
+
+    private void writeZeros(ExtentMap extents, int offset, int length) throws IOException {
+        var zeros = new byte[Math.min(length, descriptor.getBlockSize() * 16)];
+        while (length > 0) {
+            var size = Math.min(length, zeros.length);
+            writeData(extents, offset, zeros, 0, size);
+            offset += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Stores the extent table in the metadata block and, if it does not fit, in blocks chained after it. The
+     * metadata block is written last so readers never see a table pointing at blocks not written yet. With
+     * copy-on-write the chained blocks are always fresh ones.
+     */
+    private void writeExtentTable(MetaDataBlock metaDataBlock, int position, ExtentMap extents) throws IOException {
+        var table = extents.toByteArray();
+        var headCapacity = (descriptor.getBlockSize() - MetaDataBlock.META_BYTES) / Extent.BYTES * Extent.BYTES;
+        var capacity = (descriptor.getBlockSize() - DataBlock.META_BYTES) / Extent.BYTES * Extent.BYTES;
+
+        List<Integer> chainedBlocks = new ArrayList<>();
+        DataBlock dataBlock = metaDataBlock;
+        while (dataBlock.hasNextBlock()) {
+            chainedBlocks.add(dataBlock.getNextBlock());
+            dataBlock = readDataBlockMetaData(dataBlock.getNextBlock());
+        }
+
+        var requiredBlocks = (Math.max(0, table.length - headCapacity) + capacity - 1) / capacity;
+        List<Integer> orphanedBlocks = new ArrayList<>();
+        if (copyOnWrite) {
+            orphanedBlocks.addAll(chainedBlocks);
+            chainedBlocks.clear();
+        }
+        var availableBlocks = requiredBlocks > chainedBlocks.size()
+            ? getAvailableBlocks(requiredBlocks - chainedBlocks.size())
+            : List.<Integer>of();
+        chainedBlocks.addAll(availableBlocks);
+        orphanedBlocks.addAll(chainedBlocks.subList(requiredBlocks, chainedBlocks.size()));
+        chainedBlocks = chainedBlocks.subList(0, requiredBlocks);
+
+        try {
+            var dataIndex = Math.min(table.length, headCapacity);
+            var prevBlock = position;
+            for (int i = 0; i < chainedBlocks.size(); i++) {
+                var nextBlock = i + 1 < chainedBlocks.size() ? chainedBlocks.get(i + 1) : Configuration.noAddressMarker;
+                var end = Math.min(table.length, dataIndex + capacity);
+                writeBlock(new DataBlock(prevBlock, nextBlock, Arrays.copyOfRange(table, dataIndex, end)), chainedBlocks.get(i));
+                prevBlock = chainedBlocks.get(i);
+                dataIndex = end;
+            }
+
+            metaDataBlock.setNextBlock(chainedBlocks.isEmpty() ? Configuration.noAddressMarker : chainedBlocks.getFirst());
+            metaDataBlock.setData(Arrays.copyOf(table, Math.min(table.length, headCapacity)));
+            writeBlock(metaDataBlock, position);
+        } catch (IOException | RuntimeException e) {
+            releaseBlocks(availableBlocks);
+            throw e;
+        }
+
+        allocateBlocks(availableBlocks);
+        freeBlocks(orphanedBlocks);
+    }
+
+    private int dataBlocks(int size) {
+        return (int) ((size + (long) descriptor.getBlockSize() - 1) / descriptor.getBlockSize());
+    }
+
+    /**
+     * Takes a snapshot of a file, callers hold a lock on it. Only copy-on-write keeps the blocks it pins unchanged.
+     * The blocks of a chained file are listed up front, reading the snapshot never follows their links.
+     */
+    protected Snapshot takeSnapshot(MetaDataBlock metaDataBlock) throws IOException {
+        if (!copyOnWrite) {
+            throw new IllegalStateException("Snapshots need a container using copy-on-write");
+        }
+        var copy = MetaDataBlock.fromByteArray(metaDataBlock.toByteArray());
+        var extents = readExtents(copy);
+        List<Extent> pinned = new ArrayList<>(extents.getExtents());
+        List<Integer> chainedBlocks = new ArrayList<>();
+        if (!copy.hasExtents()) {
+            DataBlock dataBlock = copy;
+            while (dataBlock.hasNextBlock()) {
+                chainedBlocks.add(dataBlock.getNextBlock());
+                dataBlock = readDataBlockMetaData(dataBlock.getNextBlock());
+            }
+            pinned.addAll(toExtents(chainedBlocks));
+        }
+        return new Snapshot(copy, extents, chainedBlocks, pinnedBlocks.pin(pinned));
+    }
+
+    /**
+     * Counterpart of {@link #readBytes} for a snapshot, needs no locks as the blocks it reads never change.
+     */
+    protected int readSnapshot(Snapshot snapshot, int offset, byte[] bytes, int index, int length) throws IOException {
+        if (snapshot.isClosed()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        var metaDataBlock = snapshot.getMetaDataBlock();
+        length = Math.max(0, Math.min(length, metaDataBlock.getDataFullSize() - offset));
+        if (length == 0) {
+            return 0;
+        }
+        if (metaDataBlock.hasExtents()) {
+            readData(snapshot.getExtents(), offset, bytes, index, length);
+        } else {
+            readChain(metaDataBlock, snapshot.getChainedBlocks(), offset, bytes, index, length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads a chained file through the list of its blocks, every one but the last holding as much as fits.
+     */
+    private void readChain(MetaDataBlock metaDataBlock, List<Integer> chainedBlocks, int offset, byte[] bytes,
+                           int index, int length) throws IOException {
+        var headCapacity = descriptor.getBlockSize() - MetaDataBlock.META_BYTES;
+        var capacity = descriptor.getBlockSize() - DataBlock.META_BYTES;
+        var copied = 0;
+        if (offset < headCapacity) {
+            copied = Math.min(length, metaDataBlock.getDataSize() - offset);
+            System.arraycopy(metaDataBlock.getData(), offset, bytes, index, copied);
+        }
+        while (copied < length) {
+            var position = offset + copied - headCapacity;
+            if (position < 0 || position / capacity >= chainedBlocks.size()) {
+                throw new IOException("Chain ends before the end of the file");
+            }
+            var dataBlock = readDataBlock(chainedBlocks.get(position / capacity));
+            var size = Math.min(length - copied, dataBlock.getDataSize() - position % capacity);
+            if (size <= 0) {
+                throw new IOException("Chain ends before the end of the file");
+            }
+            System.arraycopy(dataBlock.getData(), position % capacity, bytes, index + copied, size);
+            copied += size;
+        }
+    }
+
+    /**
+     * Hands out the blocks only the snapshot still read again.
+     */
+    protected void releaseSnapshot(Snapshot snapshot) {
+        if (snapshot.close()) {
+            synchronized (pinnedBlocks) {
+                allocationTable.releaseHeldExtents(pinnedBlocks.unpin(snapshot.getPin()));
+            }
+        }
+    }
+
+    protected void deleteDirOrFile(MetaDataBlock metaDataBlock, int position) throws IOException {
+        if (metaDataBlock.hasExtents()) {
+            freeExtents(readExtents(metaDataBlock).getExtents());
+        }
+        if (metaDataBlock.isIndexed()) {
+            freeBlocks(directoryTree.blocks(readTreeHeader(metaDataBlock)));
+        }
+
+        List<Integer> orphanedBlocks = new ArrayList<>();
+        orphanedBlocks.add(position);
+
+        DataBlock dataBlock = metaDataBlock;
+        while (dataBlock.hasNextBlock()) {
+            orphanedBlocks.add(dataBlock.getNextBlock());
+            dataBlock = readDataBlockMetaData(dataBlock.getNextBlock());
+        }
+
+        freeBlocks(orphanedBlocks);
+    }
+
+    private void shrink(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
+        List<Integer> orphanedBlocks = new ArrayList<>();
+
+        Map<Integer, DataBlock> blocksToWrite = new HashMap<>();
+        metaDataBlock.setDataFullSize(bytes.length);
+
+        DataBlock dataBlock = metaDataBlock;
+        var currentPosition = position;
+        var dataIndex = 0;
+
+        while (true) {
+            var size = bytes.length - dataIndex;
+            if (dataBlock.hasNextBlock()) {
+                size = Math.min(size, dataBlock.getDataSize());
+            }
+            dataBlock.setData(Arrays.copyOfRange(bytes, dataIndex, dataIndex + size));
+            blocksToWrite.put(currentPosition, dataBlock);
+            dataIndex += size;
+
+            if (dataIndex >= bytes.length || !dataBlock.hasNextBlock()) {
+                break;
+            }
+            currentPosition = dataBlock.getNextBlock();
+            dataBlock = readDataBlockMetaData(currentPosition);
+        }
+
+        metaDataBlock.setTailBlock(currentPosition == position ? Configuration.noAddressMarker : currentPosition);
+        if (dataBlock.hasNextBlock()) {
+            var orphanedBlock = dataBlock.getNextBlock();
+            dataBlock.setNextBlock(Configuration.noAddressMarker);
+            while (orphanedBlock != Configuration.noAddressMarker) {
+                orphanedBlocks.add(orphanedBlock);
+                orphanedBlock = readDataBlockMetaData(orphanedBlock).getNextBlock();
+            }
+        }
+
+        for (var entry : blocksToWrite.entrySet()) {
+            writeBlock(entry.getValue(), entry.getKey());
+        }
+
+        freeBlocks(orphanedBlocks);
+    }
+
+    private void write(MetaDataBlock metaDataBlock, int position, byte[] bytes) throws IOException {
+        Map<Integer, DataBlock> blocksToWrite = new HashMap<>();
+        metaDataBlock.setDataFullSize(bytes.length);
+        blocksToWrite.put(position, metaDataBlock);
+
+        DataBlock dataBlock = metaDataBlock;
+        var currentPosition = position;
+        var dataIndex = 0;
+
+        while (dataBlock.hasNextBlock()) {
+            dataBlock.setData(Arrays.copyOfRange(bytes, dataIndex, dataIndex + dataBlock.getDataSize()));
+            blocksToWrite.put(currentPosition, dataBlock);
+            dataIndex += dataBlock.getDataSize();
+
+            currentPosition = dataBlock.getNextBlock();
+            dataBlock = readDataBlockMetaData(currentPosition);
+        }
+
+        var capacity = descriptor.getBlockSize() - dataBlock.getMetaDataSize();
+        var size = Math.min(capacity, bytes.length - dataIndex);
+        dataBlock.setData(Arrays.copyOfRange(bytes, dataIndex, dataIndex + size));
+        blocksToWrite.put(currentPosition, dataBlock);
+
+        var availableBlocks = chainBlocks(dataBlock, currentPosition, bytes, dataIndex + size, blocksToWrite);
+        setTail(metaDataBlock, position, currentPosition, availableBlocks);
+
+        try {
+            for (var entry : blocksToWrite.entrySet()) {
+                writeBlock(entry.getValue(), entry.getKey());
+            }
+        } catch (IOException e) {
+            releaseBlocks(availableBlocks);
+            throw e;
+        }
+
+        allocateBlocks(availableBlocks);
+    }
+
+    /**
+     * Overwrites bytes of a chain in place, only the blocks holding them are written.
+     */
+    private void overwriteChained(MetaDataBlock metaDataBlock, int position, int offset, byte[] bytes) throws IOException {
+        DataBlock dataBlock = metaDataBlock;
+        var currentPosition = position;
+        var blockOffset = offset;
+        while (blockOffset >= dataBlock.getDataSize()) {
+            blockOffset -= dataBlock.getDataSize();
+            currentPosition = dataBlock.getNextBlock();
+            dataBlock = readDataBlockMetaData(currentPosition);
+        }
+        if (currentPosition != position) {
+            dataBlock = readDataBlock(currentPosition);
+        }
+
+        var written = 0;
+        while (true) {
+            var size = Math.min(bytes.length - written, dataBlock.getDataSize() - blockOffset);
+            var data = dataBlock.getData();
+            System.arraycopy(bytes, written, data, blockOffset, size);
+            dataBlock.setData(data);
+            writeBlock(dataBlock, currentPosition);
+            written += size;
+
+            if (written >= bytes.length) {
+                break;
+            }
+            currentPosition = dataBlock.getNextBlock();
+            dataBlock = readDataBlock(currentPosition);
+            blockOffset = 0;
+        }
+    }
+
+    /**
+     * Cuts a chain down to {@code size} bytes walking back from its tail, blocks left empty are freed.
+     */
+    private void truncateChained(MetaDataBlock metaDataBlock, int position, int size) throws IOException {
+        var remaining = metaDataBlock.getDataFullSize() - size;
+        var tailPosition = findTail(metaDataBlock, position);
+        DataBlock tail = tailPosition == position ? metaDataBlock : readDataBlock(tailPosition);
+        List<Integer> orphanedBlocks = new ArrayList<>();
+
+        while (tailPosition != position && remaining >= tail.getDataSize()) {
+            remaining -= tail.getDataSize();
+            orphanedBlocks.add(tailPosition);
+            tailPosition = tail.getPrevBlock();
+            tail = tailPosition == position ? metaDataBlock : readDataBlock(tailPosition);
+            tail.setNextBlock(Configuration.noAddressMarker);
+        }
+
+        tail.setData(Arrays.copyOf(tail.getData(), tail.getDataSize() - remaining));
+        metaDataBlock.setDataFullSize(size);
+        metaDataBlock.setTailBlock(tailPosition == position ? Configuration.noAddressMarker : tailPosition);
+        if (tailPosition != position) {
+            writeBlock(tail, tailPosition);
+        }
+        writeBlock(metaDataBlock, position);
+        freeBlocks(orphanedBlocks);
+    }
+
+    private int findTail(MetaDataBlock metaDataBlock, int position) throws IOException {
+        if (!metaDataBlock.hasNextBlock()) {
+            return position;
+        }
+        if (metaDataBlock.getTailBlock() != Configuration.noAddressMarker) {
+            return metaDataBlock.getTailBlock();
+        }
+
+        DataBlock dataBlock = metaDataBlock;
+        var currentPosition = position;
+        while (dataBlock.hasNextBlock()) {
+            currentPosition = dataBlock.getNextBlock();
+            dataBlock = readDataBlockMetaData(currentPosition);
+        }
+        return currentPosition;
+    }
+
+    private void setTail(MetaDataBlock metaDataBlock, int position, int tailPosition, List<Integer> chainedBlocks) {
+        if (!chainedBlocks.isEmpty()) {
+            metaDataBlock.setTailBlock(chainedBlocks.getLast());
+        } else {
+            metaDataBlock.setTailBlock(tailPosition == position ? Configuration.noAddressMarker : tailPosition);
+        }
+    }
+
+    /**
+     * Links as many new blocks after the tail as needed to hold bytes from {@code dataIndex} on.
+     */
+    private List<Integer> chainBlocks(DataBlock tail, int tailPosition, byte[] bytes, int dataIndex,
+                                      Map<Integer, DataBlock> blocksToWrite) throws IOException {
+        if (dataIndex >= bytes.length) {
+            return List.of();
+        }
+        var capacity = descriptor.getBlockSize() - DataBlock.META_BYTES;
+        var requiredBlocks = (bytes.length - dataIndex + capacity - 1) / capacity;
+        var availableBlocks = getAvailableBlocks(requiredBlocks, tailPosition + 1);
+
+        var dataBlock = tail;
+        var currentPosition = tailPosition;
+        for (var block : availableBlocks) {
+            dataBlock.setNextBlock(block);
+            dataBlock = new DataBlock(currentPosition, Arrays.copyOfRange(bytes, dataIndex, Math.min(bytes.length, dataIndex + capacity)));
+            dataIndex += capacity;
+            currentPosition = block;
+            blocksToWrite.put(block, dataBlock);
+        }
+        return availableBlocks;
+    }
+
+    /**
+     * Writes everything back and closes the partition. The partition is only forced as the sync policy says, closing
+     * it does not force it either.
+     */
     @Override
     public void close() throws Exception {
-        partition.writeBytes(allocationTable.toByteArray(), ContainerDescriptor.BYTES);
+        try (var ignored = lockManager.acquireAll()) {
+            if (allocationFlusher != null) {
+                allocationFlusher.shutdown();
+                allocationFlusher.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            if (syncer != null) {
+                syncer.shutdown();
+                syncer.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            if (writeBackFlusher != null) {
+                writeBackFlusher.shutdown();
+                writeBackFlusher.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            blockCache.clear();
+            dentryCache.clear();
+            allocationTable.releaseHeldExtents(pinnedBlocks.clear());
+            if (journal != null) {
+                checkpoint();
+            } else {
+                flushWriteBack();
+                flushAllocationTable();
+                if (!syncPolicy.isNone()) {
+                    groupForce.force();
+                }
+            }
+            partition.close();
+        }
+    }
+
+    /**
+     * Stops the background tasks and closes the partition without writing anything, used when opening the container
+     * fails half way. Unlike {@link #close()} it does not checkpoint, so a journal not fully replayed is left for the
+     * next open.
+     */
+    protected void closeWithoutWriting() throws Exception {
+        for (var executor : new ScheduledExecutorService[]{allocationFlusher, syncer, writeBackFlusher}) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        }
         partition.close();
     }
+
+    /**
+     * Writes back the pages of the allocation table changed since the last flush, pages that fail to be written
+     * stay dirty. Flushes run one at a time so an older copy of a page never overwrites a newer one.
+     */
+    protected void flushAllocationTable() throws IOException {
+        synchronized (allocationFlushLock) {
+            var pages = allocationTable.takeDirtyPages();
+            for (int i = 0; i < pages.size(); i++) {
+                var page = pages.get(i);
+                try {
+                    partition.writeBytes(page.bytes(), ContainerDescriptor.BYTES + page.offset());
+                } catch (IOException | RuntimeException e) {
+                    allocationTable.markDirty(pages.subList(i, pages.size()));
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits the operation. Without a journal its blocks are already in place and only forced as the sync policy
+     * says. Otherwise its record is appended to the journal, then its blocks are written in place and the blocks it
+     * freed released, but never before the record is on disk: syncing on commit waits for the force, shared with
+     * operations committing at the same time, a periodic policy leaves the operation to the next background force.
+     * An image is only written if no later operation replaced it in the meantime. A record too large for the journal
+     * is written in place right away, without the all or nothing guarantee.
+     */
+    private void commit(Transaction tx) throws IOException {
+        if (!tx.written) {
+            return;
+        }
+        commits.incrementAndGet();
+        var record = new JournalRecord(new ArrayList<>(tx.images.values()), tx.allocations);
+        if (journal == null || record.isEmpty()) {
+            if (syncPolicy.onCommit()) {
+                if (journal == null) {
+                    flushWriteBack();
+                }
+                groupForce.await(groupForce.mark());
+            } else {
+                requestSyncIfDue();
+            }
+            return;
+        }
+        var lock = journalLock.readLock();
+        var deferred = false;
+        lock.lock();
+        try {
+            var mark = journal.append(record);
+            while (mark < 0 && journal.canHold(record)) {
+                lock.unlock();
+                try {
+                    checkpoint();
+                } finally {
+                    lock.lock();
+                }
+                mark = journal.append(record);
+            }
+            if (mark < 0) {
+                force();
+            } else if (syncPolicy.onCommit()) {
+                journal.sync(mark);
+            } else if (syncPolicy.isPeriodic()) {
+                defer(mark, tx);
+                deferred = true;
+            }
+        } finally {
+            try {
+                if (!deferred) {
+                    apply(tx);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (deferred) {
+            requestSyncIfDue();
+        }
+    }
+
+    /**
+     * Rolls back an operation that failed half way. With a journal nothing it wrote has reached its place yet: its
+     * images are dropped, the blocks it allocated are freed again and the ones it freed stay allocated. Without one
+     * its blocks are already written in place and stay as they are. Images of earlier operations it replaced are
+     * pending again and written with the next force, and as lookups cached meanwhile may have seen its changes the
+     * dentry cache is cleared.
+     */
+    private void abort(Transaction tx) {
+        if (!tx.written) {
+            return;
+        }
+        var restored = new Transaction();
+        for (var image : tx.images.values()) {
+            var previous = tx.replaced.get(image.block());
+            if (previous != null && pendingBlocks.replace(image.block(), image, previous)) {
+                restored.images.put(image.block(), previous);
+            } else {
+                pendingBlocks.remove(image.block(), image);
+            }
+            blockCache.invalidate(image.block());
+            blockVersions.incrementAndGet(Math.floorMod(image.block(), BLOCK_VERSION_STRIPES));
+        }
+        if (!restored.images.isEmpty()) {
+            // their operations may have skipped them while this one's images were pending
+            defer(groupForce.mark(), restored);
+        }
+        for (var change : tx.allocations) {
+            if (change.allocated()) {
+                allocationTable.freeExtents(List.of(change.extent()));
+            }
+        }
+        tx.freedExtents.clear();
+        dentryCache.clear();
+    }
+
+    /**
+     * Writes the operation's blocks in place and releases the blocks it freed. A failing write does not stop the
+     * others; the operation is then deferred again so the next force or checkpoint retries whatever is still pending,
+     * and the blocks it freed stay allocated until it got through.
+     */
+    private void apply(Transaction tx) throws IOException {
+        IOException failure = null;
+        for (var image : tx.images.values()) {
+            try {
+                applyImage(image);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            defer(0, tx);
+            throw failure;
+        }
+        release(tx.freedExtents);
+        if (writeBack != null && writeBack.isFull()) {
+            flushWriteBack();
+        }
+    }
+
+    /**
+     * Writes a pending image in place unless a later operation replaced it meanwhile. Writing and removing it happen
+     * under a lock of the block's stripe, so an older image can never be written over a newer one applied at the
+     * same time.
+     */
+    private void applyImage(JournalRecord.BlockImage image) throws IOException {
+        var block = image.block();
+        synchronized (applyLocks[Math.floorMod(block, applyLocks.length)]) {
+            if (pendingBlocks.get(block) != image) {
+                return;
+            }
+            if (writeBack != null) {
+                writeBack.put(block, image.bytes());
+            } else {
+                partition.writeBytes(image.bytes(), relativePosition(block));
+            }
+            pendingBlocks.remove(block, image);
+        }
+    }
+
+    private void defer(long mark, Transaction tx) {
+        synchronized (deferred) {
+            deferred.add(new Deferred(mark, tx));
+        }
+    }
+
+    private boolean hasDeferred() {
+        synchronized (deferred) {
+            return !deferred.isEmpty();
+        }
+    }
+
+    /**
+     * Applies the operations whose records a force has made durable since they were deferred.
+     */
+    private void applyDurable() throws IOException {
+        List<Transaction> durable = new ArrayList<>();
+        synchronized (deferred) {
+            for (var iterator = deferred.iterator(); iterator.hasNext(); ) {
+                var next = iterator.next();
+                if (groupForce.isDurable(next.mark())) {
+                    durable.add(next.tx());
+                    iterator.remove();
+                }
+            }
+        }
+        for (var tx : durable) {
+            apply(tx);
+        }
+    }
+
+    /**
+     * Forces everything committed so far to disk, whatever the sync policy, and writes the blocks of operations
+     * that waited for it in place.
+     */
+    protected void syncCommitted() throws IOException {
+        var lock = journalLock.readLock();
+        lock.lock();
+        try {
+            if (journal == null) {
+                flushWriteBack();
+            }
+            groupForce.await(groupForce.mark());
+            applyDurable();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes everything committed durable in place and empties the journal. Waits for running commits and holds off
+     * new ones meanwhile. Without any forcing policy nothing is forced, the journal then only protects against the
+     * process dying, not the machine.
+     */
+    protected void checkpoint() throws IOException {
+        journalLock.writeLock().lock();
+        try {
+            force();
+            applyDurable();
+            flushWriteBack();
+            flushAllocationTable();
+            force();
+            journal.reset();
+            force();
+        } finally {
+            journalLock.writeLock().unlock();
+        }
+    }
+
+    private void force() throws IOException {
+        if (!syncPolicy.isNone()) {
+            groupForce.force();
+        }
+    }
+
+    /**
+     * Brings the container to the state of the last operation committed before it was closed, then empties the
+     * journal. For every block the newest image is written, unless a later operation allocated or freed the block;
+     * changes of the operation that wrote the image don't count, as it writes blocks before allocating them. Every
+     * run of blocks ends up allocated or free as the newest change to it says.
+     */
+    protected void replayJournal() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        var records = journal.recover();
+        Map<Integer, Logged<JournalRecord.BlockImage>> newest = new HashMap<>();
+        List<Logged<JournalRecord.AllocationChange>> allocations = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            for (var image : records.get(i).images()) {
+                newest.merge(image.block(), new Logged<>(i, image),
+                    (a, b) -> a.entry().lsn() >= b.entry().lsn() ? a : b);
+            }
+            for (var change : records.get(i).allocations()) {
+                allocations.add(new Logged<>(i, change));
+            }
+        }
+        allocations.sort(Comparator.comparingLong(logged -> logged.entry().lsn()));
+        for (var logged : newest.values()) {
+            var image = logged.entry();
+            var superseded = allocations.stream().anyMatch(change -> change.record() > logged.record()
+                && image.block() >= change.entry().extent().start() && image.block() < change.entry().extent().end());
+            if (!superseded) {
+                partition.writeBytes(image.bytes(), relativePosition(image.block()));
+                blockCache.invalidate(image.block());
+            }
+        }
+        for (var logged : allocations) {
+            var change = logged.entry();
+            if (change.allocated()) {
+                var blocks = new ArrayList<Integer>(change.extent().length());
+                for (int block = change.extent().start(); block < change.extent().end(); block++) {
+                    blocks.add(block);
+                }
+                allocationTable.allocateBlocks(blocks);
+            } else {
+                allocationTable.freeExtents(List.of(change.extent()));
+            }
+        }
+        checkpoint();
+    }
+
+    protected long getCommitCount() {
+        return commits.get();
+    }
+
+    protected GroupForce getGroupForce() {
+        return groupForce;
+    }
+
+    protected long getJournalCommitCount() {
+        return journal != null ? journal.getCommitCount() : 0;
+    }
+
+    protected long getJournalForceCount() {
+        return journal != null ? groupForce.getForceCount() : 0;
+    }
+
+    private void requestSyncIfDue() {
+        if (syncPolicy.isPeriodic() && syncPolicy.bytes() > 0 && groupForce.getUnforcedBytes() >= syncPolicy.bytes()
+            && syncRequested.compareAndSet(false, true)) {
+            syncer.execute(this::syncInBackground);
+        }
+    }
+
+    private void syncInBackground() {
+        syncRequested.set(false);
+        try {
+            syncCommitted();
+        } catch (IOException | RuntimeException e) {
+            // deferred operations stay pending and are retried by the next run or on close
+        }
+    }
+
+    private ScheduledExecutorService startSyncer(int interval) {
+        var executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "cdfs-syncer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (interval > 0) {
+            executor.scheduleWithFixedDelay(this::syncInBackground, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return executor;
+    }
+
+    private static void markWritten(Transaction tx) {
+        if (tx != null) {
+            tx.written = true;
+        }
+    }
+
+    private ScheduledExecutorService startWriteBackFlusher() {
+        var executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "cdfs-write-back-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                flushWriteBack();
+            } catch (IOException | RuntimeException e) {
+                // blocks not written stay buffered and are written by the next run or on close
+            }
+        }, Configuration.writeBackInterval, Configuration.writeBackInterval, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private ScheduledExecutorService startAllocationFlusher(int interval) {
+        var executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "cdfs-allocation-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                flushAllocationTable();
+            } catch (IOException | RuntimeException e) {
+                // the pages stay dirty and are written by the next run or on close
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    /**
+     * Path to lock, its last {@code exclusiveDepth} entries are locked exclusively and all ancestors shared.
+     */
+    protected record PathLock(Path path, int exclusiveDepth) {
+        public static PathLock shared(Path path) {
+            return new PathLock(path, 0);
+        }
+
+        public static PathLock exclusive(Path path) {
+            return new PathLock(path, 1);
+        }
+
+        public static PathLock exclusiveWithParent(Path path) {
+            return new PathLock(path, 2);
+        }
+    }
+
+    private record Resolution(int[] blocks, RuntimeException failure) {
+    }
+
+    /**
+     * Follows a chain of blocks. Chains written in one go mostly run over adjacent blocks, so when the next block is
+     * the one after the last, the blocks ahead of it are read with it in a single partition read. The window doubles
+     * up to {@link Configuration#readAheadBlocks} as long as the chain keeps running on and falls back to a single
+     * block once it jumps, and never reaches past the blocks the caller still expects to need.
+     */
+    private class ChainReader {
+        private final Map<Integer, byte[]> ahead = new HashMap<>();
+        private int window = 1;
+        private int last = Configuration.noAddressMarker;
+
+        private DataBlock next(int position, int expectedBlocks) throws IOException {
+            var bytes = ahead.remove(position);
+            if (bytes != null) {
+                blockCache.put(position, bytes);
+            } else {
+                ahead.clear();
+                window = position == last + 1 ? Math.min(window * 2, Configuration.readAheadBlocks) : 1;
+                var count = Math.min(Math.min(window, Math.max(1, expectedBlocks)),
+                    descriptor.getBlockCount() - position);
+                if (count <= 1) {
+                    bytes = readBlock(position);
+                } else {
+                    var blocks = readBlocks(position, count);
+                    bytes = blocks.getFirst();
+                    blockCache.put(position, bytes);
+                    for (int i = 1; i < blocks.size(); i++) {
+                        ahead.put(position + i, blocks.get(i));
+                    }
+                }
+            }
+            last = position;
+            return DataBlock.fromByteArray(bytes);
+        }
+    }
+
+    /**
+     * Blocks written, allocated and freed by the operation running on the current thread. Operations calling
+     * {@link #lock} again join the transaction of the outermost one.
+     */
+    private static class Transaction {
+        private final Map<Integer, JournalRecord.BlockImage> images = new LinkedHashMap<>();
+        // images of earlier operations still pending when this one first wrote their block, null if there was none
+        private final Map<Integer, JournalRecord.BlockImage> replaced = new HashMap<>();
+        private final List<JournalRecord.AllocationChange> allocations = new ArrayList<>();
+        private final List<Extent> freedExtents = new ArrayList<>();
+        private final PackedBlocks.Claims packed = new PackedBlocks.Claims();
+        private int depth;
+        private boolean written;
+    }
+
+    private record Deferred(long mark, Transaction tx) {
+    }
+
+    /**
+     * Entry of the journal with the index of the record, and so the operation, it belongs to.
+     */
+    private record Logged<T>(int record, T entry) {
+    }
+
+    /**
+     * Fresh blocks a write moved part of a file to, the runs they replaced and the extent map from before.
+     */
+    private record Shadow(List<Integer> blocks, List<Extent> replaced, ExtentMap previous) {
+        private static final Shadow NONE = new Shadow(List.of(), List.of(), null);
+    }
+
+    /**
+     * Locks of an operation, closing them commits its transaction first.
+     */
+    protected class OperationLocks implements AutoCloseable {
+        private final LockManager.Locks locks;
+        private final Transaction tx;
+        private boolean succeeded;
+
+        private OperationLocks(LockManager.Locks locks, Transaction tx) {
+            this.locks = locks;
+            this.tx = tx;
+        }
+
+        /**
+         * Ends the transaction if these are the outermost locks: commits it when the operation succeeded, rolls it
+         * back when it did not get that far. Either way the packed blocks it claimed are released, and the packed
+         * slots a committed operation dropped are freed once the locks are.
+         */
+        @Override
+        public void close() throws IOException {
+            List<PackedBlocks.Slot> removed = List.of();
+            try {
+                if (tx != null && --tx.depth == 0) {
+                    transaction.remove();
+                    try {
+                        if (succeeded) {
+                            commit(tx);
+                            removed = tx.packed.takeRemoved();
+                        } else {
+                            abort(tx);
+                        }
+                    } finally {
+                        packedBlocks.release(tx.packed, succeeded);
+                    }
+                }
+            } finally {
+                locks.close();
+            }
+            removePackedSlots(removed);
+        }
+    }
+
+    @FunctionalInterface
+    protected interface Change<T> {
+        T apply() throws IOException;
+    }
+
+    @FunctionalInterface
+    protected interface VoidChange {
+        void apply() throws IOException;
+    }
 }
@@ -7,7 +7,7 @@ import java.util.Arrays;
 public class DataBlock {
     public static final int META_BYTES = 12; // 4 + 4 + 4
 
-    private final int prevBlock;
+    private int prevBlock;
     private int nextBlock;
     private int dataSize;
     private byte[] data;
@@ -32,6 +32,10 @@ public class DataBlock {
         return prevBlock;
     }
 
+    public void setPrevBlock(int prevBlock) {
+        this.prevBlock = prevBlock;
+    }
+
     public int getNextBlock() {
         return nextBlock;
     }
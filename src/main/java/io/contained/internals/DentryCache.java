@@ -0,0 +1,98 @@
+package io.contained.internals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Blocks of recently looked up paths in least recently used order. The paths are also kept sorted, so a path and
+ * everything below it form one range that can be dropped without scanning the whole cache.
+ */
+public class DentryCache {
+    private final int capacity;
+    private final LinkedHashMap<String, Integer> entries;
+    private final NavigableSet<String> paths = new TreeSet<>();
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public DentryCache(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Cache capacity must not be negative");
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                if (size() > DentryCache.this.capacity) {
+                    evictions++;
+                    paths.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized Integer get(String path) {
+        var block = entries.get(path);
+        if (block == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return block;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches block of the given path, {@link Configuration#noAddressMarker} marks a missing entry.
+     * Lookups started before the latest invalidation may have seen stale directories, so they are ignored.
+     */
+    public synchronized void put(String path, int block, long generation) {
+        if (generation == this.generation && capacity > 0) {
+            paths.add(path);
+            entries.put(path, block);
+        }
+    }
+
+    /**
+     * Drops the given path together with everything cached below it.
+     */
+    public synchronized void invalidate(String path) {
+        generation++;
+        entries.remove(path);
+        paths.remove(path);
+        // every path starting with "path/" sorts before "path0", '0' being the character after '/'
+        var descendants = paths.subSet(path + "/", true, path + "0", false);
+        descendants.forEach(entries::remove);
+        descendants.clear();
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        paths.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,444 @@
+package io.contained.internals;
+
+import io.contained.internals.util.ByteArrayTransformer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * B+tree of directory entries, one node per block, so a lookup, insert or removal reads a single block per level.
+ * Entries are ordered by name and leaves are linked, listing a page or a prefix reads just the leaves holding it.
+ * Trees written before that are ordered by the hash of the name with ties broken by the name itself and can only be
+ * listed as a whole. As in HTree the tree never shrinks: removals only drop the entry from its leaf. Leaves hold
+ * entries in the format of their directory, see {@link MetaDataBlock#isCompact()}.
+ */
+public class DirectoryTree {
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+    private static final int NODE_HEADER_BYTES = Byte.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final Comparator<String> HASH_ORDER = Comparator.comparingInt(String::hashCode)
+        .thenComparing(Comparator.naturalOrder());
+
+    private final ContainerOperations operations;
+    private final int blockSize;
+
+    DirectoryTree(ContainerOperations operations, int blockSize) {
+        this.operations = operations;
+        this.blockSize = blockSize;
+    }
+
+    public Inode find(Header header, String name) throws IOException {
+        var node = findLeaf(header, name);
+        var index = Collections.binarySearch(node.keys, name, node.format.order());
+        return index >= 0 ? node.inodes.get(index) : null;
+    }
+
+    public List<Inode> list(Header header) throws IOException {
+        var node = firstLeaf(header);
+        List<Inode> inodes = new ArrayList<>(node.inodes);
+        while (node.link != Configuration.noAddressMarker) {
+            node = readNode(node.link, header.format());
+            inodes.addAll(node.inodes);
+        }
+        return inodes;
+    }
+
+    /**
+     * Up to {@code limit} entries following {@code startAfter} in name order, all from the first one if it is
+     * {@code null}. Only for sorted trees.
+     */
+    public List<Inode> list(Header header, String startAfter, int limit) throws IOException {
+        return scan(header, startAfter, true, null, limit);
+    }
+
+    /**
+     * Entries whose name starts with the given prefix in name order. Only for sorted trees.
+     */
+    public List<Inode> list(Header header, String prefix) throws IOException {
+        return scan(header, prefix, false, prefix, Integer.MAX_VALUE);
+    }
+
+    private List<Inode> scan(Header header, String from, boolean exclusive, String prefix, int limit) throws IOException {
+        if (!header.format().sorted()) {
+            throw new IllegalStateException("Tree is not ordered by name");
+        }
+        var node = from != null ? findLeaf(header, from) : firstLeaf(header);
+        var index = 0;
+        if (from != null) {
+            var found = Collections.binarySearch(node.keys, from);
+            index = found >= 0 ? (exclusive ? found + 1 : found) : -found - 1;
+        }
+
+        List<Inode> inodes = new ArrayList<>();
+        while (inodes.size() < limit) {
+            if (index == node.keys.size()) {
+                if (node.link == Configuration.noAddressMarker) {
+                    break;
+                }
+                node = readNode(node.link, header.format());
+                index = 0;
+                continue;
+            }
+            if (prefix != null && !node.keys.get(index).startsWith(prefix)) {
+                break;
+            }
+            inodes.add(node.inodes.get(index++));
+        }
+        return inodes;
+    }
+
+    public Header insert(Header header, Inode inode) throws IOException {
+        var root = header.root();
+        var split = insert(root, inode, header.format());
+        if (split != null) {
+            var node = new Node(false, header.format());
+            node.children.add(root);
+            node.keys.add(split.key());
+            node.children.add(split.block());
+            root = allocate(node);
+        }
+        return new Header(root, header.count() + 1, header.format());
+    }
+
+    /**
+     * Returns the header after removing the entry, or {@code null} if there is no entry with the given name.
+     */
+    public Header remove(Header header, String name) throws IOException {
+        var block = header.root();
+        var node = readNode(block, header.format());
+        while (!node.leaf) {
+            block = node.children.get(childIndex(node, name));
+            node = readNode(block, header.format());
+        }
+
+        var index = Collections.binarySearch(node.keys, name, node.format.order());
+        if (index < 0) {
+            return null;
+        }
+        node.keys.remove(index);
+        node.inodes.remove(index);
+        writeNode(node, block);
+        return new Header(header.root(), header.count() - 1, header.format());
+    }
+
+    /**
+     * Builds a tree out of the given entries bottom up, leaving room in every node for later inserts.
+     */
+    public Header create(List<Inode> inodes, Format format) throws IOException {
+        var sorted = new ArrayList<>(inodes);
+        sorted.sort(Comparator.comparing(Inode::getName, format.order()));
+        var fill = blockSize * 3 / 4;
+
+        List<Node> leaves = new ArrayList<>();
+        var leaf = new Node(true, format);
+        for (var inode : sorted) {
+            if (!leaf.keys.isEmpty() && leaf.size() + leaf.entrySize(inode) > fill) {
+                leaves.add(leaf);
+                leaf = new Node(true, format);
+            }
+            leaf.keys.add(inode.getName());
+            leaf.inodes.add(inode);
+        }
+        leaves.add(leaf);
+
+        var blocks = operations.getAvailableBlocks(leaves.size());
+        try {
+            for (int i = 0; i < leaves.size(); i++) {
+                leaves.get(i).link = i + 1 < leaves.size() ? blocks.get(i + 1) : Configuration.noAddressMarker;
+                writeNode(leaves.get(i), blocks.get(i));
+            }
+        } catch (IOException | RuntimeException e) {
+            operations.releaseBlocks(blocks);
+            throw e;
+        }
+        operations.allocateBlocks(blocks);
+
+        List<String> firstKeys = new ArrayList<>();
+        for (var node : leaves) {
+            firstKeys.add(node.keys.isEmpty() ? "" : node.keys.getFirst());
+        }
+
+        while (blocks.size() > 1) {
+            List<Node> parents = new ArrayList<>();
+            List<String> parentFirstKeys = new ArrayList<>();
+            Node parent = null;
+            for (int i = 0; i < blocks.size(); i++) {
+                if (parent == null || parent.size() + keySize(firstKeys.get(i)) > fill) {
+                    parent = new Node(false, format);
+                    parents.add(parent);
+                    parentFirstKeys.add(firstKeys.get(i));
+                } else {
+                    parent.keys.add(firstKeys.get(i));
+                }
+                parent.children.add(blocks.get(i));
+            }
+
+            blocks = new ArrayList<>();
+            for (var node : parents) {
+                blocks.add(allocate(node));
+            }
+            firstKeys = parentFirstKeys;
+        }
+
+        return new Header(blocks.getFirst(), inodes.size(), format);
+    }
+
+    /**
+     * All blocks holding nodes of the tree, only internal nodes are read to collect them.
+     */
+    public List<Integer> blocks(Header header) throws IOException {
+        List<Integer> blocks = new ArrayList<>();
+        collectBlocks(header.root(), header.format(), blocks);
+        return blocks;
+    }
+
+    private void collectBlocks(int block, Format format, List<Integer> blocks) throws IOException {
+        blocks.add(block);
+        var node = readNode(block, format);
+        if (!node.leaf) {
+            for (var child : node.children) {
+                collectBlocks(child, format, blocks);
+            }
+        }
+    }
+
+    private Node firstLeaf(Header header) throws IOException {
+        var node = readNode(header.root(), header.format());
+        while (!node.leaf) {
+            node = readNode(node.children.getFirst(), header.format());
+        }
+        return node;
+    }
+
+    private Node findLeaf(Header header, String name) throws IOException {
+        var node = readNode(header.root(), header.format());
+        while (!node.leaf) {
+            node = readNode(node.children.get(childIndex(node, name)), header.format());
+        }
+        return node;
+    }
+
+    private Split insert(int block, Inode inode, Format format) throws IOException {
+        var node = readNode(block, format);
+        var name = inode.getName();
+
+        if (node.leaf) {
+            var index = Collections.binarySearch(node.keys, name, node.format.order());
+            if (index >= 0) {
+                throw new IllegalStateException(name + " already exists");
+            }
+            node.keys.add(-index - 1, name);
+            node.inodes.add(-index - 1, inode);
+        } else {
+            var childIndex = childIndex(node, name);
+            var split = insert(node.children.get(childIndex), inode, format);
+            if (split == null) {
+                return null;
+            }
+            node.keys.add(childIndex, split.key());
+            node.children.add(childIndex + 1, split.block());
+        }
+
+        if (node.size() <= blockSize) {
+            writeNode(node, block);
+            return null;
+        }
+        return split(node, block);
+    }
+
+    private Split split(Node node, int block) throws IOException {
+        var at = node.splitIndex();
+        var right = new Node(node.leaf, node.format);
+        String separator;
+
+        if (node.leaf) {
+            right.keys.addAll(node.keys.subList(at, node.keys.size()));
+            right.inodes.addAll(node.inodes.subList(at, node.inodes.size()));
+            node.keys.subList(at, node.keys.size()).clear();
+            node.inodes.subList(at, node.inodes.size()).clear();
+            right.link = node.link;
+            separator = right.keys.getFirst();
+        } else {
+            separator = node.keys.get(at);
+            right.keys.addAll(node.keys.subList(at + 1, node.keys.size()));
+            right.children.addAll(node.children.subList(at + 1, node.children.size()));
+            node.keys.subList(at, node.keys.size()).clear();
+            node.children.subList(at + 1, node.children.size()).clear();
+        }
+
+        var rightBlock = allocate(right);
+        if (node.leaf) {
+            node.link = rightBlock;
+        }
+        writeNode(node, block);
+        return new Split(separator, rightBlock);
+    }
+
+    private int allocate(Node node) throws IOException {
+        var blocks = operations.getAvailableBlocks(1);
+        try {
+            writeNode(node, blocks.getFirst());
+        } catch (IOException | RuntimeException e) {
+            operations.releaseBlocks(blocks);
+            throw e;
+        }
+        operations.allocateBlocks(blocks);
+        return blocks.getFirst();
+    }
+
+    private static int childIndex(Node node, String name) {
+        var index = Collections.binarySearch(node.keys, name, node.format.order());
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private static int keySize(String key) {
+        return Short.BYTES + key.getBytes(StandardCharsets.UTF_8).length + Integer.BYTES;
+    }
+
+    private Node readNode(int block, Format format) throws IOException {
+        var bytes = operations.readBlock(block);
+        var node = new Node(bytes[0] == LEAF, format);
+        var count = ByteArrayTransformer.toInt(bytes, Byte.BYTES);
+        var link = ByteArrayTransformer.toInt(bytes, Byte.BYTES + Integer.BYTES);
+        var index = NODE_HEADER_BYTES;
+
+        if (node.leaf) {
+            node.link = link;
+            var end = index + count * Inode.BYTES;
+            if (format.compact()) {
+                end = index;
+                for (int i = 0; i < count; i++) {
+                    end += ByteArrayTransformer.compactSizeAt(bytes, end);
+                }
+            }
+            var entries = Arrays.copyOfRange(bytes, index, end);
+            node.inodes.addAll(format.compact()
+                ? ByteArrayTransformer.toCompactInodesList(entries)
+                : ByteArrayTransformer.toInodesList(entries));
+            for (var inode : node.inodes) {
+                node.keys.add(inode.getName());
+            }
+        } else {
+            node.children.add(link);
+            for (int i = 0; i < count; i++) {
+                var length = ((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF);
+                index += Short.BYTES;
+                node.keys.add(new String(bytes, index, length, StandardCharsets.UTF_8));
+                index += length;
+                node.children.add(ByteArrayTransformer.toInt(bytes, index));
+                index += Integer.BYTES;
+            }
+        }
+        return node;
+    }
+
+    private void writeNode(Node node, int block) throws IOException {
+        var bytes = new byte[node.size()];
+        bytes[0] = node.leaf ? LEAF : INTERNAL;
+        ByteArrayTransformer.fromInt(node.keys.size(), bytes, Byte.BYTES);
+        ByteArrayTransformer.fromInt(node.leaf ? node.link : node.children.getFirst(), bytes, Byte.BYTES + Integer.BYTES);
+        var index = NODE_HEADER_BYTES;
+
+        if (node.leaf) {
+            var inodes = node.format.compact()
+                ? ByteArrayTransformer.fromCompactInodesList(node.inodes)
+                : ByteArrayTransformer.fromInodesList(node.inodes);
+            System.arraycopy(inodes, 0, bytes, index, inodes.length);
+        } else {
+            for (int i = 0; i < node.keys.size(); i++) {
+                var key = node.keys.get(i).getBytes(StandardCharsets.UTF_8);
+                bytes[index] = (byte) (key.length >>> 8);
+                bytes[index + 1] = (byte) key.length;
+                index += Short.BYTES;
+                System.arraycopy(key, 0, bytes, index, key.length);
+                index += key.length;
+                ByteArrayTransformer.fromInt(node.children.get(i + 1), bytes, index);
+                index += Integer.BYTES;
+            }
+        }
+        operations.writeBlock(bytes, block);
+    }
+
+    /**
+     * Root and entry count as stored in the directory's data, the format follows from the directory's flags.
+     */
+    public record Header(int root, int count, Format format) {
+        public static final int BYTES = Integer.BYTES + Integer.BYTES;
+
+        public byte[] toByteArray() {
+            var bytes = new byte[BYTES];
+            ByteArrayTransformer.fromInt(root, bytes, 0);
+            ByteArrayTransformer.fromInt(count, bytes, Integer.BYTES);
+            return bytes;
+        }
+
+        public static Header fromByteArray(byte[] bytes, Format format) {
+            return new Header(ByteArrayTransformer.toInt(bytes, 0), ByteArrayTransformer.toInt(bytes, Integer.BYTES),
+                format);
+        }
+    }
+
+    /**
+     * Layout of a tree: the entry format of its leaves and whether it is ordered by name or by hash.
+     */
+    public record Format(boolean compact, boolean sorted) {
+        public static final Format CURRENT = new Format(true, true);
+
+        private Comparator<String> order() {
+            return sorted ? Comparator.naturalOrder() : HASH_ORDER;
+        }
+    }
+
+    private record Split(String key, int block) {
+    }
+
+    private static final class Node {
+        private final boolean leaf;
+        private final Format format;
+        private final List<String> keys = new ArrayList<>();
+        private final List<Inode> inodes = new ArrayList<>();
+        private final List<Integer> children = new ArrayList<>();
+        private int link = Configuration.noAddressMarker;
+
+        private Node(boolean leaf, Format format) {
+            this.leaf = leaf;
+            this.format = format;
+        }
+
+        private int size() {
+            var size = NODE_HEADER_BYTES;
+            for (int i = 0; i < keys.size(); i++) {
+                size += entrySize(i);
+            }
+            return size;
+        }
+
+        private int entrySize(int i) {
+            return leaf ? entrySize(inodes.get(i)) : keySize(keys.get(i));
+        }
+
+        private int entrySize(Inode inode) {
+            return format.compact() ? ByteArrayTransformer.compactSizeOf(inode) : Inode.BYTES;
+        }
+
+        /**
+         * Index splitting the node into halves of about the same size in bytes.
+         */
+        private int splitIndex() {
+            var half = size() / 2;
+            var size = NODE_HEADER_BYTES;
+            for (int i = 0; i < keys.size(); i++) {
+                size += entrySize(i);
+                if (size >= half) {
+                    return Math.max(1, Math.min(i, keys.size() - 2));
+                }
+            }
+            return keys.size() / 2;
+        }
+    }
+}
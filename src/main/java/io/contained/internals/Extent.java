@@ -0,0 +1,9 @@
+package io.contained.internals;
+
+public record Extent(int start, int length) {
+    public static final int BYTES = Integer.BYTES + Integer.BYTES;
+
+    public int end() {
+        return start + length;
+    }
+}
@@ -0,0 +1,138 @@
+package io.contained.internals;
+
+import io.contained.internals.util.ByteArrayTransformer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps logical blocks of a file onto runs of physical blocks.
+ */
+public class ExtentMap {
+    private final List<Extent> extents = new ArrayList<>();
+    private final List<Integer> firstBlocks = new ArrayList<>();
+    private int blockCount;
+
+    public ExtentMap() {
+    }
+
+    public ExtentMap(List<Extent> extents) {
+        extents.forEach(this::add);
+    }
+
+    public List<Extent> getExtents() {
+        return Collections.unmodifiableList(extents);
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Index of the extent holding the given logical block.
+     */
+    public int indexOf(int logicalBlock) {
+        if (logicalBlock < 0 || logicalBlock >= blockCount) {
+            throw new IndexOutOfBoundsException("Block " + logicalBlock + " is outside of " + blockCount + " blocks");
+        }
+        var index = Collections.binarySearch(firstBlocks, logicalBlock);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Logical block at which the extent with the given index starts.
+     */
+    public int getFirstBlock(int index) {
+        return firstBlocks.get(index);
+    }
+
+    public int getBlock(int logicalBlock) {
+        var index = indexOf(logicalBlock);
+        return extents.get(index).start() + logicalBlock - firstBlocks.get(index);
+    }
+
+    public void append(List<Integer> blocks) {
+        for (var block : blocks) {
+            add(new Extent(block, 1));
+        }
+    }
+
+    /**
+     * Shortens the map to the given number of blocks and returns the physical runs no longer used.
+     */
+    public List<Extent> truncate(int blockCount) {
+        List<Extent> freed = new ArrayList<>();
+        while (this.blockCount > blockCount) {
+            var last = extents.removeLast();
+            var firstBlock = firstBlocks.removeLast();
+            this.blockCount = firstBlock;
+
+            var kept = Math.max(0, blockCount - firstBlock);
+            if (kept > 0) {
+                add(new Extent(last.start(), kept));
+            }
+            freed.add(new Extent(last.start() + kept, last.length() - kept));
+        }
+        return freed;
+    }
+
+    /**
+     * Maps the logical blocks starting at {@code logicalBlock} to the given physical blocks instead and returns the
+     * physical runs they were mapped to before.
+     */
+    public List<Extent> replace(int logicalBlock, List<Integer> blocks) {
+        var end = logicalBlock + blocks.size();
+        if (logicalBlock < 0 || end > blockCount) {
+            throw new IndexOutOfBoundsException("Blocks " + logicalBlock + " to " + end + " are outside of "
+                + blockCount + " blocks");
+        }
+        List<Extent> before = new ArrayList<>();
+        List<Extent> replaced = new ArrayList<>();
+        List<Extent> after = new ArrayList<>();
+        for (int i = 0; i < extents.size(); i++) {
+            var extent = extents.get(i);
+            var from = firstBlocks.get(i);
+            var to = from + extent.length();
+            if (from < logicalBlock) {
+                before.add(new Extent(extent.start(), Math.min(to, logicalBlock) - from));
+            }
+            var replacedFrom = Math.max(from, logicalBlock);
+            var replacedTo = Math.min(to, end);
+            if (replacedFrom < replacedTo) {
+                replaced.add(new Extent(extent.start() + replacedFrom - from, replacedTo - replacedFrom));
+            }
+            if (to > end) {
+                var keptFrom = Math.max(from, end);
+                after.add(new Extent(extent.start() + keptFrom - from, to - keptFrom));
+            }
+        }
+
+        extents.clear();
+        firstBlocks.clear();
+        blockCount = 0;
+        before.forEach(this::add);
+        append(blocks);
+        after.forEach(this::add);
+        return replaced;
+    }
+
+    public byte[] toByteArray() {
+        return ByteArrayTransformer.fromExtentsList(extents);
+    }
+
+    public static ExtentMap fromByteArray(byte[] bytes) {
+        return new ExtentMap(ByteArrayTransformer.toExtentsList(bytes));
+    }
+
+    private void add(Extent extent) {
+        if (!extents.isEmpty() && extents.getLast().end() == extent.start()) {
+            var last = extents.removeLast();
+            extents.add(new Extent(last.start(), last.length() + extent.length()));
+        } else {
+            extents.add(extent);
+            firstBlocks.add(blockCount);
+        }
+        blockCount += extent.length();
+    }
+}
@@ -0,0 +1,110 @@
+package io.contained.internals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Runs of free blocks, indexed by their start to merge neighbours and by their length to find the smallest run that
+ * fits a request.
+ */
+public class FreeExtents {
+    private static final Comparator<Extent> BY_LENGTH = Comparator.comparingInt(Extent::length)
+        .thenComparingInt(Extent::start);
+
+    private final NavigableMap<Integer, Integer> byStart = new TreeMap<>();
+    private final NavigableSet<Extent> byLength = new TreeSet<>(BY_LENGTH);
+
+    public int size() {
+        return byStart.size();
+    }
+
+    /**
+     * Marks a run as free, merging it with the free runs right before and after it.
+     */
+    public void add(int start, int length) {
+        var end = start + length;
+        var lower = byStart.lowerEntry(start);
+        if (lower != null && lower.getKey() + lower.getValue() == start) {
+            remove(new Extent(lower.getKey(), lower.getValue()));
+            start = lower.getKey();
+        }
+        var higher = byStart.get(end);
+        if (higher != null) {
+            remove(new Extent(end, higher));
+            end += higher;
+        }
+        put(new Extent(start, end - start));
+    }
+
+    /**
+     * Marks a run as used, it must lie within a single free run.
+     */
+    public void take(int start, int length) {
+        var containing = byStart.floorEntry(start);
+        if (containing == null || containing.getKey() + containing.getValue() < start + length) {
+            throw new IllegalStateException("Blocks " + start + " to " + (start + length - 1) + " are not free");
+        }
+        var extent = new Extent(containing.getKey(), containing.getValue());
+        remove(extent);
+        if (extent.start() < start) {
+            put(new Extent(extent.start(), start - extent.start()));
+        }
+        if (start + length < extent.end()) {
+            put(new Extent(start + length, extent.end() - start - length));
+        }
+    }
+
+    /**
+     * Takes {@code blockCount} blocks, continuing the run at {@code goal} if it is free, then from the smallest run
+     * that holds the rest, or from as few of the largest runs as possible. Callers check there are enough free blocks.
+     */
+    public List<Extent> allocate(int blockCount, int goal) {
+        List<Extent> allocated = new ArrayList<>();
+        var remaining = blockCount;
+        var atGoal = byStart.get(goal);
+        if (atGoal != null) {
+            remaining -= takeFrom(new Extent(goal, atGoal), remaining, allocated);
+        }
+        if (remaining == 0) {
+            return allocated;
+        }
+
+        var bestFit = byLength.ceiling(new Extent(0, remaining));
+        if (bestFit != null) {
+            takeFrom(bestFit, remaining, allocated);
+            return allocated;
+        }
+        var sizeOfFirst = allocated.size();
+        while (remaining > 0) {
+            var largest = byLength.ceiling(new Extent(0, byLength.last().length()));
+            remaining -= takeFrom(largest, remaining, allocated);
+        }
+        allocated.subList(sizeOfFirst, allocated.size()).sort(Comparator.comparingInt(Extent::start));
+        return allocated;
+    }
+
+    private int takeFrom(Extent extent, int blockCount, List<Extent> allocated) {
+        var length = Math.min(blockCount, extent.length());
+        remove(extent);
+        if (length < extent.length()) {
+            put(new Extent(extent.start() + length, extent.length() - length));
+        }
+        allocated.add(new Extent(extent.start(), length));
+        return length;
+    }
+
+    private void put(Extent extent) {
+        byStart.put(extent.start(), extent.length());
+        byLength.add(extent);
+    }
+
+    private void remove(Extent extent) {
+        byStart.remove(extent.start());
+        byLength.remove(extent);
+    }
+}
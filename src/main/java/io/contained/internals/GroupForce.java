@@ -0,0 +1,114 @@
+package io.contained.internals;
+
+import java.io.IOException;
+
+/**
+ * Forces a partition on behalf of many writers. Writers report what they wrote and get back a mark; whoever waits
+ * for a mark while no force is running starts one covering everything reported so far, everybody else waits for it
+ * or the one after. Concurrent writers so share a single force instead of queueing up for one each.
+ */
+public class GroupForce {
+    private final Partition partition;
+    private long written;
+    private long durable;
+    private boolean forcing;
+    private long forces;
+    private long forcedBytes;
+    private long forceNanos;
+
+    public GroupForce(Partition partition) {
+        this.partition = partition;
+    }
+
+    /**
+     * Reports bytes written, returns the mark to wait for to have them on disk. Only call once they are written.
+     */
+    public synchronized long written(int bytes) {
+        written += bytes;
+        return written;
+    }
+
+    /**
+     * Mark covering everything reported so far.
+     */
+    public synchronized long mark() {
+        return written;
+    }
+
+    public synchronized boolean isDurable(long mark) {
+        return durable >= mark;
+    }
+
+    public synchronized long getUnforcedBytes() {
+        return written - durable;
+    }
+
+    public synchronized long getForceCount() {
+        return forces;
+    }
+
+    public synchronized long getForcedBytes() {
+        return forcedBytes;
+    }
+
+    public synchronized long getForceNanos() {
+        return forceNanos;
+    }
+
+    /**
+     * Returns once everything up to {@code mark} is on disk, forcing the partition unless a force already running
+     * or started by another writer covers it.
+     */
+    public void await(long mark) throws IOException {
+        force(mark, false);
+    }
+
+    /**
+     * Forces the partition even if nothing was reported since the last force, for writes made outside of it.
+     */
+    public void force() throws IOException {
+        force(mark(), true);
+    }
+
+    private void force(long mark, boolean always) throws IOException {
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (forcing && (always || durable < mark)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the partition to be forced", e);
+                    }
+                }
+                if (!always && durable >= mark) {
+                    return;
+                }
+                forcing = true;
+                target = written;
+            }
+
+            var start = System.nanoTime();
+            var forced = false;
+            try {
+                partition.force();
+                forced = true;
+            } finally {
+                synchronized (this) {
+                    forcing = false;
+                    if (forced) {
+                        forcedBytes += Math.max(0, target - durable);
+                        durable = Math.max(durable, target);
+                        forces++;
+                        forceNanos += System.nanoTime() - start;
+                    }
+                    notifyAll();
+                }
+            }
+            if (forced && always) {
+                return;
+            }
+        }
+    }
+}
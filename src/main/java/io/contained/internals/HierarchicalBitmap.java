@@ -0,0 +1,214 @@
+package io.contained.internals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Bitmap with summary levels on top, each bit of a summary word telling whether a word of the level below still has
+ * a clear bit. Finding the next clear bit skips full regions 64 words at a time, so it takes a handful of word reads
+ * however full the bitmap is, and the number of set bits is kept up to date instead of being counted.
+ */
+public class HierarchicalBitmap {
+    private static final int WORD_SHIFT = 6;
+    private static final int WORD_MASK = Long.SIZE - 1;
+
+    private final int size;
+    private final long[][] levels;
+    private int cardinality;
+
+    public HierarchicalBitmap(int size) {
+        this.size = size;
+        var sizes = new ArrayList<Integer>();
+        var words = Math.max(1, wordsFor(size));
+        sizes.add(words);
+        do {
+            words = wordsFor(words);
+            sizes.add(words);
+        } while (words > 1);
+
+        this.levels = new long[sizes.size()][];
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = new long[sizes.get(level)];
+        }
+        var padding = size & WORD_MASK;
+        if (padding != 0 || size == 0) {
+            levels[0][levels[0].length - 1] = -1L << padding;
+        }
+        rebuildSummaries();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean get(int index) {
+        return (levels[0][index >>> WORD_SHIFT] & (1L << index)) != 0;
+    }
+
+    public void set(int index) {
+        var word = index >>> WORD_SHIFT;
+        var before = levels[0][word];
+        var after = before | (1L << index);
+        if (before == after) {
+            return;
+        }
+        levels[0][word] = after;
+        cardinality++;
+        if (after == -1L) {
+            markFull(1, word);
+        }
+    }
+
+    public void clear(int index) {
+        var word = index >>> WORD_SHIFT;
+        var before = levels[0][word];
+        var after = before & ~(1L << index);
+        if (before == after) {
+            return;
+        }
+        levels[0][word] = after;
+        cardinality--;
+        if (before == -1L) {
+            markFree(1, word);
+        }
+    }
+
+    /**
+     * Clears the bits from {@code fromIndex} inclusive to {@code toIndex} exclusive.
+     */
+    public void clear(int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        var firstWord = fromIndex >>> WORD_SHIFT;
+        var lastWord = (toIndex - 1) >>> WORD_SHIFT;
+        for (int word = firstWord; word <= lastWord; word++) {
+            var mask = -1L;
+            if (word == firstWord) {
+                mask &= -1L << fromIndex;
+            }
+            if (word == lastWord) {
+                mask &= -1L >>> -toIndex;
+            }
+            var before = levels[0][word];
+            if ((before & mask) == 0) {
+                continue;
+            }
+            levels[0][word] = before & ~mask;
+            cardinality -= Long.bitCount(before & mask);
+            if (before == -1L) {
+                markFree(1, word);
+            }
+        }
+    }
+
+    /**
+     * Index of the first clear bit at or after {@code fromIndex}, or -1 if there is none.
+     */
+    public int nextClearBit(int fromIndex) {
+        if (fromIndex >= size) {
+            return -1;
+        }
+        var word = fromIndex >>> WORD_SHIFT;
+        var free = ~levels[0][word] & (-1L << fromIndex);
+        if (free != 0) {
+            return (word << WORD_SHIFT) + Long.numberOfTrailingZeros(free);
+        }
+        var next = nextSetBit(1, word + 1);
+        return next < 0 ? -1 : (next << WORD_SHIFT) + Long.numberOfTrailingZeros(~levels[0][next]);
+    }
+
+    /**
+     * Bits in the layout of {@link java.util.BitSet#toByteArray()}, padded to {@code size / 8} bytes.
+     */
+    public byte[] toByteArray() {
+        var bytes = new byte[size / Byte.SIZE];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (levels[0][i >>> 3] >>> ((i & 7) * Byte.SIZE));
+        }
+        return bytes;
+    }
+
+    public static HierarchicalBitmap fromByteArray(byte[] bytes) {
+        var bitmap = new HierarchicalBitmap(bytes.length * Byte.SIZE);
+        var words = bitmap.levels[0];
+        for (int i = 0; i < bytes.length; i++) {
+            words[i >>> 3] |= (bytes[i] & 0xFFL) << ((i & 7) * Byte.SIZE);
+        }
+        bitmap.rebuildSummaries();
+        return bitmap;
+    }
+
+    /**
+     * Index of the first set bit of a summary level at or after {@code fromIndex}, or -1 if there is none.
+     */
+    private int nextSetBit(int level, int fromIndex) {
+        if (level == levels.length) {
+            return -1;
+        }
+        var words = levels[level];
+        var word = fromIndex >>> WORD_SHIFT;
+        if (word >= words.length) {
+            return -1;
+        }
+        var bits = words[word] & (-1L << fromIndex);
+        if (bits != 0) {
+            return (word << WORD_SHIFT) + Long.numberOfTrailingZeros(bits);
+        }
+        var next = nextSetBit(level + 1, word + 1);
+        return next < 0 ? -1 : (next << WORD_SHIFT) + Long.numberOfTrailingZeros(words[next]);
+    }
+
+    private void markFull(int level, int index) {
+        for (; level < levels.length; level++) {
+            var word = index >>> WORD_SHIFT;
+            levels[level][word] &= ~(1L << index);
+            if (levels[level][word] != 0) {
+                return;
+            }
+            index = word;
+        }
+    }
+
+    private void markFree(int level, int index) {
+        for (; level < levels.length; level++) {
+            var word = index >>> WORD_SHIFT;
+            var before = levels[level][word];
+            levels[level][word] = before | (1L << index);
+            if (before != 0) {
+                return;
+            }
+            index = word;
+        }
+    }
+
+    private void rebuildSummaries() {
+        var bits = levels[0];
+        cardinality = 0;
+        for (int word = 0; word < bits.length; word++) {
+            cardinality += Long.bitCount(bits[word]);
+        }
+        var padding = bits.length * Long.SIZE - size;
+        cardinality -= padding;
+
+        for (int level = 1; level < levels.length; level++) {
+            var below = levels[level - 1];
+            var summary = levels[level];
+            Arrays.fill(summary, 0);
+            for (int word = 0; word < below.length; word++) {
+                var hasFree = level == 1 ? below[word] != -1L : below[word] != 0;
+                if (hasFree) {
+                    summary[word >>> WORD_SHIFT] |= 1L << word;
+                }
+            }
+        }
+    }
+
+    private static int wordsFor(int bits) {
+        return (bits + WORD_MASK) >>> WORD_SHIFT;
+    }
+}
@@ -5,11 +5,37 @@ public class Inode {
     private String name;
     private final int block;
     private final boolean isDir;
+    private final byte[] data;
+    private final int slot;
 
     public Inode(String name, int block, boolean isDir) {
         this.name = name;
         this.block = block;
         this.isDir = isDir;
+        this.data = null;
+        this.slot = Configuration.noAddressMarker;
+    }
+
+    /**
+     * A file whose data is kept in the entry itself, its block is {@link Configuration#inlineDataMarker}.
+     */
+    public Inode(String name, byte[] data) {
+        this.name = name;
+        this.block = Configuration.inlineDataMarker;
+        this.isDir = false;
+        this.data = data;
+        this.slot = Configuration.noAddressMarker;
+    }
+
+    /**
+     * A file whose data is kept in a slot of a {@link PackedBlock} shared with other files.
+     */
+    public Inode(String name, int block, int slot) {
+        this.name = name;
+        this.block = block;
+        this.isDir = false;
+        this.data = null;
+        this.slot = slot;
     }
 
     public String getName() {
@@ -27,4 +53,27 @@ public class Inode {
     public boolean isDir() {
         return isDir;
     }
+
+    public boolean isInline() {
+        return data != null;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isPacked() {
+        return slot != Configuration.noAddressMarker;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Whether the file is reached through its entry rather than a block of its own, being inline or packed.
+     */
+    public boolean isStoredWithEntry() {
+        return isInline() || isPacked();
+    }
 }
@@ -0,0 +1,141 @@
+package io.contained.internals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of block images and allocation changes in a region of the partition past the last block. A
+ * header block holds the epoch, records follow it and only count while they carry the current epoch and a valid
+ * checksum, so a checkpoint empties the log by bumping the epoch. Records are appended one after the other and
+ * forced through a {@link GroupForce}, so commits arriving at the same time share a single force.
+ */
+public class Journal {
+    private static final int MAGIC = 0x63646A6C;
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    private final Partition partition;
+    private final GroupForce groupForce;
+    private final int offset;
+    private final int size;
+    private final int headerSize;
+    private long epoch;
+    private int tail;
+    private long commits;
+
+    public Journal(Partition partition, int offset, int size, int headerSize) {
+        this.partition = partition;
+        this.groupForce = new GroupForce(partition);
+        this.offset = offset;
+        this.size = size;
+        this.headerSize = headerSize;
+        this.tail = headerSize;
+    }
+
+    /**
+     * Forces records to disk, writers of data the records depend on report to it as well.
+     */
+    public GroupForce getGroupForce() {
+        return groupForce;
+    }
+
+    /**
+     * Bytes the largest record that fits into an empty log may take.
+     */
+    public int getCapacity() {
+        return size - headerSize - RECORD_HEADER_BYTES;
+    }
+
+    public boolean canHold(JournalRecord record) {
+        return record.size() <= getCapacity();
+    }
+
+    public synchronized long getCommitCount() {
+        return commits;
+    }
+
+    /**
+     * Reads the records of the current epoch, an empty list for a log that was never written.
+     */
+    public synchronized List<JournalRecord> recover() throws IOException {
+        var header = partition.readBuffer(offset, headerSize);
+        if (header.remaining() < Integer.BYTES + Long.BYTES || header.getInt() != MAGIC) {
+            return List.of();
+        }
+        epoch = header.getLong();
+
+        List<JournalRecord> records = new ArrayList<>();
+        var position = headerSize;
+        while (position + RECORD_HEADER_BYTES <= size) {
+            var recordHeader = partition.readBuffer(offset + position, RECORD_HEADER_BYTES);
+            if (recordHeader.remaining() < RECORD_HEADER_BYTES || recordHeader.getInt() != MAGIC
+                || recordHeader.getLong() != epoch) {
+                break;
+            }
+            var length = recordHeader.getInt();
+            var checksum = recordHeader.getLong();
+            if (length < 0 || position + RECORD_HEADER_BYTES + length > size) {
+                break;
+            }
+            var payload = partition.readBytes(offset + position + RECORD_HEADER_BYTES, length);
+            if (payload.length < length || checksumOf(payload) != checksum) {
+                break;
+            }
+            records.add(JournalRecord.fromByteArray(payload));
+            position += RECORD_HEADER_BYTES + length;
+        }
+        tail = position;
+        return records;
+    }
+
+    /**
+     * Appends a record, returns the mark to {@link #sync} on or -1 if the log is too full to take it. Records are
+     * written one at a time, so a record forced to disk never follows one that is not.
+     */
+    public long append(JournalRecord record) throws IOException {
+        var payload = record.toByteArray();
+        var checksum = checksumOf(payload);
+        synchronized (this) {
+            var bytes = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length)
+                .putInt(MAGIC)
+                .putLong(epoch)
+                .putInt(payload.length)
+                .putLong(checksum)
+                .put(payload)
+                .array();
+            if (tail + bytes.length > size) {
+                return -1;
+            }
+            partition.writeBytes(bytes, offset + tail);
+            tail += bytes.length;
+            commits++;
+            return groupForce.written(bytes.length);
+        }
+    }
+
+    /**
+     * Returns once the record {@code mark} was returned for is on disk.
+     */
+    public void sync(long mark) throws IOException {
+        groupForce.await(mark);
+    }
+
+    /**
+     * Empties the log, callers make sure every record is applied and on disk and nobody appends meanwhile. The log
+     * is only empty on disk once the partition is forced afterwards.
+     */
+    public synchronized void reset() throws IOException {
+        epoch++;
+        var header = ByteBuffer.allocate(headerSize).putInt(MAGIC).putLong(epoch).array();
+        partition.writeBytes(header, offset);
+        tail = headerSize;
+    }
+
+    private static long checksumOf(byte[] bytes) {
+        var crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
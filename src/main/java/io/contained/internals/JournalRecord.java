@@ -0,0 +1,68 @@
+package io.contained.internals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything one operation changed: the final image of each block it wrote and the runs of blocks it allocated or
+ * freed. Each change carries a sequence number shared by all operations, so replay can tell which of two records
+ * touching the same block came last.
+ */
+public record JournalRecord(List<BlockImage> images, List<AllocationChange> allocations) {
+    public boolean isEmpty() {
+        return images.isEmpty() && allocations.isEmpty();
+    }
+
+    public int size() {
+        var size = Integer.BYTES + Integer.BYTES + allocations.size() * AllocationChange.BYTES;
+        for (var image : images) {
+            size += BlockImage.META_BYTES + image.bytes().length;
+        }
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        var buffer = ByteBuffer.allocate(size());
+        buffer.putInt(images.size());
+        for (var image : images) {
+            buffer.putInt(image.block()).putLong(image.lsn()).putInt(image.bytes().length).put(image.bytes());
+        }
+        buffer.putInt(allocations.size());
+        for (var change : allocations) {
+            buffer.putInt(change.extent().start())
+                .putInt(change.extent().length())
+                .putLong(change.lsn())
+                .put((byte) (change.allocated() ? 1 : 0));
+        }
+        return buffer.array();
+    }
+
+    public static JournalRecord fromByteArray(byte[] bytes) {
+        var buffer = ByteBuffer.wrap(bytes);
+        var imageCount = buffer.getInt();
+        List<BlockImage> images = new ArrayList<>(imageCount);
+        for (int i = 0; i < imageCount; i++) {
+            var block = buffer.getInt();
+            var lsn = buffer.getLong();
+            var data = new byte[buffer.getInt()];
+            buffer.get(data);
+            images.add(new BlockImage(block, lsn, data));
+        }
+        var changeCount = buffer.getInt();
+        List<AllocationChange> allocations = new ArrayList<>(changeCount);
+        for (int i = 0; i < changeCount; i++) {
+            var extent = new Extent(buffer.getInt(), buffer.getInt());
+            allocations.add(new AllocationChange(extent, buffer.getLong(), buffer.get() != 0));
+        }
+        return new JournalRecord(images, allocations);
+    }
+
+    public record BlockImage(int block, long lsn, byte[] bytes) {
+        public static final int META_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    }
+
+    public record AllocationChange(Extent extent, long lsn, boolean allocated) {
+        public static final int BYTES = Extent.BYTES + Long.BYTES + 1;
+    }
+}
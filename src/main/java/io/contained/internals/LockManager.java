@@ -0,0 +1,101 @@
+package io.contained.internals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hierarchical locks keyed by block number. Every operation holds the container lock shared, ancestors of the
+ * entry it works on shared (as intention locks) and the directories or files it mutates exclusively.
+ * Block locks are always taken in ascending block order, so operations spanning two parents cannot deadlock.
+ */
+public class LockManager {
+    private final ReadWriteLock containerLock = new ReentrantReadWriteLock();
+    private final Map<Integer, Entry> locks = new HashMap<>();
+
+    public Locks acquire(SortedSet<Integer> shared, SortedSet<Integer> exclusive) {
+        var blocks = new TreeSet<>(shared);
+        blocks.addAll(exclusive);
+
+        var held = new Locks();
+        containerLock.readLock().lock();
+        held.add(Configuration.noAddressMarker, containerLock.readLock());
+        try {
+            for (var block : blocks) {
+                var entry = reference(block);
+                var lock = exclusive.contains(block) ? entry.lock.writeLock() : entry.lock.readLock();
+                try {
+                    lock.lock();
+                } catch (RuntimeException e) {
+                    release(block);
+                    throw e;
+                }
+                held.add(block, lock);
+            }
+        } catch (RuntimeException e) {
+            held.close();
+            throw e;
+        }
+        return held;
+    }
+
+    /**
+     * Waits for all running operations and blocks new ones, used when the container is closed.
+     */
+    public Locks acquireAll() {
+        var held = new Locks();
+        containerLock.writeLock().lock();
+        held.add(Configuration.noAddressMarker, containerLock.writeLock());
+        return held;
+    }
+
+    synchronized int size() {
+        return locks.size();
+    }
+
+    private synchronized Entry reference(int block) {
+        var entry = locks.computeIfAbsent(block, b -> new Entry());
+        entry.references++;
+        return entry;
+    }
+
+    private synchronized void release(int block) {
+        var entry = locks.get(block);
+        if (--entry.references == 0) {
+            locks.remove(block);
+        }
+    }
+
+    private static class Entry {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private int references;
+    }
+
+    public class Locks implements AutoCloseable {
+        private final List<Integer> blocks = new ArrayList<>();
+        private final List<Lock> held = new ArrayList<>();
+
+        private void add(int block, Lock lock) {
+            blocks.add(block);
+            held.add(lock);
+        }
+
+        @Override
+        public void close() {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                held.get(i).unlock();
+                if (blocks.get(i) != Configuration.noAddressMarker) {
+                    release(blocks.get(i));
+                }
+            }
+            held.clear();
+            blocks.clear();
+        }
+    }
+}
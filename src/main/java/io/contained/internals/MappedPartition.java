@@ -0,0 +1,89 @@
+package io.contained.internals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class MappedPartition extends Partition {
+    private final MappedByteBuffer buffer;
+
+    public MappedPartition(FileChannel channel, long size) throws IOException {
+        super(channel);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Partition is too large to be memory mapped");
+        }
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    public static MappedPartition open(Path path, long size) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            return new MappedPartition(channel, size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the bytes out of the mapping, for callers that keep them.
+     */
+    @Override
+    public byte[] readBytes(int offset, int length) {
+        var bytes = new byte[Math.min(length, buffer.capacity() - offset)];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+
+    /**
+     * A slice of the mapping, nothing is copied.
+     */
+    @Override
+    public ByteBuffer readBuffer(int offset, int length) {
+        return buffer.slice(offset, Math.min(length, buffer.capacity() - offset)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public int readBytes(int offset, byte[] bytes, int index, int length) {
+        var size = Math.min(length, buffer.capacity() - offset);
+        buffer.get(offset, bytes, index, size);
+        return size;
+    }
+
+    @Override
+    public void writeBytes(byte[] bytes, int offset) {
+        buffer.put(offset, bytes);
+    }
+
+    @Override
+    public void writeBytes(byte[] bytes, int index, int length, int offset) {
+        buffer.put(offset, bytes, index, length);
+    }
+
+    @Override
+    public long transferTo(int offset, int length, WritableByteChannel target) throws IOException {
+        return target.write(buffer.slice(offset, length));
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, int offset, int length) throws IOException {
+        var slice = buffer.slice(offset, length);
+        while (slice.hasRemaining()) {
+            if (source.read(slice) <= 0) {
+                break;
+            }
+        }
+        return slice.position();
+    }
+
+    @Override
+    public void force() {
+        buffer.force();
+    }
+
+}
@@ -7,13 +7,21 @@ import java.util.Arrays;
 public class MetaDataBlock extends DataBlock {
     public static final int META_BYTES = 261 + DataBlock.META_BYTES; //256 + 4 + 1 + 12;
 
+    public static final int DIR_FLAG = 1;
+    public static final int EXTENTS_FLAG = 2;
+    public static final int INDEXED_FLAG = 4;
+    public static final int COMPACT_FLAG = 8;
+    public static final int SORTED_FLAG = 16;
+
     private byte[] name;
     private int dataFullSize;
-    private final boolean isDir;
+    private final int flags;
 
+    /**
+     * An empty directory keeping its entries in the compact format.
+     */
     public MetaDataBlock(byte[] name) {
-        this(name, 0, true, Configuration.noAddressMarker, Configuration.noAddressMarker, new byte[0]);
-
+        this(name, 0, DIR_FLAG | COMPACT_FLAG, Configuration.noAddressMarker, Configuration.noAddressMarker, new byte[0]);
     }
 
     public MetaDataBlock(byte[] name, int dataFullSize, boolean isDir, byte[] data) {
@@ -21,10 +29,23 @@ public class MetaDataBlock extends DataBlock {
     }
 
     public MetaDataBlock(byte[] name, int dataFullSize, boolean isDir, int prevBlock, int nextBlock, byte[] data) {
+        this(name, dataFullSize, isDir, false, prevBlock, nextBlock, data);
+    }
+
+    /**
+     * With {@code hasExtents} the data holds the file's extent table, continued in blocks chained after this one,
+     * and the file content lives in raw blocks without any header.
+     */
+    public MetaDataBlock(byte[] name, int dataFullSize, boolean isDir, boolean hasExtents, int prevBlock,
+                         int nextBlock, byte[] data) {
+        this(name, dataFullSize, (isDir ? DIR_FLAG : 0) | (hasExtents ? EXTENTS_FLAG : 0), prevBlock, nextBlock, data);
+    }
+
+    public MetaDataBlock(byte[] name, int dataFullSize, int flags, int prevBlock, int nextBlock, byte[] data) {
         super(prevBlock, nextBlock, data);
         this.name = name;
         this.dataFullSize = dataFullSize;
-        this.isDir = isDir;
+        this.flags = flags;
     }
 
     public byte[] getName() {
@@ -44,7 +65,50 @@ public class MetaDataBlock extends DataBlock {
     }
 
     public boolean isDir() {
-        return isDir;
+        return (flags & DIR_FLAG) != 0;
+    }
+
+    /**
+     * Last block of a chain, kept in the slot of the previous block which a head never has. Its fill level follows
+     * from the full size as every other block of a chain is full. Not set for chains of a single block and in
+     * containers written before tails were tracked.
+     */
+    public int getTailBlock() {
+        return getPrevBlock();
+    }
+
+    public void setTailBlock(int tailBlock) {
+        setPrevBlock(tailBlock);
+    }
+
+    public boolean hasExtents() {
+        return (flags & EXTENTS_FLAG) != 0;
+    }
+
+    /**
+     * Directory whose entries are kept in a {@link DirectoryTree}, the data holds the tree's header.
+     */
+    public boolean isIndexed() {
+        return (flags & INDEXED_FLAG) != 0;
+    }
+
+    /**
+     * Directory whose entries, whether in the data or in the leaves of its tree, use the variable length format of
+     * {@link ByteArrayTransformer#fromCompactInodesList}. Without it entries take {@link Inode#BYTES} each.
+     */
+    public boolean isCompact() {
+        return (flags & COMPACT_FLAG) != 0;
+    }
+
+    /**
+     * Indexed directory whose tree is ordered by name rather than by the hash of the name.
+     */
+    public boolean isSorted() {
+        return (flags & SORTED_FLAG) != 0;
+    }
+
+    public int getFlags() {
+        return flags;
     }
 
     @Override
@@ -63,7 +127,7 @@ public class MetaDataBlock extends DataBlock {
         ByteArrayTransformer.fromInt(dataFullSize, bytes, index);
         index += Integer.BYTES;
 
-        bytes[index] = isDir ? (byte) 1 : (byte) 0;
+        bytes[index] = (byte) flags;
         index += Byte.BYTES;
 
         super.toByteArray(bytes, index);
@@ -88,11 +152,12 @@ public class MetaDataBlock extends DataBlock {
         var fullSize = ByteArrayTransformer.toInt(bytes, index);
         index += Integer.BYTES;
 
-        var isDir = bytes[index] != 0;
+        var flags = bytes[index] & 0xFF;
         index += Byte.BYTES;
 
         var dataBlock = DataBlock.fromByteArray(bytes, index);
 
-        return new MetaDataBlock(name, fullSize, isDir, dataBlock.getPrevBlock(), dataBlock.getNextBlock(), dataBlock.getData());
+        return new MetaDataBlock(name, fullSize, flags, dataBlock.getPrevBlock(), dataBlock.getNextBlock(),
+            dataBlock.getData());
     }
 }
@@ -0,0 +1,171 @@
+package io.contained.internals;
+
+import java.util.Arrays;
+
+/**
+ * Block shared by the data of several small files. A slot directory at the start maps slot numbers to the offset
+ * and length of their data, which is laid out from the end of the block backwards. Slot numbers never change while
+ * the slot is in use, so data can be compacted without touching the directory entries referencing it.
+ */
+public class PackedBlock {
+    private static final int HEADER_BYTES = Short.BYTES;
+    private static final int SLOT_BYTES = Short.BYTES + Short.BYTES;
+    private static final int FREE_SLOT = 0;
+
+    private final byte[] bytes;
+
+    public PackedBlock(int blockSize) {
+        this.bytes = new byte[blockSize];
+    }
+
+    private PackedBlock(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public int getSlotCount() {
+        return getShort(0);
+    }
+
+    public boolean isEmpty() {
+        return getSlotCount() == 0;
+    }
+
+    public byte[] read(int slot) {
+        var offset = getOffset(slot);
+        if (offset == FREE_SLOT) {
+            throw new IllegalArgumentException("Slot " + slot + " is not in use");
+        }
+        return Arrays.copyOfRange(bytes, offset, offset + getLength(slot));
+    }
+
+    /**
+     * Bytes left for data and slots once the block is compacted.
+     */
+    public int getFreeBytes() {
+        var free = bytes.length - HEADER_BYTES - getSlotCount() * SLOT_BYTES;
+        for (int slot = 0; slot < getSlotCount(); slot++) {
+            if (getOffset(slot) != FREE_SLOT) {
+                free -= getLength(slot);
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Stores the data in a free slot, compacting the block if needed. Returns the slot or -1 if the data does not
+     * fit.
+     */
+    public int insert(byte[] data) {
+        var slot = 0;
+        while (slot < getSlotCount() && getOffset(slot) != FREE_SLOT) {
+            slot++;
+        }
+        var slotBytes = slot == getSlotCount() ? SLOT_BYTES : 0;
+        if (data.length + slotBytes > getFreeBytes()) {
+            return -1;
+        }
+        if (slot == getSlotCount()) {
+            setSlot(slot, FREE_SLOT, 0);
+            putShort(0, slot + 1);
+        }
+        place(slot, data);
+        return slot;
+    }
+
+    /**
+     * Replaces the data of a slot in place, returns {@code false} if the new data does not fit into this block.
+     */
+    public boolean update(int slot, byte[] data) {
+        var length = getLength(slot);
+        if (data.length <= length) {
+            var offset = getOffset(slot);
+            System.arraycopy(data, 0, bytes, offset, data.length);
+            setSlot(slot, offset, data.length);
+            return true;
+        }
+        if (data.length > getFreeBytes() + length) {
+            return false;
+        }
+        setSlot(slot, FREE_SLOT, 0);
+        place(slot, data);
+        return true;
+    }
+
+    public void remove(int slot) {
+        setSlot(slot, FREE_SLOT, 0);
+        var slotCount = getSlotCount();
+        while (slotCount > 0 && getOffset(slotCount - 1) == FREE_SLOT) {
+            slotCount--;
+        }
+        putShort(0, slotCount);
+    }
+
+    public byte[] toByteArray() {
+        return bytes;
+    }
+
+    public static PackedBlock fromByteArray(byte[] bytes, int blockSize) {
+        return new PackedBlock(Arrays.copyOf(bytes, blockSize));
+    }
+
+    private void place(int slot, byte[] data) {
+        var offset = dataStart() - data.length;
+        if (offset < HEADER_BYTES + getSlotCount() * SLOT_BYTES) {
+            compact();
+            offset = dataStart() - data.length;
+        }
+        System.arraycopy(data, 0, bytes, offset, data.length);
+        setSlot(slot, offset, data.length);
+    }
+
+    /**
+     * Moves the data of all slots in use to the end of the block, leaving the free space in one piece.
+     */
+    private void compact() {
+        var compacted = new byte[bytes.length];
+        var end = bytes.length;
+        for (int slot = 0; slot < getSlotCount(); slot++) {
+            var offset = getOffset(slot);
+            if (offset != FREE_SLOT) {
+                var length = getLength(slot);
+                end -= length;
+                System.arraycopy(bytes, offset, compacted, end, length);
+                setSlot(slot, end, length);
+            }
+        }
+        System.arraycopy(compacted, end, bytes, end, bytes.length - end);
+    }
+
+    private int dataStart() {
+        var start = bytes.length;
+        for (int slot = 0; slot < getSlotCount(); slot++) {
+            var offset = getOffset(slot);
+            if (offset != FREE_SLOT) {
+                start = Math.min(start, offset);
+            }
+        }
+        return start;
+    }
+
+    private int getOffset(int slot) {
+        return getShort(HEADER_BYTES + slot * SLOT_BYTES);
+    }
+
+    private int getLength(int slot) {
+        return getShort(HEADER_BYTES + slot * SLOT_BYTES + Short.BYTES);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        putShort(HEADER_BYTES + slot * SLOT_BYTES, offset);
+        putShort(HEADER_BYTES + slot * SLOT_BYTES + Short.BYTES, length);
+    }
+
+    private int getShort(int index) {
+        return ((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF);
+    }
+
+    private void putShort(int index, int value) {
+        bytes[index] = (byte) (value >>> 8);
+        bytes[index + 1] = (byte) value;
+    }
+}
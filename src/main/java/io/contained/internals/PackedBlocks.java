@@ -0,0 +1,248 @@
+package io.contained.internals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores small files in {@link PackedBlock}s shared between files of any directory. The directory entry of such a
+ * file references its block and slot. Each block is changed under a monitor of its own held only while the block
+ * is read, changed and written back, so callers only need their usual locks on the file's parent.
+ * <p>
+ * Within an operation the changed blocks are only pending until it commits, so a block an operation changed is
+ * claimed by it until it has ended: it is not offered for new files meanwhile, slots of other files in it are
+ * not updated in place and removals of them wait. Slots are only removed once the operation dropping them has
+ * committed, see {@link #removeAll(List, Claims)}.
+ */
+public class PackedBlocks {
+    private static final int LOCK_STRIPES = 64;
+
+    private final ContainerOperations operations;
+    private final AllocationTable allocationTable;
+    private final int blockSize;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Map<Integer, Claims> owners = new ConcurrentHashMap<>();
+
+    PackedBlocks(ContainerOperations operations, AllocationTable allocationTable, int blockSize) {
+        this.operations = operations;
+        this.allocationTable = allocationTable;
+        this.blockSize = blockSize;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Stores the data in the packed block with the least space that still fits it, or in a new one. Only blocks no
+     * running operation has claimed are tracked, so only those are offered.
+     */
+    public Slot write(byte[] data, Claims claims) throws IOException {
+        while (true) {
+            var block = allocationTable.findPackedBlock(data.length + Short.BYTES + Short.BYTES);
+            if (block == Configuration.noAddressMarker) {
+                break;
+            }
+            synchronized (lockOf(block)) {
+                if (!allocationTable.isPackedBlock(block)) {
+                    continue;
+                }
+                var packedBlock = readPackedBlock(block);
+                var slot = packedBlock.insert(data);
+                if (slot < 0) {
+                    allocationTable.trackPackedBlock(block, packedBlock.getFreeBytes());
+                    continue;
+                }
+                claim(block, claims);
+                operations.writeBlock(packedBlock.toByteArray(), block);
+                changed(block, packedBlock.getFreeBytes(), claims);
+                return new Slot(block, slot);
+            }
+        }
+
+        var packedBlock = new PackedBlock(blockSize);
+        var slot = packedBlock.insert(data);
+        var blocks = operations.getAvailableBlocks(1);
+        var block = blocks.getFirst();
+        synchronized (lockOf(block)) {
+            try {
+                operations.writeBlock(packedBlock.toByteArray(), block);
+            } catch (IOException | RuntimeException e) {
+                operations.releaseBlocks(blocks);
+                throw e;
+            }
+            operations.allocateBlocks(blocks);
+            if (claims != null) {
+                claims.claimed.put(block, new Claim(Claim.UNTRACKED, packedBlock.getFreeBytes()));
+                owners.put(block, claims);
+            } else {
+                allocationTable.trackPackedBlock(block, packedBlock.getFreeBytes());
+            }
+        }
+        return new Slot(block, slot);
+    }
+
+    public byte[] read(int block, int slot) throws IOException {
+        synchronized (lockOf(block)) {
+            return readPackedBlock(block).read(slot);
+        }
+    }
+
+    /**
+     * Replaces the data of a slot, returns {@code false} if it does not fit into the slot's block anymore or another
+     * running operation has claimed the block.
+     */
+    public boolean update(int block, int slot, byte[] data, Claims claims) throws IOException {
+        synchronized (lockOf(block)) {
+            if (isClaimedByOther(block, claims)) {
+                return false;
+            }
+            var packedBlock = readPackedBlock(block);
+            if (!packedBlock.update(slot, data)) {
+                if (!owners.containsKey(block)) {
+                    allocationTable.trackPackedBlock(block, packedBlock.getFreeBytes());
+                }
+                return false;
+            }
+            claim(block, claims);
+            operations.writeBlock(packedBlock.toByteArray(), block);
+            changed(block, packedBlock.getFreeBytes(), claims);
+            return true;
+        }
+    }
+
+    /**
+     * Frees a slot, and the whole block once its last slot is gone. Within an operation the slot is only noted and
+     * removed once the operation has committed, the entry still referencing it may be rolled back until then.
+     */
+    public void remove(int block, int slot, Claims claims) throws IOException {
+        if (claims != null) {
+            claims.removed.add(new Slot(block, slot));
+            return;
+        }
+        removeAll(List.of(new Slot(block, slot)), null);
+    }
+
+    /**
+     * Frees the given slots, blocks claimed by other operations are waited for. Blocks are claimed in ascending order
+     * and only operations that hold no claims while waiting do so, so waiting never deadlocks.
+     */
+    public void removeAll(List<Slot> slots, Claims claims) throws IOException {
+        var byBlock = new TreeMap<Integer, List<Integer>>();
+        for (var slot : slots) {
+            byBlock.computeIfAbsent(slot.block(), block -> new ArrayList<>()).add(slot.slot());
+        }
+        for (var entry : byBlock.entrySet()) {
+            var block = entry.getKey();
+            synchronized (lockOf(block)) {
+                awaitUnclaimed(block, claims);
+                claim(block, claims);
+                var packedBlock = readPackedBlock(block);
+                for (var slot : entry.getValue()) {
+                    packedBlock.remove(slot);
+                }
+                if (packedBlock.isEmpty()) {
+                    operations.freeBlocks(List.of(block));
+                    changed(block, Claim.UNTRACKED, claims);
+                    continue;
+                }
+                operations.writeBlock(packedBlock.toByteArray(), block);
+                changed(block, packedBlock.getFreeBytes(), claims);
+            }
+        }
+    }
+
+    /**
+     * Ends the claims of an operation once it has committed or been rolled back, tracking its blocks with the space
+     * they were left with or the space they had before.
+     */
+    public void release(Claims claims, boolean committed) {
+        for (var entry : claims.claimed.entrySet()) {
+            var block = entry.getKey();
+            synchronized (lockOf(block)) {
+                owners.remove(block, claims);
+                var freeBytes = committed ? entry.getValue().after() : entry.getValue().before();
+                if (freeBytes != Claim.UNTRACKED) {
+                    allocationTable.trackPackedBlock(block, freeBytes);
+                }
+                lockOf(block).notifyAll();
+            }
+        }
+        claims.claimed.clear();
+    }
+
+    private void claim(int block, Claims claims) {
+        if (claims == null || claims.claimed.containsKey(block)) {
+            return;
+        }
+        var before = allocationTable.isPackedBlock(block) ? allocationTable.getPackedFreeBytes(block) : Claim.UNTRACKED;
+        allocationTable.untrackPackedBlock(block);
+        claims.claimed.put(block, new Claim(before, before));
+        owners.put(block, claims);
+    }
+
+    private void changed(int block, int freeBytes, Claims claims) {
+        if (claims == null) {
+            if (freeBytes != Claim.UNTRACKED) {
+                allocationTable.trackPackedBlock(block, freeBytes);
+            }
+            return;
+        }
+        claims.claimed.computeIfPresent(block, (b, claim) -> new Claim(claim.before(), freeBytes));
+    }
+
+    private boolean isClaimedByOther(int block, Claims claims) {
+        var owner = owners.get(block);
+        return owner != null && owner != claims;
+    }
+
+    private void awaitUnclaimed(int block, Claims claims) throws IOException {
+        while (isClaimedByOther(block, claims)) {
+            try {
+                lockOf(block).wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a packed block", e);
+            }
+        }
+    }
+
+    private PackedBlock readPackedBlock(int block) throws IOException {
+        return PackedBlock.fromByteArray(operations.readBlock(block), blockSize);
+    }
+
+    private Object lockOf(int block) {
+        return locks[block % locks.length];
+    }
+
+    public record Slot(int block, int slot) {
+    }
+
+    /**
+     * Packed blocks an operation changed and slots it dropped, the blocks stay claimed by it until it has ended.
+     */
+    public static final class Claims {
+        private final Map<Integer, Claim> claimed = new HashMap<>();
+        private final List<Slot> removed = new ArrayList<>();
+
+        /**
+         * Slots dropped by the operation, taken once for removal after it committed.
+         */
+        public List<Slot> takeRemoved() {
+            var slots = new ArrayList<>(removed);
+            removed.clear();
+            return slots;
+        }
+    }
+
+    /**
+     * Free bytes a claimed block was tracked with before and is to be tracked with after the operation, or
+     * {@link #UNTRACKED}.
+     */
+    private record Claim(int before, int after) {
+        private static final int UNTRACKED = -1;
+    }
+}
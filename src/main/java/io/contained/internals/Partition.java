@@ -2,21 +2,24 @@ package io.contained.internals;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class Partition implements AutoCloseable {
-    private final SeekableByteChannel input;
-    private final SeekableByteChannel output;
+    private final FileChannel channel;
 
-    public Partition(SeekableByteChannel input, SeekableByteChannel output) {
-        this.input = input;
-        this.output = output;
+    public Partition(FileChannel channel) {
+        this.channel = channel;
     }
 
     public byte[] readBytes(int offset, int length) throws IOException {
         var buffer = ByteBuffer.allocate(length);
-        input.position(offset);
-        input.read(buffer);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
 
         buffer.flip();
         byte[] bytes = new byte[buffer.remaining()];
@@ -24,14 +27,59 @@ public class Partition implements AutoCloseable {
         return bytes;
     }
 
+    /**
+     * Read-only view of the given bytes for callers that only look at them and do not keep them. It may share memory
+     * with the partition, so it is only good until the next write.
+     */
+    public ByteBuffer readBuffer(int offset, int length) throws IOException {
+        return ByteBuffer.wrap(readBytes(offset, length)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads straight into the given array, returns the number of bytes read.
+     */
+    public int readBytes(int offset, byte[] bytes, int index, int length) throws IOException {
+        var buffer = ByteBuffer.wrap(bytes, index, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position() - index) < 0) {
+                break;
+            }
+        }
+        return buffer.position() - index;
+    }
+
     public void writeBytes(byte[] bytes, int offset) throws IOException {
-        output.position(offset);
-        output.write(ByteBuffer.wrap(bytes));
+        writeBytes(bytes, 0, bytes.length, offset);
+    }
+
+    public void writeBytes(byte[] bytes, int index, int length, int offset) throws IOException {
+        var buffer = ByteBuffer.wrap(bytes, index, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position() - index);
+        }
+    }
+
+    public long transferTo(int offset, int length, WritableByteChannel target) throws IOException {
+        return channel.transferTo(offset, length, target);
+    }
+
+    public long transferFrom(ReadableByteChannel source, int offset, int length) throws IOException {
+        if (channel.size() < offset) {
+            // the file is written lazily and a transfer never starts past its end
+            channel.write(ByteBuffer.allocate(1), offset - 1);
+        }
+        return channel.transferFrom(source, offset, length);
+    }
+
+    /**
+     * Returns once everything written so far is on disk.
+     */
+    public void force() throws IOException {
+        channel.force(true);
     }
 
     @Override
     public void close() throws Exception {
-        input.close();
-        output.close();
+        channel.close();
     }
 }
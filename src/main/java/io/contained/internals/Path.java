@@ -32,6 +32,17 @@ public class Path {
         return mapIfNotEmpty(() -> path.get(index));
     }
 
+    /**
+     * Delimiter independent form of the first {@code size} parts, e.g. {@code /foo/bar}.
+     */
+    public String getPrefix(int size) {
+        return String.join(DEFAULT_DELIMITER, path.subList(0, size));
+    }
+
+    public String normalized() {
+        return getPrefix(size());
+    }
+
     public Path getParentPath() {
         if (path.isEmpty()) {
             return null;
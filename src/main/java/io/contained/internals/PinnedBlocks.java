@@ -0,0 +1,96 @@
+package io.contained.internals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Blocks still read by snapshots. Runs freed while a snapshot pins them are held back and handed out again once no
+ * snapshot pins them anymore, so their content stays as the snapshot saw it. Holding them back is up to the caller,
+ * see {@link AllocationTable#holdExtents}.
+ */
+public class PinnedBlocks {
+    private final List<List<Extent>> pins = new ArrayList<>();
+    private final List<Extent> held = new ArrayList<>();
+
+    /**
+     * Pins the given runs, returns the pin to {@link #unpin} later.
+     */
+    public synchronized List<Extent> pin(List<Extent> extents) {
+        var pin = new ArrayList<>(extents);
+        pins.add(pin);
+        return pin;
+    }
+
+    /**
+     * Drops a pin, returns the runs held back that no snapshot pins anymore.
+     */
+    public synchronized List<Extent> unpin(List<Extent> pin) {
+        pins.removeIf(p -> p == pin);
+        var extents = new ArrayList<>(held);
+        held.clear();
+        List<Extent> free = new ArrayList<>();
+        for (var extent : extents) {
+            split(extent, free, held);
+        }
+        return free;
+    }
+
+    /**
+     * Holds back the parts of the given runs a snapshot pins and returns them, the others are not pinned.
+     */
+    public synchronized List<Extent> hold(List<Extent> extents) {
+        List<Extent> pinned = new ArrayList<>();
+        if (pins.isEmpty()) {
+            return pinned;
+        }
+        for (var extent : extents) {
+            split(extent, new ArrayList<>(), pinned);
+        }
+        held.addAll(pinned);
+        return pinned;
+    }
+
+    /**
+     * Drops all pins, returns every run held back.
+     */
+    public synchronized List<Extent> clear() {
+        pins.clear();
+        var extents = new ArrayList<>(held);
+        held.clear();
+        return extents;
+    }
+
+    public synchronized int getHeldBlockCount() {
+        return held.stream().mapToInt(Extent::length).sum();
+    }
+
+    private void split(Extent extent, List<Extent> free, List<Extent> pinned) {
+        List<Extent> overlaps = new ArrayList<>();
+        for (var pin : pins) {
+            for (var p : pin) {
+                var from = Math.max(p.start(), extent.start());
+                var to = Math.min(p.end(), extent.end());
+                if (from < to) {
+                    overlaps.add(new Extent(from, to - from));
+                }
+            }
+        }
+        overlaps.sort(Comparator.comparingInt(Extent::start));
+
+        var position = extent.start();
+        for (var overlap : overlaps) {
+            if (overlap.start() > position) {
+                free.add(new Extent(position, overlap.start() - position));
+            }
+            if (overlap.end() > position) {
+                var from = Math.max(position, overlap.start());
+                pinned.add(new Extent(from, overlap.end() - from));
+                position = overlap.end();
+            }
+        }
+        if (position < extent.end()) {
+            free.add(new Extent(position, extent.end() - position));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package io.contained.internals;
+
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Advisory byte range locks on contained files, keyed by path. Unlike the block locks of {@link LockManager} they
+ * are not bound to a thread: a range stays locked until its holder releases it, whichever thread does so.
+ * Shared ranges are compatible with each other, a holder asking for a range overlapping one it already holds
+ * gets an {@link OverlappingFileLockException} as with {@link java.nio.channels.FileChannel}.
+ */
+public class RangeLocks {
+    private final Map<String, List<Range>> ranges = new HashMap<>();
+
+    /**
+     * Waits until the range can be locked and locks it.
+     */
+    public synchronized Range acquire(Path path, long position, long size, boolean shared, Object holder)
+        throws InterruptedException {
+        var key = keyOf(path);
+        while (conflicts(key, position, size, shared, holder)) {
+            wait();
+        }
+        return add(key, position, size, shared, holder);
+    }
+
+    /**
+     * Locks the range if no other holder has an incompatible lock on it, returns null otherwise.
+     */
+    public synchronized Range tryAcquire(Path path, long position, long size, boolean shared, Object holder) {
+        var key = keyOf(path);
+        if (conflicts(key, position, size, shared, holder)) {
+            return null;
+        }
+        return add(key, position, size, shared, holder);
+    }
+
+    public synchronized void release(Range range) {
+        var held = ranges.get(range.key());
+        if (held != null && held.remove(range)) {
+            if (held.isEmpty()) {
+                ranges.remove(range.key());
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Releases every range of the given holder, used when a channel is closed.
+     */
+    public synchronized void releaseAll(Object holder) {
+        var released = false;
+        for (var iterator = ranges.values().iterator(); iterator.hasNext(); ) {
+            var held = iterator.next();
+            released |= held.removeIf(range -> range.holder() == holder);
+            if (held.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        if (released) {
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isHeld(Range range) {
+        var held = ranges.get(range.key());
+        return held != null && held.contains(range);
+    }
+
+    synchronized int size() {
+        return ranges.values().stream().mapToInt(List::size).sum();
+    }
+
+    private boolean conflicts(String key, long position, long size, boolean shared, Object holder) {
+        for (var range : ranges.getOrDefault(key, List.of())) {
+            if (!range.overlaps(position, size)) {
+                continue;
+            }
+            if (range.holder() == holder) {
+                throw new OverlappingFileLockException();
+            }
+            if (!shared || !range.shared()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Range add(String key, long position, long size, boolean shared, Object holder) {
+        var range = new Range(key, position, size, shared, holder);
+        ranges.computeIfAbsent(key, k -> new ArrayList<>()).add(range);
+        return range;
+    }
+
+    private static String keyOf(Path path) {
+        return path.getPrefix(path.size());
+    }
+
+    public static final class Range {
+        private final String key;
+        private final long position;
+        private final long size;
+        private final boolean shared;
+        private final Object holder;
+
+        private Range(String key, long position, long size, boolean shared, Object holder) {
+            this.key = key;
+            this.position = position;
+            this.size = size;
+            this.shared = shared;
+            this.holder = Objects.requireNonNull(holder);
+        }
+
+        String key() {
+            return key;
+        }
+
+        Object holder() {
+            return holder;
+        }
+
+        boolean shared() {
+            return shared;
+        }
+
+        boolean overlaps(long position, long size) {
+            // sizes are commonly Long.MAX_VALUE, compare the ends without adding them up
+            return position - this.position < this.size && this.position - position < size;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.contained.internals;
+
+import java.util.List;
+
+/**
+ * A file as it was when the snapshot was taken. Its metadata block and extent map, or the blocks of its chain, are
+ * kept in memory, the blocks they point at are pinned until the snapshot is closed. Pinned blocks freed meanwhile
+ * are free on disk already, a crash loses the snapshot but none of them.
+ */
+public class Snapshot {
+    private final MetaDataBlock metaDataBlock;
+    private final ExtentMap extents;
+    private final List<Integer> chainedBlocks;
+    private final List<Extent> pin;
+    private boolean closed;
+
+    Snapshot(MetaDataBlock metaDataBlock, ExtentMap extents, List<Integer> chainedBlocks, List<Extent> pin) {
+        this.metaDataBlock = metaDataBlock;
+        this.extents = extents;
+        this.chainedBlocks = chainedBlocks;
+        this.pin = pin;
+    }
+
+    public int size() {
+        return metaDataBlock.getDataFullSize();
+    }
+
+    MetaDataBlock getMetaDataBlock() {
+        return metaDataBlock;
+    }
+
+    ExtentMap getExtents() {
+        return extents;
+    }
+
+    List<Integer> getChainedBlocks() {
+        return chainedBlocks;
+    }
+
+    List<Extent> getPin() {
+        return pin;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Marks the snapshot closed, returns whether it was open.
+     */
+    synchronized boolean close() {
+        var wasOpen = !closed;
+        closed = true;
+        return wasOpen;
+    }
+}
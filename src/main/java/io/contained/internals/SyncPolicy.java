@@ -0,0 +1,19 @@
+package io.contained.internals;
+
+/**
+ * When written blocks are forced to disk. With {@code onCommit} every operation waits for it before it returns,
+ * otherwise a positive {@code interval} in milliseconds or {@code bytes} written since the last force make a
+ * background thread force them. Without any of them nothing is forced, blocks reach the disk whenever the operating
+ * system writes them back.
+ */
+public record SyncPolicy(boolean onCommit, int interval, int bytes) {
+    public static final SyncPolicy NONE = new SyncPolicy(false, 0, 0);
+
+    public boolean isPeriodic() {
+        return !onCommit && (interval > 0 || bytes > 0);
+    }
+
+    public boolean isNone() {
+        return !onCommit && !isPeriodic();
+    }
+}
@@ -0,0 +1,130 @@
+package io.contained.internals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Blocks written but not in place yet, up to a capacity in bytes. Writing a block that is still buffered replaces
+ * the buffered copy, so a block changed over and over between two flushes is written in place once. Flushes write
+ * the blocks in block order, runs of adjacent blocks with a single write.
+ */
+public class WriteBackBuffer {
+    private static final int MAX_RUN_BLOCKS = 64;
+
+    private final long capacity;
+    private final int blockSize;
+    private final TreeMap<Integer, byte[]> blocks = new TreeMap<>();
+    private long size;
+    private long writes;
+    private long absorbedWrites;
+    private long flushedBlocks;
+
+    public WriteBackBuffer(long capacity, int blockSize) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Buffer capacity must not be negative");
+        }
+        this.capacity = capacity;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Writes a run of blocks in place, {@code bytes} holds one block after the other.
+     */
+    public interface BlockWriter {
+        void write(int firstBlock, byte[] bytes) throws IOException;
+    }
+
+    public synchronized byte[] get(int block) {
+        return blocks.get(block);
+    }
+
+    public synchronized void put(int block, byte[] bytes) {
+        var previous = blocks.put(block, bytes);
+        writes++;
+        if (previous != null) {
+            size -= previous.length;
+            absorbedWrites++;
+        }
+        size += bytes.length;
+    }
+
+    /**
+     * Drops the buffered copy of a block that was overwritten in place by other means.
+     */
+    public synchronized void discard(int block) {
+        var bytes = blocks.remove(block);
+        if (bytes != null) {
+            size -= bytes.length;
+        }
+    }
+
+    public synchronized boolean isFull() {
+        return size >= capacity;
+    }
+
+    public synchronized boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized long getAbsorbedWrites() {
+        return absorbedWrites;
+    }
+
+    public synchronized long getFlushedBlocks() {
+        return flushedBlocks;
+    }
+
+    /**
+     * Writes every buffered block in place. Each run is written and dropped while holding the buffer, so a newer copy
+     * put meanwhile is never overwritten by an older one and readers always find the block in one place or the other.
+     */
+    public void flush(BlockWriter writer) throws IOException {
+        var next = Integer.MIN_VALUE;
+        while (true) {
+            synchronized (this) {
+                var first = blocks.ceilingKey(next);
+                if (first == null) {
+                    return;
+                }
+                List<byte[]> run = new ArrayList<>();
+                for (var entry : blocks.tailMap(first, true).entrySet()) {
+                    if (entry.getKey() != first + run.size() || run.size() == MAX_RUN_BLOCKS) {
+                        break;
+                    }
+                    run.add(entry.getValue());
+                }
+
+                writer.write(first, concat(run));
+                for (int i = 0; i < run.size(); i++) {
+                    size -= blocks.remove(first + i).length;
+                }
+                flushedBlocks += run.size();
+                next = first + run.size();
+            }
+        }
+    }
+
+    /**
+     * Lays the blocks of a run out one block apart, a single block is written as it is.
+     */
+    private byte[] concat(List<byte[]> run) {
+        if (run.size() == 1) {
+            return run.getFirst();
+        }
+        var bytes = new byte[(run.size() - 1) * blockSize + run.getLast().length];
+        for (int i = 0; i < run.size(); i++) {
+            System.arraycopy(run.get(i), 0, bytes, i * blockSize, run.get(i).length);
+        }
+        return bytes;
+    }
+}
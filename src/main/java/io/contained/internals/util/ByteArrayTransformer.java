@@ -1,11 +1,13 @@
 package io.contained.internals.util;
 
 import io.contained.internals.Configuration;
+import io.contained.internals.Extent;
 import io.contained.internals.Inode;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public final class ByteArrayTransformer {
@@ -26,6 +28,15 @@ public final class ByteArrayTransformer {
         bytes[offset + 3] = (byte) value;
     }
 
+    private static int toUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static void fromUnsignedShort(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (value >>> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
     public static String toString(byte[] bytes) {
         return new String(bytes, StandardCharsets.US_ASCII);
     }
@@ -68,4 +79,127 @@ public final class ByteArrayTransformer {
         }
         return bytes;
     }
+
+    private static final byte FILE_ENTRY = 0;
+    private static final byte DIR_ENTRY = 1;
+    private static final byte INLINE_ENTRY = 2;
+    private static final byte PACKED_ENTRY = 3;
+
+    /**
+     * Size of an entry in the compact directory format: type, block and the name's length followed by its UTF-8
+     * bytes. Entries of inline files add the data's length followed by the data, those of packed files the slot.
+     */
+    public static int compactSizeOf(Inode inode) {
+        var size = Byte.BYTES + Integer.BYTES + Short.BYTES + inode.getName().getBytes(StandardCharsets.UTF_8).length;
+        if (inode.isInline()) {
+            return size + Short.BYTES + inode.getData().length;
+        }
+        return inode.isPacked() ? size + Short.BYTES : size;
+    }
+
+    /**
+     * Size of the compact entry starting at the given index.
+     */
+    public static int compactSizeAt(byte[] bytes, int index) {
+        var nameIndex = index + Byte.BYTES + Integer.BYTES + Short.BYTES;
+        var end = nameIndex + toUnsignedShort(bytes, nameIndex - Short.BYTES);
+        return switch (bytes[index]) {
+            case INLINE_ENTRY -> end + Short.BYTES + toUnsignedShort(bytes, end) - index;
+            case PACKED_ENTRY -> end + Short.BYTES - index;
+            default -> end - index;
+        };
+    }
+
+    public static List<Inode> toCompactInodesList(byte[] bytes) {
+        List<Inode> inodes = new ArrayList<>();
+        if (bytes != null) {
+            var index = 0;
+            while (index < bytes.length) {
+                var type = bytes[index];
+                index += Byte.BYTES;
+
+                var block = toInt(bytes, index);
+                index += Integer.BYTES;
+
+                var length = toUnsignedShort(bytes, index);
+                index += Short.BYTES;
+
+                var name = new String(bytes, index, length, StandardCharsets.UTF_8);
+                index += length;
+
+                if (type == INLINE_ENTRY) {
+                    var dataLength = toUnsignedShort(bytes, index);
+                    index += Short.BYTES;
+                    inodes.add(new Inode(name, Arrays.copyOfRange(bytes, index, index + dataLength)));
+                    index += dataLength;
+                } else if (type == PACKED_ENTRY) {
+                    inodes.add(new Inode(name, block, toUnsignedShort(bytes, index)));
+                    index += Short.BYTES;
+                } else {
+                    inodes.add(new Inode(name, block, type == DIR_ENTRY));
+                }
+            }
+        }
+        return inodes;
+    }
+
+    public static byte[] fromCompactInodesList(List<Inode> inodes) {
+        var size = 0;
+        for (var inode : inodes) {
+            size += compactSizeOf(inode);
+        }
+        var bytes = new byte[size];
+
+        var index = 0;
+        for (var inode : inodes) {
+            bytes[index] = inode.isInline() ? INLINE_ENTRY : inode.isPacked() ? PACKED_ENTRY : inode.isDir() ? DIR_ENTRY : FILE_ENTRY;
+            index += Byte.BYTES;
+
+            fromInt(inode.getBlock(), bytes, index);
+            index += Integer.BYTES;
+
+            var name = inode.getName().getBytes(StandardCharsets.UTF_8);
+            if (name.length > Configuration.filenameLength) {
+                throw new IllegalArgumentException("Name is too long: " + inode.getName());
+            }
+            fromUnsignedShort(name.length, bytes, index);
+            index += Short.BYTES;
+
+            System.arraycopy(name, 0, bytes, index, name.length);
+            index += name.length;
+
+            if (inode.isInline()) {
+                fromUnsignedShort(inode.getData().length, bytes, index);
+                index += Short.BYTES;
+                System.arraycopy(inode.getData(), 0, bytes, index, inode.getData().length);
+                index += inode.getData().length;
+            } else if (inode.isPacked()) {
+                fromUnsignedShort(inode.getSlot(), bytes, index);
+                index += Short.BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    public static List<Extent> toExtentsList(byte[] bytes) {
+        List<Extent> extents = new ArrayList<>();
+        if (bytes != null) {
+            for (int i = 0; i + Extent.BYTES <= bytes.length; i += Extent.BYTES) {
+                extents.add(new Extent(toInt(bytes, i), toInt(bytes, i + Integer.BYTES)));
+            }
+        }
+        return extents;
+    }
+
+    public static byte[] fromExtentsList(List<Extent> extents) {
+        var bytes = new byte[extents.size() * Extent.BYTES];
+
+        var index = 0;
+        for (var extent : extents) {
+            fromInt(extent.start(), bytes, index);
+            fromInt(extent.length(), bytes, index + Integer.BYTES);
+            index += Extent.BYTES;
+        }
+        return bytes;
+    }
 }
@@ -6,8 +6,19 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -18,8 +29,10 @@ public class ContainerTest {
     private final ContainerDescriptor descriptor = new ContainerDescriptor(1);
 
     @BeforeEach
-    public void setup() {
+    public void setup() throws Exception {
         Mockito.reset(partition);
+        // views are served from the stubbed reads
+        when(partition.readBuffer(anyInt(), anyInt())).thenCallRealMethod();
     }
 
     @Test
@@ -33,7 +46,7 @@ public class ContainerTest {
             container.createDir("/dirPath");
 
             var inodes = List.of(new Inode("dirPath", 1, true));
-            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var inodesByteArray = ByteArrayTransformer.fromCompactInodesList(inodes);
             rootDirBlock.setDataFullSize(inodesByteArray.length);
             rootDirBlock.setData(inodesByteArray);
 
@@ -50,7 +63,7 @@ public class ContainerTest {
     @Test
     public void testCreateFile() {
         try (var container = createContainer()) {
-            var data = "Dummy data".getBytes(StandardCharsets.US_ASCII);
+            var data = Arrays.copyOf("Dummy data".getBytes(StandardCharsets.US_ASCII), Configuration.packedDataThreshold);
             var rootDirBlock = new MetaDataBlock(new byte[0]);
             var rootOffset = container.getMasterBlockSize();
             when(partition.readBytes(eq(rootOffset), eq(descriptor.getBlockSize())))
@@ -59,7 +72,7 @@ public class ContainerTest {
             container.createFile("/filePath", data);
 
             var inodes = List.of(new Inode("filePath", 1, false));
-            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var inodesByteArray = ByteArrayTransformer.fromCompactInodesList(inodes);
             rootDirBlock.setDataFullSize(inodesByteArray.length);
             rootDirBlock.setData(inodesByteArray);
 
@@ -73,6 +86,30 @@ public class ContainerTest {
         }
     }
 
+    @Test
+    public void testCreateInlineFile() {
+        try (var container = createContainer()) {
+            var data = "Dummy data".getBytes(StandardCharsets.US_ASCII);
+            var rootDirBlock = new MetaDataBlock(new byte[0]);
+            var rootOffset = container.getMasterBlockSize();
+            when(partition.readBytes(eq(rootOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(rootDirBlock.toByteArray());
+
+            container.createFile("/filePath", data);
+
+            var inodesByteArray = ByteArrayTransformer.fromCompactInodesList(List.of(new Inode("filePath", data)));
+            rootDirBlock.setDataFullSize(inodesByteArray.length);
+            rootDirBlock.setData(inodesByteArray);
+
+            verify(partition, times(1)).writeBytes(rootDirBlock.toByteArray(), rootOffset);
+            verify(partition, times(1)).writeBytes(any(), anyInt());
+            assertThat(container.read("/filePath").data()).containsExactly(data);
+            verify(partition, times(1)).readBytes(anyInt(), anyInt());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Test
     public void testWriteToFile() {
         try (var container = createContainer()) {
@@ -137,6 +174,206 @@ public class ContainerTest {
         }
     }
 
+    @Test
+    public void testAppendToChainedFileStartsAtTail() {
+        try (var container = createContainer()) {
+            var data = " appended".getBytes(StandardCharsets.US_ASCII);
+
+            var inodes = List.of(new Inode("filePath", 1, false));
+            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var rootDirBlock = new MetaDataBlock(new byte[0], inodesByteArray.length, true, inodesByteArray);
+
+            var headData = new byte[descriptor.getBlockSize() - MetaDataBlock.META_BYTES];
+            var middleData = new byte[descriptor.getBlockSize() - DataBlock.META_BYTES];
+            var tailData = "Dummy data".getBytes(StandardCharsets.US_ASCII);
+            var fullSize = headData.length + middleData.length + tailData.length;
+            var fileBlock = new MetaDataBlock(ByteArrayTransformer.fromString("filePath"), fullSize, false, 3, 2, headData);
+            var tailBlock = new DataBlock(2, tailData);
+
+            var rootOffset = container.getMasterBlockSize();
+            var fileOffset = container.getMasterBlockSize() + descriptor.getBlockSize();
+            var middleOffset = container.getMasterBlockSize() + descriptor.getBlockSize() * 2;
+            var tailOffset = container.getMasterBlockSize() + descriptor.getBlockSize() * 3;
+
+            when(partition.readBytes(eq(rootOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(rootDirBlock.toByteArray());
+            when(partition.readBytes(eq(fileOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(fileBlock.toByteArray());
+            when(partition.readBytes(eq(tailOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(tailBlock.toByteArray());
+
+            container.append("/filePath", data);
+
+            fileBlock.setDataFullSize(fullSize + data.length);
+            tailBlock.setData("Dummy data appended".getBytes(StandardCharsets.US_ASCII));
+
+            verify(partition, times(1)).writeBytes(fileBlock.toByteArray(), fileOffset);
+            verify(partition, times(1)).writeBytes(tailBlock.toByteArray(), tailOffset);
+            verify(partition, never()).readBytes(eq(middleOffset), anyInt());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testRangedReadSkipsPrecedingPayloads() {
+        try (var container = createContainer()) {
+            var inodes = List.of(new Inode("filePath", 1, false));
+            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var rootDirBlock = new MetaDataBlock(new byte[0], inodesByteArray.length, true, inodesByteArray);
+
+            var headData = new byte[descriptor.getBlockSize() - MetaDataBlock.META_BYTES];
+            var middleData = new byte[descriptor.getBlockSize() - DataBlock.META_BYTES];
+            var tailData = "Dummy data".getBytes(StandardCharsets.US_ASCII);
+            var fullSize = headData.length + middleData.length + tailData.length;
+            var fileBlock = new MetaDataBlock(ByteArrayTransformer.fromString("filePath"), fullSize, false, 3, 2, headData);
+            var middleBlock = new DataBlock(1, 3, middleData);
+            var tailBlock = new DataBlock(2, tailData);
+
+            var rootOffset = container.getMasterBlockSize();
+            var fileOffset = container.getMasterBlockSize() + descriptor.getBlockSize();
+            var middleOffset = container.getMasterBlockSize() + descriptor.getBlockSize() * 2;
+            var tailOffset = container.getMasterBlockSize() + descriptor.getBlockSize() * 3;
+
+            when(partition.readBytes(eq(rootOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(rootDirBlock.toByteArray());
+            when(partition.readBytes(eq(fileOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(fileBlock.toByteArray());
+            when(partition.readBytes(eq(middleOffset), eq(DataBlock.META_BYTES)))
+                .thenReturn(Arrays.copyOf(middleBlock.toByteArray(), DataBlock.META_BYTES));
+            when(partition.readBytes(eq(tailOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(tailBlock.toByteArray());
+
+            var data = container.read("/filePath", fullSize - tailData.length + 6, 100);
+            assertThat(data).containsExactly("data".getBytes(StandardCharsets.US_ASCII));
+
+            var buffer = ByteBuffer.allocate(5);
+            assertThat(container.readInto("/filePath", fullSize - tailData.length, buffer)).isEqualTo(5);
+            assertThat(buffer.array()).containsExactly("Dummy".getBytes(StandardCharsets.US_ASCII));
+            assertThat(container.readInto("/filePath", fullSize, buffer.clear())).isEqualTo(-1);
+
+            verify(partition, never()).readBytes(eq(middleOffset), eq(descriptor.getBlockSize()));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testContiguousChainIsReadInRuns() {
+        try (var container = createContainer()) {
+            var inodes = List.of(new Inode("filePath", 1, false));
+            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var rootDirBlock = new MetaDataBlock(new byte[0], inodesByteArray.length, true, inodesByteArray);
+
+            var blockSize = descriptor.getBlockSize();
+            var headData = new byte[blockSize - MetaDataBlock.META_BYTES];
+            var middleData = new byte[blockSize - DataBlock.META_BYTES];
+            Arrays.fill(middleData, (byte) 7);
+            var tailData = "Dummy data".getBytes(StandardCharsets.US_ASCII);
+            var fullSize = headData.length + middleData.length * 3 + tailData.length;
+            var fileBlock = new MetaDataBlock(ByteArrayTransformer.fromString("filePath"), fullSize, false, 5, 2, headData);
+            var secondBlock = new DataBlock(1, 3, middleData);
+            var thirdBlock = new DataBlock(2, 4, middleData);
+            var fourthBlock = new DataBlock(3, 5, middleData);
+            var tailBlock = new DataBlock(4, tailData);
+
+            var rootOffset = container.getMasterBlockSize();
+            var fileOffset = container.getMasterBlockSize() + blockSize;
+            var run = new byte[blockSize * 2];
+            System.arraycopy(thirdBlock.toByteArray(), 0, run, 0, blockSize);
+            System.arraycopy(fourthBlock.toByteArray(), 0, run, blockSize, blockSize);
+
+            when(partition.readBytes(eq(rootOffset), eq(blockSize))).thenReturn(rootDirBlock.toByteArray());
+            when(partition.readBytes(eq(fileOffset), eq(blockSize))).thenReturn(fileBlock.toByteArray());
+            when(partition.readBytes(eq(fileOffset + blockSize), eq(blockSize))).thenReturn(secondBlock.toByteArray());
+            when(partition.readBytes(eq(fileOffset + blockSize * 2), eq(blockSize * 2))).thenReturn(run);
+            when(partition.readBytes(eq(fileOffset + blockSize * 4), eq(blockSize))).thenReturn(tailBlock.toByteArray());
+
+            var data = container.read("/filePath").data();
+            assertThat(data).hasSize(fullSize);
+            assertThat(Arrays.copyOfRange(data, headData.length, headData.length + middleData.length * 3))
+                .containsOnly(7);
+            assertThat(Arrays.copyOfRange(data, fullSize - tailData.length, fullSize)).containsExactly(tailData);
+
+            verify(partition, times(1)).readBytes(fileOffset + blockSize * 2, blockSize * 2);
+            verify(partition, never()).readBytes(eq(fileOffset + blockSize * 3), anyInt());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testStreamFollowsChainOnFromLastBlock() throws Exception {
+        streamChainedFile(false);
+    }
+
+    @Test
+    public void testStreamFollowsChainOnAcrossChangesToOtherFiles() throws Exception {
+        streamChainedFile(true);
+    }
+
+    private void streamChainedFile(boolean changeOthers) throws Exception {
+        var allocationTable = new AllocationTable(descriptor.getBlockCount());
+        allocationTable.allocateBlocks(IntStream.range(0, 18).boxed().toList());
+        try (var container = new Container(partition, descriptor, allocationTable, ContainerOptions.defaults()
+            .withAllocationFlushInterval(0).withJournal(false).withBlockCacheSize(0))) {
+            var inodes = List.of(new Inode("filePath", 1, false));
+            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var rootDirBlock = new MetaDataBlock(new byte[0], inodesByteArray.length, true, inodesByteArray);
+
+            var blockSize = descriptor.getBlockSize();
+            var headData = new byte[blockSize - MetaDataBlock.META_BYTES];
+            var middleData = new byte[blockSize - DataBlock.META_BYTES];
+            var chainLength = 8;
+            var fullSize = headData.length + middleData.length * chainLength;
+            var image = new byte[container.getMasterBlockSize() + blockSize * (2 + chainLength * 2)];
+            var chainBlocks = new int[chainLength];
+            for (int i = 0; i < chainLength; i++) {
+                chainBlocks[i] = 2 + i * 2;
+            }
+            var fileBlock = new MetaDataBlock(ByteArrayTransformer.fromString("filePath"), fullSize, false,
+                chainBlocks[chainLength - 1], chainBlocks[0], headData);
+            var rootBytes = rootDirBlock.toByteArray();
+            System.arraycopy(rootBytes, 0, image, container.getMasterBlockSize(), rootBytes.length);
+            var fileBytes = fileBlock.toByteArray();
+            System.arraycopy(fileBytes, 0, image, container.getMasterBlockSize() + blockSize, fileBytes.length);
+            for (int i = 0; i < chainLength; i++) {
+                Arrays.fill(middleData, (byte) i);
+                var block = new DataBlock(i == 0 ? 1 : chainBlocks[i - 1],
+                    i + 1 < chainLength ? chainBlocks[i + 1] : Configuration.noAddressMarker, middleData);
+                var bytes = block.toByteArray();
+                System.arraycopy(bytes, 0, image, container.getMasterBlockSize() + blockSize * chainBlocks[i],
+                    bytes.length);
+            }
+            when(partition.readBytes(anyInt(), anyInt())).thenAnswer(invocation -> {
+                int offset = invocation.getArgument(0);
+                int length = invocation.getArgument(1);
+                return Arrays.copyOfRange(image, offset, offset + length);
+            });
+
+            var data = new byte[fullSize];
+            try (var stream = container.newInputStream("/filePath")) {
+                var read = 0;
+                var reads = 0;
+                while (read < fullSize) {
+                    read += stream.read(data, read, Math.min(100, fullSize - read));
+                    if (changeOthers && ++reads % 20 == 0) {
+                        // commits other operations, leaving the file's chain as it is
+                        container.createDir("/dir" + reads);
+                    }
+                }
+                assertThat(stream.read()).isEqualTo(-1);
+            }
+            for (int i = 0; i < chainLength; i++) {
+                var from = headData.length + middleData.length * i;
+                assertThat(Arrays.copyOfRange(data, from, from + middleData.length)).containsOnly(i);
+            }
+
+            // every link was followed by reading its block, never by walking the chain's headers again
+            verify(partition, never()).readBytes(anyInt(), eq(DataBlock.META_BYTES));
+        }
+    }
+
     @Test
     public void testListDir() {
         try (var container = createContainer()) {
@@ -185,6 +422,76 @@ public class ContainerTest {
         }
     }
 
+    @Test
+    public void testRepeatedReadsAreServedFromBlockCache() {
+        try (var container = createContainer()) {
+            var inodes = List.of(new Inode("filePath", 1, false));
+            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var rootDirBlock = new MetaDataBlock(new byte[0], inodesByteArray.length, true, inodesByteArray);
+
+            var data = "Dummy data".getBytes(StandardCharsets.US_ASCII);
+            var fileBlock = new MetaDataBlock(ByteArrayTransformer.fromString("filePath"), data.length, false, data);
+            var rootOffset = container.getMasterBlockSize();
+            var fileOffset = container.getMasterBlockSize() + descriptor.getBlockSize();
+
+            when(partition.readBytes(eq(rootOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(rootDirBlock.toByteArray());
+            when(partition.readBytes(eq(fileOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(fileBlock.toByteArray());
+
+            container.read("/filePath");
+            var file = container.read("/filePath");
+            assertThat(file.data()).containsExactly(data);
+
+            verify(partition, times(1)).readBytes(rootOffset, descriptor.getBlockSize());
+            verify(partition, times(1)).readBytes(fileOffset, descriptor.getBlockSize());
+            assertThat(container.getBlockCacheStatistics().hits()).isGreaterThan(0);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testNestedLookupsAreServedFromDentryCache() {
+        try (var container = createContainer()) {
+            var inodes = List.of(new Inode("dirPath", 1, true));
+            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var rootDirBlock = new MetaDataBlock(new byte[0], inodesByteArray.length, true, inodesByteArray);
+
+            var dirInodes = List.of(new Inode("filePath", 2, false));
+            inodesByteArray = ByteArrayTransformer.fromInodesList(dirInodes);
+            var dirBlock = new MetaDataBlock(ByteArrayTransformer.fromString("dirPath"), inodesByteArray.length, true, inodesByteArray);
+
+            var data = "Dummy data".getBytes(StandardCharsets.US_ASCII);
+            var fileBlock = new MetaDataBlock(ByteArrayTransformer.fromString("filePath"), data.length, false, data);
+            var rootOffset = container.getMasterBlockSize();
+            var dirOffset = container.getMasterBlockSize() + descriptor.getBlockSize();
+            var fileOffset = container.getMasterBlockSize() + descriptor.getBlockSize() * 2;
+
+            when(partition.readBytes(eq(rootOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(rootDirBlock.toByteArray());
+            when(partition.readBytes(eq(dirOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(dirBlock.toByteArray());
+            when(partition.readBytes(eq(fileOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(fileBlock.toByteArray());
+
+            container.read("/dirPath/filePath");
+            var misses = container.getDentryCacheStatistics().misses();
+            var file = container.read("/dirPath/filePath");
+            assertThat(file.data()).containsExactly(data);
+            assertThat(container.getDentryCacheStatistics().misses()).isEqualTo(misses);
+
+            assertThatThrownBy(() -> container.read("/dirPath/missing"))
+                .isInstanceOf(IllegalArgumentException.class);
+            misses = container.getDentryCacheStatistics().misses();
+            assertThatThrownBy(() -> container.read("/dirPath/missing"))
+                .isInstanceOf(IllegalArgumentException.class);
+            assertThat(container.getDentryCacheStatistics().misses()).isEqualTo(misses);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Test
     public void testDeleteDir() {
         try (var container = createContainer()) {
@@ -325,9 +632,250 @@ public class ContainerTest {
         }
     }
 
+    @Test
+    public void testMigrateDirectories() {
+        try (var container = createContainer()) {
+            var inodes = List.of(new Inode("filePath", 1, false));
+            var inodesByteArray = ByteArrayTransformer.fromInodesList(inodes);
+            var rootDirBlock = new MetaDataBlock(new byte[0], inodesByteArray.length, true, inodesByteArray);
+            var rootOffset = container.getMasterBlockSize();
+            when(partition.readBytes(eq(rootOffset), eq(descriptor.getBlockSize())))
+                .thenReturn(rootDirBlock.toByteArray());
+
+            assertThat(container.migrateDirectories()).isEqualTo(1);
+
+            var compactBytes = ByteArrayTransformer.fromCompactInodesList(inodes);
+            var compactRootDirBlock = new MetaDataBlock(new byte[0]);
+            compactRootDirBlock.setDataFullSize(compactBytes.length);
+            compactRootDirBlock.setData(compactBytes);
+
+            verify(partition, times(1)).writeBytes(compactRootDirBlock.toByteArray(), rootOffset);
+            assertThat(container.migrateDirectories()).isZero();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testFailedOperationsLeaveNothingBehind() throws Exception {
+        var path = Files.createTempFile("cdfs", ".cdfs");
+        Files.delete(path);
+        var options = ContainerOptions.defaults().withJournal(true).withBlockCacheSize(0)
+            .withAllocationFlushInterval(0);
+        try {
+            try (var container = Filesystem.create(path, 1, options)) {
+                container.createDir("/dir");
+                container.createDir("/dst");
+                for (int i = 0; i < 200; i++) {
+                    container.createFile(String.format("/dir/file-with-a-long-name-%03d", i), new byte[8]);
+                }
+            }
+
+            var partition = new FailingPartition(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            var descriptor = ContainerDescriptor.fromByteArray(partition.readBytes(0, ContainerDescriptor.BYTES));
+            var allocationTable = AllocationTable.fromByteArray(
+                partition.readBytes(ContainerDescriptor.BYTES, AllocationTable.sizeOf(descriptor.getBlockCount())));
+            var data = new byte[descriptor.getBlockSize() * 4];
+            Arrays.fill(data, (byte) 7);
+            try (var container = new Container(partition, descriptor, allocationTable, options)) {
+                container.recover();
+                var freeBlocks = allocationTable.getFreeBlockCount();
+                var files = container.listDir("/dir").files();
+
+                var failures = 0;
+                for (int reads = 0; ; reads++) {
+                    partition.failAfter(reads);
+                    try {
+                        container.createFile("/dir/new", data);
+                        break;
+                    } catch (IOException e) {
+                        failures++;
+                    }
+                    partition.failAfter(-1);
+                    assertThat(allocationTable.getFreeBlockCount()).isEqualTo(freeBlocks);
+                    assertThat(container.listDir("/dir").files()).isEqualTo(files);
+                }
+                assertThat(failures).isGreaterThan(1);
+
+                for (int reads = 0; ; reads++) {
+                    partition.failAfter(reads);
+                    try {
+                        container.move("/dir/file-with-a-long-name-100", "/dst");
+                        break;
+                    } catch (IOException e) {
+                        partition.failAfter(-1);
+                        assertThat(container.listDir("/dir").files()).contains("file-with-a-long-name-100");
+                        assertThat(container.listDir("/dst").files()).isEmpty();
+                    }
+                }
+                partition.failAfter(-1);
+            }
+
+            try (var container = Filesystem.open(path, options)) {
+                assertThat(container.read("/dir/new").data()).isEqualTo(data);
+                assertThat(container.listDir("/dir").files()).doesNotContain("file-with-a-long-name-100");
+                assertThat(container.listDir("/dst").files()).containsExactly("file-with-a-long-name-100");
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void testPackedBlocksAreNotSharedBeforeCommit() throws Exception {
+        var path = Files.createTempFile("cdfs", ".cdfs");
+        Files.delete(path);
+        var options = ContainerOptions.defaults().withJournal(true).withBlockCacheSize(0)
+            .withAllocationFlushInterval(0);
+        var data = new byte[Configuration.packedDataThreshold / 4];
+        Arrays.fill(data, (byte) 7);
+        try {
+            try (var container = Filesystem.create(path, 1, options)) {
+                container.createDir("/a");
+                container.createDir("/b");
+                for (int i = 0; i < 200; i++) {
+                    container.createFile(String.format("/a/file-with-a-long-name-%03d", i), new byte[8]);
+                }
+                container.createFile("/b/old", data);
+            }
+
+            var partition = new FailingPartition(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            var descriptor = ContainerDescriptor.fromByteArray(partition.readBytes(0, ContainerDescriptor.BYTES));
+            var allocationTable = AllocationTable.fromByteArray(
+                partition.readBytes(ContainerDescriptor.BYTES, AllocationTable.sizeOf(descriptor.getBlockCount())));
+            try (var container = new Container(partition, descriptor, allocationTable, options)) {
+                container.recover();
+                var freeBlocks = allocationTable.getFreeBlockCount();
+                var files = container.listDir("/a").files();
+
+                for (int reads = 0; ; reads++) {
+                    var paused = new CountDownLatch(1);
+                    var resume = new CountDownLatch(1);
+                    var failed = new AtomicBoolean();
+                    var armed = reads;
+                    var creating = new Thread(() -> {
+                        partition.failAfter(armed, paused, resume);
+                        try {
+                            container.createFile("/a/new", data);
+                        } catch (IOException e) {
+                            failed.set(true);
+                        }
+                    });
+                    creating.start();
+                    while (!paused.await(10, TimeUnit.MILLISECONDS) && creating.isAlive()) {
+                        Thread.onSpinWait();
+                    }
+                    if (paused.getCount() > 0) {
+                        creating.join();
+                        break;
+                    }
+
+                    // the failing creation is stuck half way, its packed block must neither be offered nor changed
+                    var failure = new AtomicReference<IOException>();
+                    var changing = new Thread(() -> {
+                        try {
+                            container.createFile("/b/other", data);
+                            container.delete("/b/old");
+                        } catch (IOException e) {
+                            failure.set(e);
+                        }
+                    });
+                    changing.start();
+                    changing.join(100);
+                    resume.countDown();
+                    creating.join();
+                    changing.join();
+
+                    assertThat(failed).isTrue();
+                    assertThat(failure).hasNullValue();
+                    assertThat(container.listDir("/a").files()).isEqualTo(files);
+                    assertThat(container.read("/b/other").data()).isEqualTo(data);
+                    container.delete("/b/other");
+                    container.createFile("/b/old", data);
+                }
+
+                assertThat(container.read("/a/new").data()).isEqualTo(data);
+                container.delete("/a/new");
+                container.delete("/b/old");
+                assertThat(allocationTable.getFreeBlockCount()).isEqualTo(freeBlocks + 1);
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
     private Container createContainer() {
         var allocationTable = new AllocationTable(descriptor.getBlockCount());
         allocationTable.allocateBlocks(List.of(0));
-        return new Container(partition, descriptor, allocationTable);
+        return new Container(partition, descriptor, allocationTable, ContainerOptions.defaults().withAllocationFlushInterval(0)
+            .withJournal(false));
+    }
+
+    /**
+     * Partition failing every read once the given number of reads succeeded.
+     */
+    private static class FailingPartition extends Partition {
+        private int reads = -1;
+        private Thread thread;
+        private CountDownLatch paused;
+        private CountDownLatch resume;
+
+        FailingPartition(FileChannel channel) {
+            super(channel);
+        }
+
+        synchronized void failAfter(int reads) {
+            this.reads = reads;
+            this.thread = null;
+            this.paused = null;
+            this.resume = null;
+        }
+
+        /**
+         * Only counts and fails reads of the calling thread, which waits for {@code resume} before failing.
+         */
+        synchronized void failAfter(int reads, CountDownLatch paused, CountDownLatch resume) {
+            this.reads = reads;
+            this.thread = Thread.currentThread();
+            this.paused = paused;
+            this.resume = resume;
+        }
+
+        @Override
+        public byte[] readBytes(int offset, int length) throws IOException {
+            checkRead();
+            return super.readBytes(offset, length);
+        }
+
+        @Override
+        public int readBytes(int offset, byte[] bytes, int index, int length) throws IOException {
+            checkRead();
+            return super.readBytes(offset, bytes, index, length);
+        }
+
+        private void checkRead() throws IOException {
+            CountDownLatch paused;
+            CountDownLatch resume;
+            synchronized (this) {
+                if (reads < 0 || thread != null && thread != Thread.currentThread()) {
+                    return;
+                }
+                if (reads > 0) {
+                    reads--;
+                    return;
+                }
+                paused = this.paused;
+                resume = this.resume;
+            }
+            if (paused != null) {
+                paused.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            throw new IOException("Injected read failure");
+        }
     }
 }
@@ -1,16 +1,39 @@
 package io.contained.integration;
 
+import io.contained.ContainedDir;
 import io.contained.Container;
+import io.contained.ContainerOptions;
+import io.contained.Durability;
 import io.contained.Filesystem;
+import io.contained.internals.Configuration;
+import io.contained.internals.ContainerDescriptor;
 import io.contained.internals.util.ByteArrayTransformer;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -59,6 +82,932 @@ public class CdfsIntegrationTest {
         }
     }
 
+    @Test
+    public void testMemoryMappedContainer() throws Exception {
+        var testFilePath = Paths.get("testMemoryMapped");
+        var options = ContainerOptions.defaults().withMemoryMapping(true);
+        var data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        try (var container = Filesystem.create(testFilePath, 1, options)) {
+            container.createDir("/dir");
+            container.createFile("/dir/file", data);
+        }
+
+        try (var container = Filesystem.open(testFilePath, options)) {
+            assertThat(container.read("/dir/file").data()).containsExactly(data);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testMultiBlockFileUpdates() throws Exception {
+        var testFilePath = Paths.get("testMultiBlockFileUpdates");
+        var initial = bytes(10000, 1);
+        var appended = bytes(9000, 2);
+        var shorter = bytes(5000, 3);
+        var longer = bytes(20000, 4);
+
+        try (var container = Filesystem.create(testFilePath, 1)) {
+            container.createFile("/file", initial);
+            container.append("/file", appended);
+            var expected = new byte[initial.length + appended.length];
+            System.arraycopy(initial, 0, expected, 0, initial.length);
+            System.arraycopy(appended, 0, expected, initial.length, appended.length);
+            assertThat(container.read("/file").data()).containsExactly(expected);
+
+            container.write("/file", shorter);
+            assertThat(container.read("/file").data()).containsExactly(shorter);
+
+            container.write("/file", longer);
+            assertThat(container.read("/file").data()).containsExactly(longer);
+        }
+
+        try (var container = Filesystem.open(testFilePath)) {
+            assertThat(container.read("/file").data()).containsExactly(longer);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testRangedReads() throws Exception {
+        var testFilePath = Paths.get("testRangedReads");
+        var large = bytes(50000, 8);
+        var small = bytes(100, 9);
+
+        try (var container = Filesystem.create(testFilePath, 1)) {
+            container.createFile("/large", large);
+            container.createFile("/small", small);
+
+            assertThat(container.read("/large", 12345, 9000)).containsExactly(Arrays.copyOfRange(large, 12345, 21345));
+            assertThat(container.read("/large", 49990, 100)).containsExactly(Arrays.copyOfRange(large, 49990, 50000));
+            assertThat(container.read("/large", 60000, 10)).isEmpty();
+            assertThat(container.read("/small", 10, 20)).containsExactly(Arrays.copyOfRange(small, 10, 30));
+
+            var buffer = ByteBuffer.allocateDirect(4096);
+            assertThat(container.readInto("/large", 8192, buffer)).isEqualTo(4096);
+            var read = new byte[4096];
+            buffer.flip().get(read);
+            assertThat(read).containsExactly(Arrays.copyOfRange(large, 8192, 12288));
+            assertThat(container.readInto("/small", 100, buffer.clear())).isEqualTo(-1);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testStreams() throws Exception {
+        var testFilePath = Paths.get("testStreams");
+        var data = bytes(300_000, 10);
+
+        try (var container = Filesystem.create(testFilePath, 2)) {
+            container.createDir("/streams");
+            try (var out = container.newOutputStream("/streams/file")) {
+                out.write(data, 0, 1000);
+                out.write(data[1000]);
+                out.write(data, 1001, data.length - 1001);
+            }
+            assertThat(container.read("/streams/file").data()).containsExactly(data);
+
+            try (var in = container.newInputStream("/streams/file")) {
+                assertThat(in.read()).isEqualTo(data[0] & 0xFF);
+                assertThat(in.skip(99)).isEqualTo(99);
+                var chunk = new byte[10];
+                assertThat(in.readNBytes(chunk, 0, chunk.length)).isEqualTo(10);
+                assertThat(chunk).containsExactly(Arrays.copyOfRange(data, 100, 110));
+                assertThat(in.readAllBytes()).containsExactly(Arrays.copyOfRange(data, 110, data.length));
+                assertThat(in.read()).isEqualTo(-1);
+            }
+
+            try (var in = container.newInputStream("/streams/file")) {
+                var chunk = new byte[100];
+                var position = 0;
+                while (position < 200_000) {
+                    assertThat(in.readNBytes(chunk, 0, chunk.length)).isEqualTo(chunk.length);
+                    assertThat(chunk).containsExactly(Arrays.copyOfRange(data, position, position + chunk.length));
+                    position += chunk.length;
+                }
+                assertThat(in.skip(50_000)).isEqualTo(50_000);
+                assertThat(in.readAllBytes()).containsExactly(Arrays.copyOfRange(data, 250_000, data.length));
+            }
+
+            try (var out = container.newOutputStream("/streams/file")) {
+                out.write(data, 0, 10);
+            }
+            assertThat(container.read("/streams/file").data()).containsExactly(Arrays.copyOf(data, 10));
+
+            assertThatThrownBy(() -> container.newOutputStream("/streams"))
+                .isInstanceOf(IOException.class);
+            assertThatThrownBy(() -> container.newInputStream("/streams/missing"))
+                .isInstanceOf(IllegalArgumentException.class);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testFailedOpenClosesTheContainer() throws Exception {
+        var testFilePath = Paths.get("testFailedOpenClosesTheContainer");
+        int rootPosition;
+
+        try {
+            try (var container = Filesystem.create(testFilePath, 1)) {
+                container.createDir("/dir");
+                rootPosition = container.getMasterBlockSize();
+            }
+            try (var channel = FileChannel.open(testFilePath, StandardOpenOption.WRITE)) {
+                var garbage = new byte[Configuration.blockSize];
+                Arrays.fill(garbage, (byte) 0xff);
+                channel.write(ByteBuffer.wrap(garbage), rootPosition);
+            }
+            var flushers = threadsNamed("cdfs-allocation-flusher");
+
+            assertThatThrownBy(() -> Filesystem.open(testFilePath, ContainerOptions.defaults().withDirectoryMigration(true)))
+                .isInstanceOf(RuntimeException.class);
+            var started = threadsNamed("cdfs-allocation-flusher");
+            started.removeAll(flushers);
+            for (var thread : started) {
+                thread.join(5000);
+                assertThat(thread.isAlive()).isFalse();
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    private static List<Thread> threadsNamed(String name) {
+        return Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().equals(name))
+            .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    @Test
+    public void testByteChannel() throws Exception {
+        var testFilePath = Paths.get("testByteChannel");
+        var hostFilePath = Paths.get("testByteChannelHost");
+        var data = bytes(20000, 11);
+
+        try (var container = Filesystem.create(testFilePath, 1)) {
+            try (var channel = container.newByteChannel("/file", StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+                assertThat(channel.write(ByteBuffer.wrap(data, 0, 100))).isEqualTo(100);
+                channel.position(10000);
+                channel.write(ByteBuffer.wrap(data, 10000, 10000));
+                channel.write(ByteBuffer.wrap(data, 100, 9900), 100);
+                assertThat(channel.size()).isEqualTo(data.length);
+
+                var buffer = ByteBuffer.allocate(300);
+                assertThat(channel.position(4000).read(buffer)).isEqualTo(300);
+                assertThat(buffer.array()).containsExactly(Arrays.copyOfRange(data, 4000, 4300));
+                assertThat(channel.position()).isEqualTo(4300);
+
+                channel.truncate(5000);
+                assertThat(channel.size()).isEqualTo(5000);
+                channel.write(ByteBuffer.wrap(data, 0, 10), 6000);
+                assertThat(container.read("/file", 5000, 1000)).containsOnly(0);
+                assertThat(container.read("/file", 6000, 10)).containsExactly(Arrays.copyOf(data, 10));
+            }
+
+            try (var channel = container.newByteChannel("/file", StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(data, 0, 5));
+                assertThat(channel.size()).isEqualTo(6015);
+                assertThatThrownBy(() -> channel.read(ByteBuffer.allocate(1)))
+                    .isInstanceOf(NonReadableChannelException.class);
+            }
+
+            container.write("/file", data);
+            try (var channel = container.newByteChannel("/file");
+                 var host = FileChannel.open(hostFilePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                     StandardOpenOption.READ)) {
+                var transferred = 0L;
+                while (transferred < data.length) {
+                    transferred += channel.transferTo(transferred, data.length - transferred, host);
+                }
+                assertThat(Files.readAllBytes(hostFilePath)).containsExactly(data);
+
+                try (var copy = container.newByteChannel("/copy", StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    assertThat(copy.transferFrom(host.position(0), 0, data.length)).isEqualTo(data.length);
+                }
+                assertThat(container.read("/copy").data()).containsExactly(data);
+            }
+
+            assertThatThrownBy(() -> container.newByteChannel("/missing"))
+                .isInstanceOf(IllegalArgumentException.class);
+        } finally {
+            Files.deleteIfExists(hostFilePath);
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testByteChannelLocks() throws Exception {
+        var testFilePath = Paths.get("testByteChannelLocks");
+
+        try (var container = Filesystem.create(testFilePath, 1)) {
+            container.createFile("/file", bytes(1000, 13));
+            try (var writer = container.newByteChannel("/file", StandardOpenOption.WRITE, StandardOpenOption.READ);
+                 var reader = container.newByteChannel("/file")) {
+                var lock = writer.lock();
+                assertThat(lock.isValid()).isTrue();
+                assertThat(reader.tryLock(0, 10, true)).isNull();
+                assertThatThrownBy(() -> writer.tryLock(0, 10, true)).isInstanceOf(OverlappingFileLockException.class);
+                assertThatThrownBy(() -> reader.tryLock(0, 10, false)).isInstanceOf(NonWritableChannelException.class);
+
+                var waiting = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return reader.lock(0, Long.MAX_VALUE, true);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                assertThatThrownBy(() -> waiting.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+
+                lock.release();
+                assertThat(lock.isValid()).isFalse();
+                var shared = waiting.get(5, TimeUnit.SECONDS);
+                assertThat(shared.isShared()).isTrue();
+                assertThat(writer.tryLock(0, 10, true)).isNotNull();
+
+                reader.close();
+                assertThat(shared.isValid()).isFalse();
+                assertThat(writer.tryLock(10, 10, false)).isNotNull();
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testTransferFromWithGenerousCounts() throws Exception {
+        var testFilePath = Paths.get("testTransferFromWithGenerousCounts");
+        var data = bytes(20000, 12);
+
+        try (var container = Filesystem.create(testFilePath, 1)) {
+            try (var channel = container.newByteChannel("/file", StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                assertThat(channel.transferFrom(Channels.newChannel(new ByteArrayInputStream(data)), 0, Long.MAX_VALUE))
+                    .isEqualTo(data.length);
+                assertThat(container.read("/file").data()).containsExactly(data);
+
+                assertThat(channel.transferFrom(Channels.newChannel(new ByteArrayInputStream(data)), 5001, Long.MAX_VALUE - 1))
+                    .isEqualTo(data.length);
+                var expected = Arrays.copyOf(data, 5001 + data.length);
+                System.arraycopy(data, 0, expected, 5001, data.length);
+                assertThat(container.read("/file").data()).containsExactly(expected);
+
+                // far more than the container holds, only what the source has is allocated
+                assertThat(channel.transferFrom(Channels.newChannel(new ByteArrayInputStream(data)), expected.length, 100_000_000))
+                    .isEqualTo(data.length);
+                assertThat(channel.size()).isEqualTo(expected.length + data.length);
+                assertThat(container.read("/file", expected.length, data.length)).containsExactly(data);
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testDirectoryEntryUpdates() throws Exception {
+        var testFilePath = Paths.get("testDirectoryEntryUpdates");
+        var expected = new TreeSet<String>();
+        var random = new Random(3);
+
+        try (var container = Filesystem.create(testFilePath, 2)) {
+            container.createDir("/dir");
+            for (int i = 0; i < 2000; i++) {
+                var name = "file" + random.nextInt(60);
+                var operation = random.nextInt(3);
+                if (!expected.contains(name)) {
+                    container.createFile("/dir/" + name, ByteArrayTransformer.fromString(name));
+                    expected.add(name);
+                } else if (operation == 0) {
+                    container.delete("/dir/" + name);
+                    expected.remove(name);
+                } else if (operation == 1) {
+                    var newName = "renamed" + i;
+                    container.rename("/dir/" + name, newName);
+                    container.rename("/dir/" + newName, name);
+                }
+                if (i % 100 == 0) {
+                    assertThat(container.listDir("/dir").files()).containsExactlyInAnyOrderElementsOf(expected);
+                }
+            }
+        }
+
+        try (var container = Filesystem.open(testFilePath)) {
+            assertThat(container.listDir("/dir").files()).containsExactlyInAnyOrderElementsOf(expected);
+            for (var name : expected) {
+                assertThat(container.read("/dir/" + name).data()).containsExactly(ByteArrayTransformer.fromString(name));
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testCompactDirectoryEntries() throws Exception {
+        var testFilePath = Paths.get("testCompactDirectoryEntries");
+        var files = 300;
+
+        try (var container = Filesystem.create(testFilePath, 2)) {
+            container.createDir("/données");
+            for (int i = 0; i < files; i++) {
+                container.createFile("/données/fichier-é" + i, ByteArrayTransformer.fromString("data" + i));
+            }
+            container.rename("/données/fichier-é0", "ünïcode");
+            container.delete("/données/fichier-é1");
+        }
+
+        try (var container = Filesystem.open(testFilePath, ContainerOptions.defaults().withDirectoryMigration(true))) {
+            assertThat(container.listDir("/").subDirs()).containsExactly("données");
+            var dir = container.listDir("/données");
+            assertThat(dir.files()).hasSize(files - 1).contains("ünïcode", "fichier-é299").doesNotContain("fichier-é1");
+            assertThat(container.read("/données/ünïcode").data()).containsExactly(ByteArrayTransformer.fromString("data0"));
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testLargeDirectory() throws Exception {
+        var testFilePath = Paths.get("testLargeDirectory");
+        var files = 1000;
+
+        try (var container = Filesystem.create(testFilePath, 8)) {
+            container.createDir("/large");
+            container.createDir("/other");
+            for (int i = 0; i < files; i++) {
+                container.createFile("/large/file" + i, ByteArrayTransformer.fromString("data" + i));
+            }
+            assertThat(container.listDir("/large").files()).hasSize(files);
+            assertThat(container.read("/large/file500").data()).containsExactly(ByteArrayTransformer.fromString("data500"));
+
+            container.rename("/large/file1", "renamed");
+            container.move("/large/file2", "/other");
+            container.delete("/large/file3");
+            assertThatThrownBy(() -> container.createFile("/large/renamed", new byte[0]))
+                .isInstanceOf(IOException.class);
+            assertThatThrownBy(() -> container.deleteDir("/large"))
+                .isInstanceOf(IOException.class);
+        }
+
+        try (var container = Filesystem.open(testFilePath)) {
+            var dir = container.listDir("/large");
+            assertThat(dir.files()).hasSize(files - 2).contains("renamed").doesNotContain("file1", "file2", "file3");
+            assertThat(container.read("/large/renamed").data()).containsExactly(ByteArrayTransformer.fromString("data1"));
+            assertThat(container.read("/other/file2").data()).containsExactly(ByteArrayTransformer.fromString("data2"));
+
+            container.deleteDir("/large", true);
+            assertThat(container.listDir("/").subDirs()).containsExactly("other");
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testPagedDirectoryListing() throws Exception {
+        var testFilePath = Paths.get("testPagedDirectoryListing");
+        var expected = new TreeSet<String>();
+
+        try (var container = Filesystem.create(testFilePath, 8)) {
+            container.createDir("/large");
+            container.createDir("/small");
+            for (int i = 0; i < 1000; i++) {
+                container.createFile("/large/file" + i, new byte[0]);
+                expected.add("file" + i);
+            }
+            container.createDir("/large/dir");
+            expected.add("dir");
+            for (var name : List.of("b", "c", "a")) {
+                container.createFile("/small/" + name, new byte[0]);
+            }
+        }
+
+        try (var container = Filesystem.open(testFilePath)) {
+            var listed = new ArrayList<String>();
+            String startAfter = null;
+            ContainedDir page;
+            while ((page = container.listDir("/large", startAfter, 64)).lastName() != null) {
+                assertThat(page.subDirs().size() + page.files().size()).isLessThanOrEqualTo(64);
+                listed.addAll(page.subDirs());
+                listed.addAll(page.files());
+                startAfter = page.lastName();
+            }
+            assertThat(listed).containsExactlyInAnyOrderElementsOf(expected);
+
+            var prefixed = container.listDir("/large", "file99");
+            assertThat(prefixed.files()).containsExactly("file99", "file990", "file991", "file992", "file993",
+                "file994", "file995", "file996", "file997", "file998", "file999");
+            assertThat(container.listDir("/large", "dir").subDirs()).containsExactly("dir");
+
+            assertThat(container.listDir("/small", "a", 5).files()).containsExactly("b", "c");
+            assertThat(container.listDir("/small", "").files()).containsExactly("a", "b", "c");
+            assertThatThrownBy(() -> container.listDir("/small", null, -1))
+                .isInstanceOf(IllegalArgumentException.class);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testInlineFiles() throws Exception {
+        var testFilePath = Paths.get("testInlineFiles");
+        var files = 1000;
+
+        try (var container = Filesystem.create(testFilePath, 1)) {
+            container.createDir("/conf");
+            container.createDir("/other");
+            for (int i = 0; i < files; i++) {
+                container.createFile("/conf/file" + i, ByteArrayTransformer.fromString("key=value" + i));
+            }
+
+            container.append("/conf/file1", ByteArrayTransformer.fromString(";more"));
+            container.append("/conf/file2", new byte[1000]);
+            container.write("/conf/file3", new byte[5000]);
+            container.write("/conf/file3", ByteArrayTransformer.fromString("small"));
+            container.rename("/conf/file4", "renamed");
+            container.move("/conf/file5", "/other");
+            container.delete("/conf/file6");
+            try (var channel = container.newByteChannel("/conf/file7", StandardOpenOption.WRITE)) {
+                channel.truncate(3);
+                channel.write(ByteBuffer.wrap(ByteArrayTransformer.fromString("!")), 5);
+            }
+            assertThatThrownBy(() -> container.createFile("/conf/file0/child", new byte[0]))
+                .isInstanceOf(IOException.class);
+            assertThatThrownBy(() -> container.read("/conf/file0/child/file"))
+                .isInstanceOf(IllegalArgumentException.class);
+            assertThatThrownBy(() -> container.listDir("/conf/file0"))
+                .isInstanceOf(IOException.class);
+        }
+
+        try (var container = Filesystem.open(testFilePath)) {
+            assertThat(container.listDir("/conf").files()).hasSize(files - 2).contains("renamed");
+            assertThat(container.read("/conf/file0").data()).containsExactly(ByteArrayTransformer.fromString("key=value0"));
+            assertThat(container.read("/conf/file1").data()).containsExactly(ByteArrayTransformer.fromString("key=value1;more"));
+            assertThat(container.read("/conf/file2").data()).hasSize(1010);
+            assertThat(container.read("/conf/file3").data()).containsExactly(ByteArrayTransformer.fromString("small"));
+            assertThat(container.read("/conf/renamed").data()).containsExactly(ByteArrayTransformer.fromString("key=value4"));
+            assertThat(container.read("/other/file5").data()).containsExactly(ByteArrayTransformer.fromString("key=value5"));
+            assertThat(container.read("/conf/file7").data()).containsExactly(107, 101, 121, 0, 0, 33);
+            assertThat(container.read("/conf/file8", 4, 5)).containsExactly(ByteArrayTransformer.fromString("value"));
+            try (var input = container.newInputStream("/conf/file9")) {
+                assertThat(input.readAllBytes()).containsExactly(ByteArrayTransformer.fromString("key=value9"));
+            }
+
+            container.deleteDir("/conf", true);
+            assertThat(container.listDir("/").subDirs()).containsExactly("other");
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testPackedFiles() throws Exception {
+        var testFilePath = Paths.get("testPackedFiles");
+        var files = 400;
+
+        try (var container = Filesystem.create(testFilePath, 1)) {
+            container.createDir("/small");
+            for (int i = 0; i < files; i++) {
+                container.createFile("/small/file" + i, bytes(200 + i * 4, i));
+            }
+
+            container.append("/small/file0", bytes(100, 7));
+            container.write("/small/file1", bytes(3000, 1));
+            container.write("/small/file2", bytes(10, 2));
+            container.write("/small/file3", bytes(1000, 3));
+            container.rename("/small/file4", "renamed");
+            container.move("/small/file5", "/");
+            for (int i = 200; i < files; i++) {
+                container.delete("/small/file" + i);
+            }
+        }
+
+        try (var container = Filesystem.open(testFilePath)) {
+            assertThat(container.listDir("/small").files()).hasSize(199).contains("renamed");
+            var appended = container.read("/small/file0").data();
+            assertThat(appended).hasSize(300);
+            assertThat(Arrays.copyOfRange(appended, 200, 300)).containsExactly(bytes(100, 7));
+            assertThat(container.read("/small/file1").data()).containsExactly(bytes(3000, 1));
+            assertThat(container.read("/small/file2").data()).containsExactly(bytes(10, 2));
+            assertThat(container.read("/small/file3").data()).containsExactly(bytes(1000, 3));
+            assertThat(container.read("/small/renamed").data()).containsExactly(bytes(216, 4));
+            assertThat(container.read("/file5").data()).containsExactly(bytes(220, 5));
+            for (int i = 6; i < 200; i++) {
+                assertThat(container.read("/small/file" + i).data()).containsExactly(bytes(200 + i * 4, i));
+            }
+
+            for (int i = 0; i < 300; i++) {
+                container.createFile("/small/new" + i, bytes(1500, i));
+            }
+            container.deleteDir("/small", true);
+            container.delete("/file5");
+            for (int i = 0; i < 100; i++) {
+                container.createFile("/block" + i, bytes(4096, i));
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testAllocationTableIsFlushedWhileOpen() throws Exception {
+        var testFilePath = Paths.get("testAllocationTableIsFlushedWhileOpen");
+        var options = ContainerOptions.defaults().withAllocationFlushInterval(20);
+
+        try (var container = Filesystem.create(testFilePath, 1, options)) {
+            container.createDir("/dir");
+            container.createFile("/dir/file", bytes(4096 * 3, 1));
+
+            var expected = new byte[]{63};
+            byte[] onDisk;
+            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            do {
+                Thread.sleep(20);
+                try (var channel = FileChannel.open(testFilePath, StandardOpenOption.READ)) {
+                    var buffer = ByteBuffer.allocate(1);
+                    channel.read(buffer, ContainerDescriptor.BYTES);
+                    onDisk = buffer.array();
+                }
+            } while (!Arrays.equals(onDisk, expected) && System.nanoTime() < deadline);
+            assertThat(onDisk).containsExactly(expected);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testCommittedOperationsAreReplayed() throws Exception {
+        var testFilePath = Paths.get("testCommittedOperationsAreReplayed");
+        // committed operations stay in the journal only, neither written in place nor flushed to the table
+        var journaled = ContainerOptions.defaults().withJournal(true);
+        var options = journaled
+            .withDurability(Durability.PERIODIC)
+            .withSyncInterval((int) TimeUnit.HOURS.toMillis(1))
+            .withSyncBytes(0)
+            .withAllocationFlushInterval(0);
+
+        try {
+            try (var container = Filesystem.create(testFilePath, 1, options)) {
+                container.createFile("/existing", bytes(5000, 0));
+            }
+            var crashed = Filesystem.open(testFilePath, options);
+            try {
+                // each operation allocates blocks and writes their first image in the same commit
+                crashed.createDir("/dir");
+                crashed.createFile("/file", bytes(9000, 1));
+                crashed.write("/existing", bytes(20000, 2));
+
+                try (var container = Filesystem.open(testFilePath, journaled)) {
+                    assertThat(container.listDir("/").subDirs()).containsExactly("dir");
+                    assertThat(container.listDir("/dir").files()).isEmpty();
+                    assertThat(container.read("/file").data()).containsExactly(bytes(9000, 1));
+                    assertThat(container.read("/existing").data()).containsExactly(bytes(20000, 2));
+                    container.createFile("/dir/other", bytes(5000, 3));
+                }
+                try (var container = Filesystem.open(testFilePath, journaled)) {
+                    assertThat(container.read("/dir/other").data()).containsExactly(bytes(5000, 3));
+                    assertThat(container.read("/existing").data()).containsExactly(bytes(20000, 2));
+                }
+            } finally {
+                crashed.close();
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testDurabilityModes() throws Exception {
+        for (var durability : Durability.values()) {
+            var testFilePath = Paths.get("testDurabilityModes" + durability);
+            var options = ContainerOptions.defaults().withJournal(true).withDurability(durability).withSyncInterval(10);
+
+            try {
+                try (var container = Filesystem.create(testFilePath, 1, options)) {
+                    container.createDir("/dir");
+                    for (int i = 0; i < 10; i++) {
+                        container.createFile("/dir/file" + i, bytes(5000, i));
+                    }
+
+                    var statistics = container.getDurabilityStatistics();
+                    assertThat(statistics.durability()).isEqualTo(durability);
+                    assertThat(statistics.commits()).isEqualTo(11);
+                    switch (durability) {
+                        case NONE -> assertThat(statistics.forces()).isZero();
+                        case SYNC -> assertThat(statistics.unforcedBytes()).isZero();
+                        case PERIODIC -> {
+                            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                            while (container.getDurabilityStatistics().unforcedBytes() > 0
+                                && System.nanoTime() < deadline) {
+                                Thread.sleep(10);
+                            }
+                            assertThat(container.getDurabilityStatistics().unforcedBytes()).isZero();
+                        }
+                    }
+                }
+                try (var container = Filesystem.open(testFilePath, options)) {
+                    for (int i = 0; i < 10; i++) {
+                        assertThat(container.read("/dir/file" + i).data()).containsExactly(bytes(5000, i));
+                    }
+                }
+            } finally {
+                Files.delete(testFilePath);
+            }
+        }
+    }
+
+    @Test
+    public void testPeriodicDurabilityReleasesFreedBlocksWhenShort() throws Exception {
+        var testFilePath = Paths.get("testPeriodicDurabilityReleasesFreedBlocksWhenShort");
+        var options = ContainerOptions.defaults()
+            .withJournal(true)
+            .withDurability(Durability.PERIODIC)
+            .withSyncInterval((int) TimeUnit.HOURS.toMillis(1))
+            .withSyncBytes(0);
+
+        try (var container = Filesystem.create(testFilePath, 1, options)) {
+            for (int i = 0; i < 5; i++) {
+                container.createFile("/file", bytes(600_000, i));
+                assertThat(container.read("/file").data()).containsExactly(bytes(600_000, i));
+                container.delete("/file");
+            }
+            assertThat(container.getDurabilityStatistics().forces()).isPositive();
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testCopyOnWriteSnapshots() throws Exception {
+        var testFilePath = Paths.get("testCopyOnWriteSnapshots");
+        var blockSize = 4096;
+        var original = bytes(blockSize * 5 + 100, 1);
+        var options = ContainerOptions.defaults().withCopyOnWrite(true);
+
+        try (var container = Filesystem.create(testFilePath, 1, options)) {
+            container.createFile("/file", original);
+            try (var snapshot = container.snapshot("/file")) {
+                var expected = original.clone();
+                try (var channel = container.newByteChannel("/file", StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.wrap(bytes(blockSize, 2)), 100);
+                    System.arraycopy(bytes(blockSize, 2), 0, expected, 100, blockSize);
+                    channel.truncate(blockSize * 3);
+                    expected = Arrays.copyOf(expected, blockSize * 3);
+                }
+                container.append("/file", bytes(10, 3));
+                expected = Arrays.copyOf(expected, expected.length + 10);
+                System.arraycopy(bytes(10, 3), 0, expected, blockSize * 3, 10);
+
+                assertThat(container.read("/file").data()).containsExactly(expected);
+                assertThat(snapshot.size()).isEqualTo(original.length);
+                assertThat(snapshot.read()).containsExactly(original);
+                assertThat(snapshot.read(blockSize * 5, 200)).containsExactly(
+                    Arrays.copyOfRange(original, blockSize * 5, original.length));
+
+                container.delete("/file");
+                assertThat(snapshot.read()).containsExactly(original);
+            }
+
+            container.createFile("/small", bytes(100, 4));
+            try (var snapshot = container.snapshot("/small")) {
+                container.write("/small", bytes(20000, 5));
+                assertThat(snapshot.read()).containsExactly(bytes(100, 4));
+                snapshot.close();
+                assertThatThrownBy(snapshot::read).isInstanceOf(IllegalStateException.class);
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testCopyOnWriteReusesBlocksOfClosedSnapshots() throws Exception {
+        var testFilePath = Paths.get("testCopyOnWriteReusesBlocksOfClosedSnapshots");
+        var options = ContainerOptions.defaults().withCopyOnWrite(true);
+
+        try {
+            try (var container = Filesystem.create(testFilePath, 2, options)) {
+                container.createFile("/file", bytes(600_000, 0));
+                for (int i = 1; i < 20; i++) {
+                    try (var snapshot = container.snapshot("/file");
+                         var channel = container.newByteChannel("/file", StandardOpenOption.WRITE)) {
+                        container.write("/file", bytes(600_000, i));
+                        channel.write(ByteBuffer.wrap(bytes(5000, -i)), 1000);
+                        assertThat(snapshot.read()).containsExactly(bytes(600_000, i - 1));
+                        channel.write(ByteBuffer.wrap(bytes(600_000, i), 1000, 5000), 1000);
+                    }
+                }
+            }
+            try (var container = Filesystem.open(testFilePath, options)) {
+                assertThat(container.read("/file").data()).containsExactly(bytes(600_000, 19));
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testBlocksHeldForSnapshotsAreFreeAfterCrash() throws Exception {
+        var testFilePath = Paths.get("testBlocksHeldForSnapshotsAreFreeAfterCrash");
+        var options = ContainerOptions.defaults().withCopyOnWrite(true).withAllocationFlushInterval(0);
+
+        try {
+            try (var container = Filesystem.create(testFilePath, 1, options)) {
+                container.createFile("/file", bytes(600_000, 0));
+            }
+            var crashed = Filesystem.open(testFilePath, options);
+            try {
+                var snapshot = crashed.snapshot("/file");
+                crashed.delete("/file");
+                crashed.flush();
+                assertThat(snapshot.read()).containsExactly(bytes(600_000, 0));
+                assertThatThrownBy(() -> crashed.createFile("/other", bytes(600_000, 1))).isInstanceOf(IllegalStateException.class);
+
+                try (var container = Filesystem.open(testFilePath, options)) {
+                    container.createFile("/other", bytes(600_000, 1));
+                    assertThat(container.read("/other").data()).containsExactly(bytes(600_000, 1));
+                }
+            } finally {
+                crashed.close();
+            }
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testSnapshotsNeedCopyOnWrite() throws Exception {
+        var testFilePath = Paths.get("testSnapshotsNeedCopyOnWrite");
+
+        try (var container = Filesystem.create(testFilePath, 1)) {
+            container.createFile("/file", bytes(100, 0));
+            assertThatThrownBy(() -> container.snapshot("/file")).isInstanceOf(IllegalStateException.class);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testWriteBackBuffer() throws Exception {
+        var testFilePath = Paths.get("testWriteBackBuffer");
+
+        for (var journaled : List.of(true, false)) {
+            var options = ContainerOptions.defaults().withJournal(journaled).withWriteBackBufferSize(64 * 4096);
+            var expected = new byte[0];
+            try {
+                try (var container = Filesystem.create(testFilePath, 1, options)) {
+                    container.createDir("/dir");
+                    container.createFile("/dir/log", new byte[0]);
+                    for (int i = 0; i < 200; i++) {
+                        container.append("/dir/log", bytes(50, i));
+                        expected = Arrays.copyOf(expected, expected.length + 50);
+                        System.arraycopy(bytes(50, i), 0, expected, expected.length - 50, 50);
+                        container.createFile("/dir/" + i, bytes(3000, i));
+                    }
+                    assertThat(container.read("/dir/log").data()).containsExactly(expected);
+                    container.flush();
+                    assertThat(container.read("/dir/199").data()).containsExactly(bytes(3000, 199));
+                }
+                try (var container = Filesystem.open(testFilePath, options)) {
+                    assertThat(container.read("/dir/log").data()).containsExactly(expected);
+                    assertThat(container.listDir("/dir").files()).hasSize(201);
+                    assertThat(container.read("/dir/123").data()).containsExactly(bytes(3000, 123));
+                }
+            } finally {
+                Files.delete(testFilePath);
+            }
+        }
+    }
+
+    @Test
+    public void testFragmentedFileExtents() throws Exception {
+        var testFilePath = Paths.get("testFragmentedFileExtents");
+        var blockSize = 4096;
+        var holes = 600;
+
+        try (var container = Filesystem.create(testFilePath, 8)) {
+            container.createDir("/fragments");
+            for (int i = 0; i < holes * 2; i++) {
+                container.createFile("/fragments/" + i, new byte[]{(byte) i});
+            }
+            for (int i = 0; i < holes * 2; i += 2) {
+                container.delete("/fragments/" + i);
+            }
+
+            var fragmented = bytes(holes * blockSize - 100, 5);
+            container.createFile("/file", fragmented);
+            assertThat(container.read("/file").data()).containsExactly(fragmented);
+
+            var appended = bytes(blockSize * 3, 6);
+            container.append("/file", appended);
+            var expected = new byte[fragmented.length + appended.length];
+            System.arraycopy(fragmented, 0, expected, 0, fragmented.length);
+            System.arraycopy(appended, 0, expected, fragmented.length, appended.length);
+            assertThat(container.read("/file").data()).containsExactly(expected);
+        }
+
+        try (var container = Filesystem.open(testFilePath)) {
+            assertThat(container.read("/file").data()).hasSize(holes * blockSize - 100 + blockSize * 3);
+            container.delete("/file");
+            container.deleteDir("/fragments", true);
+
+            var large = bytes(1500 * blockSize, 7);
+            container.createFile("/large", large);
+            assertThat(container.read("/large").data()).containsExactly(large);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testConcurrentReadersAndWriters() throws Exception {
+        var testFilePath = Paths.get("testConcurrentAccess");
+        var threads = 8;
+        var filesPerThread = 20;
+
+        var options = ContainerOptions.defaults().withJournal(true).withDurability(Durability.SYNC);
+
+        try (var container = Filesystem.create(testFilePath, 2, options);
+             var executor = Executors.newFixedThreadPool(threads)) {
+            container.createFile("/shared", ByteArrayTransformer.fromString("shared"));
+
+            var tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < threads; i++) {
+                var dir = "/dir" + i;
+                tasks.add(() -> {
+                    container.createDir(dir);
+                    for (int j = 0; j < filesPerThread; j++) {
+                        var file = dir + "/file" + j;
+                        container.createFile(file, ByteArrayTransformer.fromString(file));
+                        assertThat(ByteArrayTransformer.toString(container.read(file).data())).isEqualTo(file);
+                        assertThat(ByteArrayTransformer.toString(container.read("/shared").data())).isEqualTo("shared");
+                    }
+                    return null;
+                });
+            }
+            for (var future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+
+            for (int i = 0; i < threads; i++) {
+                assertThat(container.listDir("/dir" + i).files()).hasSize(filesPerThread);
+            }
+            var durability = container.getDurabilityStatistics();
+            assertThat(durability.commits()).isGreaterThanOrEqualTo(threads * (filesPerThread + 1));
+            assertThat(durability.forces()).isBetween(1L, durability.commits());
+            var journal = container.getJournalStatistics();
+            assertThat(journal.commits()).isGreaterThanOrEqualTo(threads * (filesPerThread + 1));
+            assertThat(journal.forces()).isEqualTo(durability.forces());
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
+    @Test
+    public void testConcurrentMovesBetweenTwoParents() throws Exception {
+        var testFilePath = Paths.get("testConcurrentMoves");
+        var filesPerDir = 16;
+
+        try (var container = Filesystem.create(testFilePath, 2);
+             var executor = Executors.newFixedThreadPool(8)) {
+            container.createDir("/a");
+            container.createDir("/b");
+            for (int i = 0; i < filesPerDir; i++) {
+                container.createFile("/a/a" + i, ByteArrayTransformer.fromString("a" + i));
+                container.createFile("/b/b" + i, ByteArrayTransformer.fromString("b" + i));
+            }
+
+            var tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < filesPerDir; i++) {
+                var index = i;
+                tasks.add(() -> {
+                    container.move("/a/a" + index, "/b");
+                    return null;
+                });
+                tasks.add(() -> {
+                    container.move("/b/b" + index, "/a");
+                    return null;
+                });
+            }
+            for (var future : executor.invokeAll(tasks, 30, TimeUnit.SECONDS)) {
+                future.get();
+            }
+
+            for (int i = 0; i < filesPerDir; i++) {
+                assertThat(ByteArrayTransformer.toString(container.read("/b/a" + i).data())).isEqualTo("a" + i);
+                assertThat(ByteArrayTransformer.toString(container.read("/a/b" + i).data())).isEqualTo("b" + i);
+            }
+            assertThat(container.listDir("/a").files()).hasSize(filesPerDir);
+            assertThat(container.listDir("/b").files()).hasSize(filesPerDir);
+        } finally {
+            Files.delete(testFilePath);
+        }
+    }
+
     @Test
     public void testProjectDirectoryOperations() throws Exception {
         var testFilePath = Paths.get("testProjectDirectoryOperations");
@@ -193,4 +1142,12 @@ public class CdfsIntegrationTest {
             container.delete(file);
         }
     }
+
+    private static byte[] bytes(int length, int seed) {
+        var bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
 }
@@ -0,0 +1,61 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Allocation cost as the container fills up. Excluded from the default build, run it with
+ * {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+public class AllocationTableBenchmark {
+    private static final int BLOCK_COUNT = 1 << 22;
+    private static final double[] FILL_LEVELS = {0.5, 0.9, 0.99, 0.999, 0.9999};
+    private static final int[] REQUEST_SIZES = {1, 16, 256};
+    private static final int WARMUP_ROUNDS = 20_000;
+    private static final int MEASURED_ROUNDS = 100_000;
+
+    @Test
+    public void measureAllocationByFillLevel() {
+        System.out.printf("%-10s %-8s %12s%n", "fill", "blocks", "ns/op");
+        for (var fillLevel : FILL_LEVELS) {
+            var allocationTable = AllocationTable.fromByteArray(fragmentedBitmap(fillLevel, new Random(7)));
+            for (var requestSize : REQUEST_SIZES) {
+                if (requestSize > allocationTable.getFreeBlockCount()) {
+                    continue;
+                }
+                var random = new Random(11);
+                run(allocationTable, requestSize, WARMUP_ROUNDS, random);
+                var nanos = run(allocationTable, requestSize, MEASURED_ROUNDS, random);
+                System.out.printf("%-10s %-8d %12.1f%n", fillLevel, requestSize, (double) nanos / MEASURED_ROUNDS);
+            }
+        }
+    }
+
+    private static long run(AllocationTable allocationTable, int requestSize, int rounds, Random random) {
+        var started = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            var blocks = allocationTable.getAvailableBlocks(requestSize, random.nextInt(BLOCK_COUNT));
+            allocationTable.releaseBlocks(blocks);
+        }
+        return System.nanoTime() - started;
+    }
+
+    /**
+     * Bitmap with free runs of one to eight blocks scattered over it until the given share of blocks is in use.
+     */
+    private static byte[] fragmentedBitmap(double fillLevel, Random random) {
+        var table = new BitSet(BLOCK_COUNT);
+        table.set(0, BLOCK_COUNT);
+        var free = (int) (BLOCK_COUNT * (1 - fillLevel));
+        while (BLOCK_COUNT - table.cardinality() < free) {
+            var start = random.nextInt(BLOCK_COUNT);
+            table.clear(start, Math.min(BLOCK_COUNT, start + 1 + random.nextInt(8)));
+        }
+        return Arrays.copyOf(table.toByteArray(), AllocationTable.sizeOf(BLOCK_COUNT));
+    }
+}
@@ -2,7 +2,13 @@ package io.contained.internals;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -56,4 +62,234 @@ public class AllocationTableTest {
         var availableBlocks = allocationTable.getAvailableBlocks(1);
         assertThat(availableBlocks).containsExactly(3);
     }
+
+    @Test
+    public void testReservedBlocksAreNotHandedOutTwice() {
+        var allocationTable = new AllocationTable(8);
+        var first = allocationTable.getAvailableBlocks(2);
+        var second = allocationTable.getAvailableBlocks(2);
+        assertThat(first).containsExactly(0, 1);
+        assertThat(second).containsExactly(2, 3);
+
+        allocationTable.releaseBlocks(first);
+        allocationTable.allocateBlocks(second);
+        assertThat(allocationTable.getAvailableBlocks(3)).containsExactly(4, 5, 6);
+        assertThat(allocationTable.getAvailableBlocks(2)).containsExactly(0, 1);
+        assertThat(allocationTable.toByteArray()).containsExactly(12);
+    }
+
+    @Test
+    public void testReservationsCountTowardsFreeSpace() {
+        var allocationTable = new AllocationTable(8);
+        allocationTable.getAvailableBlocks(6);
+
+        assertThatThrownBy(() -> allocationTable.getAvailableBlocks(3))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("Not enough free space to allocate blocks");
+    }
+
+    @Test
+    public void testPackedBlockBestFit() {
+        var allocationTable = new AllocationTable(8);
+        allocationTable.allocateBlocks(List.of(0, 1, 2));
+        allocationTable.trackPackedBlock(0, 100);
+        allocationTable.trackPackedBlock(1, 500);
+        allocationTable.trackPackedBlock(2, 300);
+
+        assertThat(allocationTable.findPackedBlock(200)).isEqualTo(2);
+        assertThat(allocationTable.findPackedBlock(50)).isEqualTo(0);
+        assertThat(allocationTable.findPackedBlock(600)).isEqualTo(Configuration.noAddressMarker);
+
+        allocationTable.trackPackedBlock(2, 150);
+        assertThat(allocationTable.findPackedBlock(200)).isEqualTo(1);
+
+        allocationTable.freeBlocks(List.of(1));
+        assertThat(allocationTable.isPackedBlock(1)).isFalse();
+        assertThat(allocationTable.findPackedBlock(200)).isEqualTo(Configuration.noAddressMarker);
+    }
+
+    @Test
+    public void testAllocationOnNearlyFullTable() {
+        var blockCount = 4 * Configuration.allocationGroupSize;
+        var bytes = new byte[AllocationTable.sizeOf(blockCount)];
+        Arrays.fill(bytes, (byte) 0xff);
+        var allocationTable = AllocationTable.fromByteArray(bytes);
+        allocationTable.freeBlocks(List.of(100, blockCount / 2, blockCount - 1));
+        assertThat(allocationTable.getFreeBlockCount()).isEqualTo(3);
+
+        for (int i = 0; i < 100; i++) {
+            var available = allocationTable.getAvailableBlocks(2);
+            assertThat(available).containsExactly(100, blockCount / 2);
+            allocationTable.releaseBlocks(available);
+        }
+        assertThat(allocationTable.getAvailableBlocks(3)).containsExactly(100, blockCount / 2, blockCount - 1);
+        assertThat(allocationTable.getFreeBlockCount()).isZero();
+    }
+
+    @Test
+    public void testBestFitContiguousRun() {
+        var allocationTable = new AllocationTable(32);
+        allocationTable.allocateBlocks(List.of(0, 5, 6, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19));
+
+        assertThat(allocationTable.getAvailableBlocks(3)).containsExactly(7, 8, 9);
+        assertThat(allocationTable.getAvailableBlocks(4)).containsExactly(1, 2, 3, 4);
+        assertThat(allocationTable.getAvailableBlocks(5)).containsExactly(20, 21, 22, 23, 24);
+    }
+
+    @Test
+    public void testFallbackToLargestRuns() {
+        var allocationTable = new AllocationTable(16);
+        allocationTable.allocateBlocks(List.of(2, 6, 12));
+
+        assertThat(allocationTable.getAvailableBlocks(8)).containsExactly(3, 4, 5, 7, 8, 9, 10, 11);
+        assertThat(allocationTable.getAvailableBlocks(4)).containsExactly(0, 13, 14, 15);
+    }
+
+    @Test
+    public void testGoalContinuesRun() {
+        var allocationTable = new AllocationTable(16);
+        allocationTable.allocateBlocks(List.of(0, 1, 2, 8));
+
+        assertThat(allocationTable.getAvailableBlocks(2, 3)).containsExactly(3, 4);
+        assertThat(allocationTable.getAvailableBlocks(5, 5)).containsExactly(5, 6, 7, 9, 10);
+        assertThat(allocationTable.getAvailableBlocks(1, 8)).containsExactly(11);
+    }
+
+    @Test
+    public void testFreedRunsAreMerged() {
+        var allocationTable = new AllocationTable(8);
+        allocationTable.allocateBlocks(List.of(0, 1, 2, 3, 4, 5, 6, 7));
+        allocationTable.freeBlocks(List.of(2, 4));
+        allocationTable.freeExtents(List.of(new Extent(3, 1), new Extent(5, 2)));
+
+        assertThat(allocationTable.getAvailableBlocks(5)).containsExactly(2, 3, 4, 5, 6);
+        assertThat(AllocationTable.fromByteArray(allocationTable.toByteArray()).getAvailableBlocks(5))
+            .containsExactly(2, 3, 4, 5, 6);
+    }
+
+    @Test
+    public void testFreedRangeSkipsFreeAndReservedBlocks() {
+        var allocationTable = new AllocationTable(16);
+        allocationTable.allocateBlocks(List.of(0, 1, 2, 4, 5, 6, 7, 8, 9, 10, 11));
+        var reserved = allocationTable.getAvailableBlocks(1, 3);
+        assertThat(reserved).containsExactly(3);
+        allocationTable.freeExtents(List.of(new Extent(1, 10)));
+
+        assertThat(allocationTable.getFreeBlockCount()).isEqualTo(13);
+        assertThat(allocationTable.getAvailableBlocks(7, 4)).containsExactly(4, 5, 6, 7, 8, 9, 10);
+        assertThat(allocationTable.getAvailableBlocks(2, 1)).containsExactly(1, 2);
+        assertThat(AllocationTable.fromByteArray(allocationTable.toByteArray()).getFreeBlockCount()).isEqualTo(14);
+    }
+
+    @Test
+    public void testHeldBlocksAreFreeOnlyInTheTable() {
+        var allocationTable = new AllocationTable(8);
+        allocationTable.allocateBlocks(List.of(0, 1, 2, 3));
+        allocationTable.holdExtents(List.of(new Extent(1, 2)));
+        allocationTable.freeExtents(List.of(new Extent(0, 4)));
+
+        assertThat(allocationTable.toByteArray()).containsExactly(0);
+        assertThat(allocationTable.getFreeBlockCount()).isEqualTo(6);
+        assertThat(allocationTable.getAvailableBlocks(2)).doesNotContain(1, 2);
+
+        allocationTable.releaseHeldExtents(List.of(new Extent(1, 2)));
+        assertThat(allocationTable.getAvailableBlocks(3, 0)).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    public void testAllocationGroups() {
+        var allocationTable = new AllocationTable(256, 64);
+        allocationTable.allocateBlocks(List.of(0, 64, 65));
+
+        assertThat(allocationTable.getEmptiestGroupStart()).isEqualTo(128);
+        assertThat(allocationTable.getAvailableBlocks(2, 64)).containsExactly(66, 67);
+        assertThat(allocationTable.getAvailableBlocks(2, 130)).containsExactly(128, 129);
+        assertThat(allocationTable.getAvailableBlocks(70, 200)).hasSize(70).allMatch(block -> block != 0);
+        assertThat(allocationTable.getFreeBlockCount()).isEqualTo(256 - 3 - 2 - 2 - 70);
+    }
+
+    @Test
+    public void testAllocationAcrossGroups() {
+        var allocationTable = new AllocationTable(128, 64);
+        var first = allocationTable.getAvailableBlocks(60, 0);
+        allocationTable.allocateBlocks(first);
+
+        assertThat(allocationTable.getAvailableBlocks(10, 0)).containsExactly(64, 65, 66, 67, 68, 69, 70, 71, 72, 73);
+        assertThat(allocationTable.getAvailableBlocks(58, 0)).hasSize(58).contains(60, 63, 74, 127);
+        assertThatThrownBy(() -> allocationTable.getAvailableBlocks(1))
+            .isInstanceOf(IllegalStateException.class);
+
+        allocationTable.freeExtents(List.of(new Extent(50, 20)));
+        assertThat(allocationTable.getFreeBlockCount()).isEqualTo(10);
+        var bytes = allocationTable.toByteArray();
+        assertThat(bytes).hasSize(16);
+        assertThat(bytes[6]).isEqualTo((byte) 0x03);
+    }
+
+    @Test
+    public void testConcurrentRequestsAcrossGroups() throws Exception {
+        var allocationTable = new AllocationTable(8192, 64);
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 200; i++) {
+                var start = new CountDownLatch(1);
+                List<Future<List<Integer>>> requests = new ArrayList<>();
+                for (int j = 0; j < 4; j++) {
+                    requests.add(executor.submit(() -> {
+                        start.await();
+                        try {
+                            return allocationTable.getAvailableBlocks(5000);
+                        } catch (IllegalStateException e) {
+                            return null;
+                        }
+                    }));
+                }
+                start.countDown();
+
+                List<List<Integer>> granted = new ArrayList<>();
+                for (var request : requests) {
+                    var blocks = request.get(5, TimeUnit.SECONDS);
+                    if (blocks != null) {
+                        granted.add(blocks);
+                    }
+                }
+                assertThat(granted).hasSize(1);
+                allocationTable.releaseBlocks(granted.getFirst());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(allocationTable.getFreeBlockCount()).isEqualTo(8192);
+    }
+
+    @Test
+    public void testDirtyPages() {
+        var pageBits = AllocationTable.PAGE_BYTES * 8;
+        var allocationTable = new AllocationTable(pageBits * 4, pageBits * 2);
+        assertThat(allocationTable.takeDirtyPages()).isEmpty();
+
+        allocationTable.allocateBlocks(List.of(0, 1, pageBits * 3 + 8));
+        allocationTable.releaseBlocks(allocationTable.getAvailableBlocks(3));
+        var pages = allocationTable.takeDirtyPages();
+        assertThat(pages).extracting(AllocationTable.BitmapPage::offset)
+            .containsExactly(0, AllocationTable.PAGE_BYTES * 3);
+        assertThat(pages.getFirst().bytes()).hasSize(AllocationTable.PAGE_BYTES).startsWith(3);
+        assertThat(pages.getLast().bytes()).startsWith(0, 1);
+        assertThat(allocationTable.takeDirtyPages()).isEmpty();
+
+        allocationTable.freeExtents(List.of(new Extent(1, 1)));
+        allocationTable.markDirty(allocationTable.takeDirtyPages());
+        assertThat(allocationTable.takeDirtyPages()).extracting(AllocationTable.BitmapPage::offset).containsExactly(0);
+    }
+
+    @Test
+    public void testDirtyPagesAreCutToGroups() {
+        var allocationTable = new AllocationTable(256, 64);
+        allocationTable.allocateBlocks(List.of(8, 200));
+
+        var pages = allocationTable.takeDirtyPages();
+        assertThat(pages).extracting(AllocationTable.BitmapPage::offset).containsExactly(0, 24);
+        assertThat(pages.getFirst().bytes()).containsExactly(0, 1, 0, 0, 0, 0, 0, 0);
+        assertThat(pages.getLast().bytes()).containsExactly(0, 1, 0, 0, 0, 0, 0, 0);
+    }
 }
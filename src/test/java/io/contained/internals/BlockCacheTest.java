@@ -0,0 +1,63 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BlockCacheTest {
+    @Test
+    public void testHitAndMissCounters() {
+        var cache = new BlockCache(16);
+        assertThat(cache.get(1)).isNull();
+
+        cache.put(1, new byte[]{1, 2, 3});
+        assertThat(cache.get(1)).containsExactly(1, 2, 3);
+
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        var cache = new BlockCache(8);
+        cache.put(1, new byte[4]);
+        cache.put(2, new byte[4]);
+        cache.get(1);
+        cache.put(3, new byte[4]);
+
+        assertThat(cache.get(1)).isNotNull();
+        assertThat(cache.get(2)).isNull();
+        assertThat(cache.get(3)).isNotNull();
+        assertThat(cache.size()).isEqualTo(8);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+    }
+
+    @Test
+    public void testReplaceAndInvalidate() {
+        var cache = new BlockCache(8);
+        cache.put(1, new byte[4]);
+        cache.put(1, new byte[]{1, 2});
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get(1)).containsExactly(1, 2);
+
+        cache.invalidate(1);
+        assertThat(cache.get(1)).isNull();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testBlockLargerThanCapacityIsNotCached() {
+        var cache = new BlockCache(2);
+        cache.put(1, new byte[4]);
+        assertThat(cache.get(1)).isNull();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testNegativeCapacity() {
+        assertThatThrownBy(() -> new BlockCache(-1))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("Cache capacity must not be negative");
+    }
+}
@@ -0,0 +1,87 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DentryCacheTest {
+    @Test
+    public void testPositiveAndNegativeEntries() {
+        var cache = new DentryCache(8);
+        cache.put("/foo", 1, cache.generation());
+        cache.put("/bar", Configuration.noAddressMarker, cache.generation());
+
+        assertThat(cache.get("/foo")).isEqualTo(1);
+        assertThat(cache.get("/bar")).isEqualTo(Configuration.noAddressMarker);
+        assertThat(cache.get("/baz")).isNull();
+        assertThat(cache.getHits()).isEqualTo(2);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void testInvalidationRemovesDescendants() {
+        var cache = new DentryCache(8);
+        cache.put("/foo", 1, cache.generation());
+        cache.put("/foo/bar", 2, cache.generation());
+        cache.put("/foo/bar/baz", 3, cache.generation());
+        cache.put("/foobar", 4, cache.generation());
+
+        cache.invalidate("/foo");
+
+        assertThat(cache.get("/foo")).isNull();
+        assertThat(cache.get("/foo/bar")).isNull();
+        assertThat(cache.get("/foo/bar/baz")).isNull();
+        assertThat(cache.get("/foobar")).isEqualTo(4);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRootInvalidationRemovesEverything() {
+        var cache = new DentryCache(8);
+        cache.put("/foo", 1, cache.generation());
+        cache.put("/foo/bar", 2, cache.generation());
+        cache.put("/baz", 3, cache.generation());
+
+        cache.invalidate("");
+
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void testEvictedPathsAreNotInvalidatedAgain() {
+        var cache = new DentryCache(2);
+        cache.put("/foo/a", 1, cache.generation());
+        cache.put("/foo/b", 2, cache.generation());
+        cache.put("/foo/c", 3, cache.generation());
+        cache.put("/foo/a", 4, cache.generation());
+
+        cache.invalidate("/foo/c");
+
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.get("/foo/a")).isEqualTo(4);
+        assertThat(cache.get("/foo/b")).isNull();
+    }
+
+    @Test
+    public void testStaleLookupIsNotCached() {
+        var cache = new DentryCache(8);
+        var generation = cache.generation();
+        cache.invalidate("/foo");
+        cache.put("/foo", 1, generation);
+
+        assertThat(cache.get("/foo")).isNull();
+    }
+
+    @Test
+    public void testEviction() {
+        var cache = new DentryCache(2);
+        cache.put("/a", 1, cache.generation());
+        cache.put("/b", 2, cache.generation());
+        cache.get("/a");
+        cache.put("/c", 3, cache.generation());
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get("/b")).isNull();
+        assertThat(cache.getEvictions()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,147 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DirectoryTreeTest {
+    @TempDir
+    private Path tempDir;
+
+    private ContainerOperations operations;
+    private DirectoryTree tree;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        var descriptor = new ContainerDescriptor(4);
+        var allocationTable = new AllocationTable(descriptor.getBlockCount());
+        var masterBlockSize = ContainerDescriptor.BYTES + allocationTable.size();
+        var partition = MappedPartition.open(tempDir.resolve("tree"), descriptor.getContainerSize());
+        operations = new ContainerOperations(descriptor, allocationTable, masterBlockSize, partition,
+            new BlockCache(0), new DentryCache(0), 0, null, SyncPolicy.NONE, false, null) {
+        };
+        tree = new DirectoryTree(operations, descriptor.getBlockSize());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        operations.close();
+    }
+
+    @Test
+    public void testInsertFindAndRemove() throws Exception {
+        var names = names(2000);
+        var header = tree.create(List.of(), DirectoryTree.Format.CURRENT);
+        for (int i = 0; i < names.size(); i++) {
+            header = tree.insert(header, new Inode(names.get(i), i, i % 2 == 0));
+        }
+
+        assertThat(header.count()).isEqualTo(names.size());
+        assertThat(tree.blocks(header).size()).isGreaterThan(1);
+        for (int i = 0; i < names.size(); i++) {
+            var inode = tree.find(header, names.get(i));
+            assertThat(inode.getBlock()).isEqualTo(i);
+            assertThat(inode.isDir()).isEqualTo(i % 2 == 0);
+        }
+        assertThat(tree.find(header, "missing")).isNull();
+
+        for (int i = 0; i < names.size(); i += 2) {
+            header = tree.remove(header, names.get(i));
+        }
+        assertThat(header.count()).isEqualTo(names.size() / 2);
+        assertThat(tree.remove(header, names.getFirst())).isNull();
+        assertThat(tree.find(header, names.get(0))).isNull();
+        assertThat(tree.find(header, names.get(1)).getBlock()).isEqualTo(1);
+        assertThat(tree.list(header)).extracting(Inode::getName)
+            .containsExactlyInAnyOrderElementsOf(names.stream().filter(name -> names.indexOf(name) % 2 == 1).toList());
+    }
+
+    @Test
+    public void testBulkCreate() throws Exception {
+        var names = names(1500);
+        List<Inode> inodes = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            inodes.add(new Inode(names.get(i), i, false));
+        }
+
+        var header = tree.create(inodes, DirectoryTree.Format.CURRENT);
+
+        assertThat(header.count()).isEqualTo(names.size());
+        assertThat(tree.list(header)).hasSize(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            assertThat(tree.find(header, names.get(i)).getBlock()).isEqualTo(i);
+        }
+
+        header = tree.insert(header, new Inode("extra", 42, true));
+        assertThat(tree.find(header, "extra").getBlock()).isEqualTo(42);
+    }
+
+    @Test
+    public void testFixedFormatLeaves() throws Exception {
+        var names = names(300);
+        var header = tree.create(List.of(), new DirectoryTree.Format(false, false));
+        for (int i = 0; i < names.size(); i++) {
+            header = tree.insert(header, new Inode(names.get(i), i, false));
+        }
+
+        assertThat(tree.blocks(header).size()).isGreaterThan(names.size() * Inode.BYTES / 4096);
+        for (int i = 0; i < names.size(); i++) {
+            assertThat(tree.find(header, names.get(i)).getBlock()).isEqualTo(i);
+        }
+        assertThat(tree.list(header)).hasSize(names.size());
+    }
+
+    @Test
+    public void testPagedAndPrefixListing() throws Exception {
+        var names = names(2000);
+        var header = tree.create(List.of(), DirectoryTree.Format.CURRENT);
+        for (int i = 0; i < names.size(); i++) {
+            header = tree.insert(header, new Inode(names.get(i), i, false));
+        }
+        for (int i = 0; i < names.size(); i += 3) {
+            header = tree.remove(header, names.get(i));
+        }
+        var expected = new ArrayList<String>();
+        for (int i = 0; i < names.size(); i++) {
+            if (i % 3 != 0) {
+                expected.add(names.get(i));
+            }
+        }
+        Collections.sort(expected);
+
+        var listed = new ArrayList<String>();
+        String startAfter = null;
+        List<Inode> page;
+        while (!(page = tree.list(header, startAfter, 150)).isEmpty()) {
+            assertThat(page.size()).isLessThanOrEqualTo(150);
+            page.forEach(inode -> listed.add(inode.getName()));
+            startAfter = page.getLast().getName();
+        }
+        assertThat(listed).containsExactlyElementsOf(expected);
+        assertThat(tree.list(header, "file-9", 3)).extracting(Inode::getName)
+            .containsExactlyElementsOf(expected.stream().filter(name -> name.compareTo("file-9") > 0).limit(3).toList());
+
+        assertThat(tree.list(header, "file-12")).extracting(Inode::getName)
+            .containsExactlyElementsOf(expected.stream().filter(name -> name.startsWith("file-12")).toList());
+        assertThat(tree.list(header, "missing")).isEmpty();
+    }
+
+    private static List<String> names(int count) {
+        List<String> names = new ArrayList<>();
+        var random = new Random(7);
+        for (int i = 0; i < count; i++) {
+            names.add("file-" + i + "-" + "x".repeat(random.nextInt(40)));
+        }
+        Collections.shuffle(names, random);
+        return names;
+    }
+}
@@ -0,0 +1,72 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ExtentMapTest {
+    @Test
+    public void testAppendCoalescesContiguousBlocks() {
+        var extents = new ExtentMap();
+        extents.append(List.of(3, 4, 5, 9, 10, 2));
+
+        assertThat(extents.getExtents()).containsExactly(new Extent(3, 3), new Extent(9, 2), new Extent(2, 1));
+        assertThat(extents.getBlockCount()).isEqualTo(6);
+
+        extents.append(List.of(3));
+        assertThat(extents.getExtents()).containsExactly(new Extent(3, 3), new Extent(9, 2), new Extent(2, 2));
+    }
+
+    @Test
+    public void testLogicalBlockLookup() {
+        var extents = new ExtentMap(List.of(new Extent(10, 4), new Extent(50, 1), new Extent(20, 3)));
+
+        assertThat(extents.indexOf(0)).isEqualTo(0);
+        assertThat(extents.indexOf(3)).isEqualTo(0);
+        assertThat(extents.indexOf(4)).isEqualTo(1);
+        assertThat(extents.indexOf(7)).isEqualTo(2);
+        assertThat(extents.getFirstBlock(2)).isEqualTo(5);
+        assertThat(extents.getBlock(0)).isEqualTo(10);
+        assertThat(extents.getBlock(4)).isEqualTo(50);
+        assertThat(extents.getBlock(6)).isEqualTo(21);
+        assertThatThrownBy(() -> extents.indexOf(8)).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    @Test
+    public void testTruncateReturnsFreedRuns() {
+        var extents = new ExtentMap(List.of(new Extent(10, 4), new Extent(50, 1), new Extent(20, 3)));
+
+        var freed = extents.truncate(2);
+
+        assertThat(freed).containsExactly(new Extent(20, 3), new Extent(50, 1), new Extent(12, 2));
+        assertThat(extents.getExtents()).containsExactly(new Extent(10, 2));
+        assertThat(extents.getBlockCount()).isEqualTo(2);
+        assertThat(extents.truncate(5)).isEmpty();
+    }
+
+    @Test
+    public void testReplaceReturnsFormerRuns() {
+        var extents = new ExtentMap(List.of(new Extent(10, 4), new Extent(50, 1), new Extent(20, 3)));
+
+        var replaced = extents.replace(2, List.of(70, 71, 72, 90));
+
+        assertThat(replaced).containsExactly(new Extent(12, 2), new Extent(50, 1), new Extent(20, 1));
+        assertThat(extents.getExtents()).containsExactly(
+            new Extent(10, 2), new Extent(70, 3), new Extent(90, 1), new Extent(21, 2));
+        assertThat(extents.getBlockCount()).isEqualTo(8);
+        assertThatThrownBy(() -> extents.replace(7, List.of(1, 2))).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    @Test
+    public void testSerialization() {
+        var extents = new ExtentMap(List.of(new Extent(10, 4), new Extent(50, 1)));
+
+        var restored = ExtentMap.fromByteArray(extents.toByteArray());
+
+        assertThat(restored.getExtents()).containsExactly(new Extent(10, 4), new Extent(50, 1));
+        assertThat(restored.getBlockCount()).isEqualTo(5);
+    }
+}
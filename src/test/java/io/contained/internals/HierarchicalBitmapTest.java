@@ -0,0 +1,91 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HierarchicalBitmapTest {
+    @Test
+    public void testNextClearBitAcrossLevels() {
+        var bitmap = new HierarchicalBitmap(300_000);
+        for (int i = 0; i < 300_000; i++) {
+            bitmap.set(i);
+        }
+        assertThat(bitmap.cardinality()).isEqualTo(300_000);
+        assertThat(bitmap.nextClearBit(0)).isEqualTo(-1);
+
+        bitmap.clear(5);
+        bitmap.clear(70_000);
+        bitmap.clear(299_999);
+        assertThat(bitmap.cardinality()).isEqualTo(300_000 - 3);
+        assertThat(bitmap.nextClearBit(0)).isEqualTo(5);
+        assertThat(bitmap.nextClearBit(6)).isEqualTo(70_000);
+        assertThat(bitmap.nextClearBit(70_001)).isEqualTo(299_999);
+        assertThat(bitmap.nextClearBit(300_000)).isEqualTo(-1);
+
+        bitmap.set(70_000);
+        assertThat(bitmap.nextClearBit(6)).isEqualTo(299_999);
+    }
+
+    @Test
+    public void testPaddingIsNeverFree() {
+        var bitmap = new HierarchicalBitmap(72);
+        for (int i = 0; i < 72; i++) {
+            assertThat(bitmap.nextClearBit(i)).isEqualTo(i);
+            bitmap.set(i);
+        }
+        assertThat(bitmap.nextClearBit(0)).isEqualTo(-1);
+        assertThat(bitmap.cardinality()).isEqualTo(72);
+    }
+
+    @Test
+    public void testMatchesBitSet() {
+        var random = new Random(17);
+        var bitmap = new HierarchicalBitmap(10_000);
+        var expected = new BitSet(10_000);
+        for (int i = 0; i < 50_000; i++) {
+            var index = random.nextInt(10_000);
+            if (random.nextInt(3) == 0) {
+                bitmap.clear(index);
+                expected.clear(index);
+            } else {
+                bitmap.set(index);
+                expected.set(index);
+            }
+            var from = random.nextInt(10_000);
+            var next = expected.nextClearBit(from);
+            assertThat(bitmap.nextClearBit(from)).isEqualTo(next < 10_000 ? next : -1);
+        }
+        assertThat(bitmap.cardinality()).isEqualTo(expected.cardinality());
+        assertThat(bitmap.toByteArray()).containsExactly(Arrays.copyOf(expected.toByteArray(), 10_000 / 8));
+        assertThat(HierarchicalBitmap.fromByteArray(bitmap.toByteArray()).cardinality()).isEqualTo(expected.cardinality());
+    }
+
+    @Test
+    public void testClearRangeMatchesBitSet() {
+        var random = new Random(23);
+        var bitmap = new HierarchicalBitmap(10_000);
+        var expected = new BitSet(10_000);
+        for (int i = 0; i < 5_000; i++) {
+            var from = random.nextInt(10_000);
+            var to = Math.min(10_000, from + random.nextInt(300));
+            if (random.nextBoolean()) {
+                bitmap.clear(from, to);
+                expected.clear(from, to);
+            } else {
+                for (int index = from; index < to; index++) {
+                    bitmap.set(index);
+                }
+                expected.set(from, to);
+            }
+            assertThat(bitmap.cardinality()).isEqualTo(expected.cardinality());
+            var next = expected.nextClearBit(from);
+            assertThat(bitmap.nextClearBit(from)).isEqualTo(next < 10_000 ? next : -1);
+        }
+        assertThat(bitmap.toByteArray()).containsExactly(Arrays.copyOf(expected.toByteArray(), 10_000 / 8));
+    }
+}
@@ -0,0 +1,125 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JournalTest {
+    private static final int HEADER_SIZE = 64;
+    private static final int SIZE = 1024;
+
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testRecoverAppendedRecords() throws Exception {
+        try (var partition = MappedPartition.open(tempDir.resolve("journal"), SIZE)) {
+            var journal = new Journal(partition, 0, SIZE, HEADER_SIZE);
+            assertThat(journal.recover()).isEmpty();
+            journal.reset();
+
+            journal.sync(journal.append(record(3, 1, true)));
+            journal.sync(journal.append(record(4, 2, false)));
+
+            var recovered = new Journal(partition, 0, SIZE, HEADER_SIZE).recover();
+            assertThat(recovered).hasSize(2);
+            assertThat(recovered.get(0).images().getFirst().block()).isEqualTo(3);
+            assertThat(recovered.get(0).images().getFirst().bytes()).containsExactly(1, 1, 1);
+            assertThat(recovered.get(1).allocations()).containsExactly(
+                new JournalRecord.AllocationChange(new Extent(4, 2), 2, false));
+        }
+    }
+
+    @Test
+    public void testResetDiscardsRecords() throws Exception {
+        try (var partition = MappedPartition.open(tempDir.resolve("journal"), SIZE)) {
+            var journal = new Journal(partition, 0, SIZE, HEADER_SIZE);
+            journal.reset();
+            journal.sync(journal.append(record(3, 1, true)));
+            journal.reset();
+
+            assertThat(new Journal(partition, 0, SIZE, HEADER_SIZE).recover()).isEmpty();
+
+            journal.sync(journal.append(record(5, 2, true)));
+            var recovered = new Journal(partition, 0, SIZE, HEADER_SIZE).recover();
+            assertThat(recovered).hasSize(1);
+            assertThat(recovered.getFirst().images().getFirst().block()).isEqualTo(5);
+        }
+    }
+
+    @Test
+    public void testTornRecordEndsRecovery() throws Exception {
+        try (var partition = MappedPartition.open(tempDir.resolve("journal"), SIZE)) {
+            var journal = new Journal(partition, 0, SIZE, HEADER_SIZE);
+            journal.reset();
+            // marks count the bytes appended, so the first one is also where the second record starts
+            var secondRecord = HEADER_SIZE + (int) journal.append(record(3, 1, true));
+            journal.append(record(4, 2, true));
+            partition.writeBytes(new byte[]{9}, secondRecord + 40);
+
+            assertThat(new Journal(partition, 0, SIZE, HEADER_SIZE).recover()).hasSize(1);
+        }
+    }
+
+    @Test
+    public void testFullJournalRejectsRecords() throws Exception {
+        try (var partition = MappedPartition.open(tempDir.resolve("journal"), SIZE)) {
+            var journal = new Journal(partition, 0, SIZE, HEADER_SIZE);
+            journal.reset();
+            var record = record(3, 1, true);
+            assertThat(journal.canHold(record)).isTrue();
+
+            var appended = 0;
+            while (journal.append(record) >= 0) {
+                appended++;
+            }
+            assertThat(appended).isPositive();
+            journal.reset();
+            assertThat(journal.append(record)).isPositive();
+        }
+    }
+
+    @Test
+    public void testConcurrentCommitsShareForces() throws Exception {
+        var size = 1024 * 1024;
+        try (var partition = MappedPartition.open(tempDir.resolve("journal"), size)) {
+            var journal = new Journal(partition, 0, size, HEADER_SIZE);
+            journal.reset();
+
+            var executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < 400; i++) {
+                    var block = i;
+                    futures.add(executor.submit((Callable<Void>) () -> {
+                        journal.sync(journal.append(record(block, block, true)));
+                        return null;
+                    }));
+                }
+                for (var future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertThat(journal.getCommitCount()).isEqualTo(400);
+            assertThat(journal.getGroupForce().getForceCount()).isBetween(1L, 400L);
+            assertThat(new Journal(partition, 0, size, HEADER_SIZE).recover()).hasSize(400);
+        }
+    }
+
+    private static JournalRecord record(int block, long lsn, boolean allocated) {
+        var image = new JournalRecord.BlockImage(block, lsn, new byte[]{1, 1, 1});
+        var change = new JournalRecord.AllocationChange(new Extent(block, 2), lsn, allocated);
+        return new JournalRecord(List.of(image), List.of(change));
+    }
+}
@@ -0,0 +1,63 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LockManagerTest {
+    private final LockManager lockManager = new LockManager();
+
+    @Test
+    public void testSharedLocksAreCompatible() throws Exception {
+        try (var ignored = lockManager.acquire(blocks(0, 1), blocks())) {
+            var other = CompletableFuture.runAsync(() -> lockManager.acquire(blocks(0, 1), blocks()).close());
+            other.get(5, TimeUnit.SECONDS);
+        }
+        assertThat(lockManager.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testExclusiveLockBlocksOthers() throws Exception {
+        var locks = lockManager.acquire(blocks(0), blocks(1));
+        var other = CompletableFuture.runAsync(() -> lockManager.acquire(blocks(0, 1), blocks()).close());
+
+        assertThatThrownBy(() -> other.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+
+        locks.close();
+        other.get(5, TimeUnit.SECONDS);
+        assertThat(lockManager.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testUnrelatedExclusiveLocksDoNotBlock() throws Exception {
+        try (var ignored = lockManager.acquire(blocks(0), blocks(1))) {
+            var other = CompletableFuture.runAsync(() -> lockManager.acquire(blocks(0), blocks(2)).close());
+            other.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testAcquireAllWaitsForRunningOperations() throws Exception {
+        var locks = lockManager.acquire(blocks(0), blocks());
+        var closing = CompletableFuture.runAsync(() -> lockManager.acquireAll().close());
+
+        assertThatThrownBy(() -> closing.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+
+        locks.close();
+        closing.get(5, TimeUnit.SECONDS);
+    }
+
+    private static TreeSet<Integer> blocks(Integer... blocks) {
+        var set = new TreeSet<Integer>();
+        for (var block : blocks) {
+            set.add(block);
+        }
+        return set;
+    }
+}
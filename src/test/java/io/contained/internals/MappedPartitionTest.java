@@ -0,0 +1,80 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappedPartitionTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testReadWrite() throws Exception {
+        var bytes = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9};
+        var offset = 123;
+
+        try (var partition = MappedPartition.open(tempDir.resolve("mapped"), 1024)) {
+            partition.writeBytes(bytes, offset);
+            assertThat(partition.readBytes(offset, bytes.length)).containsExactly(bytes);
+        }
+    }
+
+    @Test
+    public void testWritesArePersisted() throws Exception {
+        var bytes = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9};
+        var file = tempDir.resolve("mapped");
+
+        try (var partition = MappedPartition.open(file, 1024)) {
+            partition.writeBytes(bytes, 0);
+        }
+
+        assertThat(Files.size(file)).isEqualTo(1024);
+        try (var partition = MappedPartition.open(file, 1024)) {
+            assertThat(partition.readBytes(0, bytes.length)).containsExactly(bytes);
+        }
+    }
+
+    @Test
+    public void testReadIsClampedToMapping() throws Exception {
+        try (var partition = MappedPartition.open(tempDir.resolve("mapped"), 16)) {
+            assertThat(partition.readBytes(12, 8)).hasSize(4);
+        }
+    }
+
+    @Test
+    public void testReadBufferIsAReadOnlyViewOfTheMapping() throws Exception {
+        var bytes = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9};
+
+        try (var partition = MappedPartition.open(tempDir.resolve("mapped"), 16)) {
+            partition.writeBytes(bytes, 4);
+            var view = partition.readBuffer(4, 9);
+            assertThat(view.isReadOnly()).isTrue();
+            assertThat(view.isDirect()).isTrue();
+            assertThat(view.get(0)).isEqualTo((byte) 1);
+
+            partition.writeBytes(new byte[]{42}, 4);
+            assertThat(view.get(0)).isEqualTo((byte) 42);
+            assertThat(partition.readBuffer(12, 8).remaining()).isEqualTo(4);
+        }
+    }
+
+    @Test
+    public void testTransfers() throws Exception {
+        var bytes = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9};
+        var source = Channels.newChannel(new ByteArrayInputStream(bytes));
+        var target = new ByteArrayOutputStream();
+
+        try (var partition = MappedPartition.open(tempDir.resolve("mapped"), 1024)) {
+            assertThat(partition.transferFrom(source, 100, 16)).isEqualTo(bytes.length);
+            assertThat(partition.transferTo(100, bytes.length, Channels.newChannel(target))).isEqualTo(bytes.length);
+        }
+        assertThat(target.toByteArray()).containsExactly(bytes);
+    }
+}
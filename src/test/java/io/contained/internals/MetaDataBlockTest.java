@@ -78,7 +78,7 @@ public class MetaDataBlockTest {
                 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
                 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
                 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 9,
                 -1, -1, -1, -1, -1, -1, -1, -1, 0, 0, 0, 0);
     }
 
@@ -147,4 +147,37 @@ public class MetaDataBlockTest {
         DataBlock block = new MetaDataBlock(new byte[0]);
         assertThat(block.getMetaDataSize()).isEqualTo(MetaDataBlock.META_BYTES);
     }
+
+    @Test
+    public void testExtentFlagSerialization() {
+        var nameBytes = ByteArrayTransformer.fromString("fileName");
+        var data = new byte[]{0, 0, 0, 7, 0, 0, 0, 3};
+        var block = new MetaDataBlock(nameBytes, 12000, false, true, Configuration.noAddressMarker, 5, data);
+
+        var restored = MetaDataBlock.fromByteArray(block.toByteArray());
+
+        assertThat(restored.isDir()).isFalse();
+        assertThat(restored.hasExtents()).isTrue();
+        assertThat(restored.getDataFullSize()).isEqualTo(12000);
+        assertThat(restored.getNextBlock()).isEqualTo(5);
+        assertThat(restored.getData()).containsExactly(data);
+
+        var dir = MetaDataBlock.fromByteArray(new MetaDataBlock(nameBytes).toByteArray());
+        assertThat(dir.isDir()).isTrue();
+        assertThat(dir.isCompact()).isTrue();
+        assertThat(dir.hasExtents()).isFalse();
+    }
+
+    @Test
+    public void testTailBlockSerialization() {
+        var block = new MetaDataBlock(ByteArrayTransformer.fromString("dirName"));
+        assertThat(block.getTailBlock()).isEqualTo(Configuration.noAddressMarker);
+
+        block.setNextBlock(4);
+        block.setTailBlock(9);
+
+        var restored = MetaDataBlock.fromByteArray(block.toByteArray());
+        assertThat(restored.getTailBlock()).isEqualTo(9);
+        assertThat(restored.getNextBlock()).isEqualTo(4);
+    }
 }
@@ -0,0 +1,89 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PackedBlockTest {
+    @Test
+    public void testInsertAndRead() {
+        var block = new PackedBlock(64);
+        var first = block.insert(new byte[]{1, 2, 3});
+        var second = block.insert(new byte[]{4, 5});
+
+        assertThat(first).isEqualTo(0);
+        assertThat(second).isEqualTo(1);
+        assertThat(block.read(first)).containsExactly(1, 2, 3);
+        assertThat(block.read(second)).containsExactly(4, 5);
+        assertThat(block.getFreeBytes()).isEqualTo(64 - 2 - 2 * 4 - 5);
+        assertThat(block.insert(new byte[64])).isEqualTo(-1);
+    }
+
+    @Test
+    public void testRemoveReusesSlots() {
+        var block = new PackedBlock(64);
+        block.insert(new byte[]{1});
+        block.insert(new byte[]{2});
+        block.insert(new byte[]{3});
+
+        block.remove(1);
+        assertThatThrownBy(() -> block.read(1)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(block.insert(new byte[]{4})).isEqualTo(1);
+        assertThat(block.read(1)).containsExactly(4);
+
+        block.remove(2);
+        assertThat(block.getSlotCount()).isEqualTo(2);
+        block.remove(0);
+        block.remove(1);
+        assertThat(block.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testCompactionKeepsSlots() {
+        var block = new PackedBlock(80);
+        var first = block.insert(bytes(20, 1));
+        var second = block.insert(bytes(20, 2));
+        block.insert(bytes(10, 3));
+
+        block.remove(second);
+        assertThat(block.insert(bytes(24, 4))).isEqualTo(second);
+        assertThat(block.read(first)).containsExactly(bytes(20, 1));
+        assertThat(block.read(second)).containsExactly(bytes(24, 4));
+        assertThat(block.read(2)).containsExactly(bytes(10, 3));
+    }
+
+    @Test
+    public void testUpdate() {
+        var block = new PackedBlock(64);
+        var first = block.insert(bytes(10, 1));
+        var second = block.insert(bytes(10, 2));
+
+        assertThat(block.update(first, bytes(4, 3))).isTrue();
+        assertThat(block.read(first)).containsExactly(bytes(4, 3));
+        assertThat(block.update(first, bytes(30, 4))).isTrue();
+        assertThat(block.read(first)).containsExactly(bytes(30, 4));
+        assertThat(block.read(second)).containsExactly(bytes(10, 2));
+        assertThat(block.update(second, bytes(40, 5))).isFalse();
+        assertThat(block.read(second)).containsExactly(bytes(10, 2));
+    }
+
+    @Test
+    public void testSerialization() {
+        var block = new PackedBlock(64);
+        block.insert(new byte[]{1, 2});
+        block.insert(new byte[]{3});
+
+        var copy = PackedBlock.fromByteArray(block.toByteArray(), 64);
+        assertThat(copy.getSlotCount()).isEqualTo(2);
+        assertThat(copy.read(0)).containsExactly(1, 2);
+        assertThat(copy.read(1)).containsExactly(3);
+        assertThat(copy.getFreeBytes()).isEqualTo(block.getFreeBytes());
+    }
+
+    private static byte[] bytes(int length, int value) {
+        var bytes = new byte[length];
+        java.util.Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
@@ -76,4 +76,12 @@ public class PathTest {
         part = path.getPart(2);
         assertThat(part).isEqualTo("bar");
     }
+
+    @Test
+    public void testDelimiterIndependentPrefix() {
+        var path = new Path("\\foo\\bar\\baz");
+        assertThat(path.getPrefix(1)).isEqualTo("");
+        assertThat(path.getPrefix(2)).isEqualTo("/foo");
+        assertThat(path.normalized()).isEqualTo("/foo/bar/baz");
+    }
 }
@@ -0,0 +1,44 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PinnedBlocksTest {
+    @Test
+    public void testPinnedBlocksAreHeldUntilUnpinned() {
+        var pinnedBlocks = new PinnedBlocks();
+        var first = pinnedBlocks.pin(List.of(new Extent(10, 4)));
+        var second = pinnedBlocks.pin(List.of(new Extent(12, 4), new Extent(30, 1)));
+
+        assertThat(pinnedBlocks.hold(List.of(new Extent(8, 10), new Extent(30, 2))))
+            .containsExactly(new Extent(10, 4), new Extent(14, 2), new Extent(30, 1));
+        assertThat(pinnedBlocks.getHeldBlockCount()).isEqualTo(7);
+
+        assertThat(pinnedBlocks.unpin(first)).containsExactly(new Extent(10, 2));
+        assertThat(pinnedBlocks.unpin(second))
+            .containsExactly(new Extent(12, 2), new Extent(14, 2), new Extent(30, 1));
+        assertThat(pinnedBlocks.getHeldBlockCount()).isZero();
+    }
+
+    @Test
+    public void testHoldWithoutPins() {
+        var pinnedBlocks = new PinnedBlocks();
+        pinnedBlocks.unpin(pinnedBlocks.pin(List.of(new Extent(1, 1))));
+
+        assertThat(pinnedBlocks.hold(List.of(new Extent(1, 3)))).isEmpty();
+        assertThat(pinnedBlocks.getHeldBlockCount()).isZero();
+    }
+
+    @Test
+    public void testClearReturnsHeldBlocks() {
+        var pinnedBlocks = new PinnedBlocks();
+        pinnedBlocks.pin(List.of(new Extent(5, 2)));
+        pinnedBlocks.hold(List.of(new Extent(4, 4)));
+
+        assertThat(pinnedBlocks.clear()).containsExactly(new Extent(5, 2));
+        assertThat(pinnedBlocks.hold(List.of(new Extent(5, 2)))).isEmpty();
+    }
+}
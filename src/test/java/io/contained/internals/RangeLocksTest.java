@@ -0,0 +1,76 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RangeLocksTest {
+    private final RangeLocks rangeLocks = new RangeLocks();
+    private final Path path = new Path("/dir/file");
+
+    @Test
+    public void testSharedRangesAreCompatible() {
+        var first = rangeLocks.tryAcquire(path, 0, Long.MAX_VALUE, true, "first");
+        var second = rangeLocks.tryAcquire(new Path("\\dir\\file"), 100, 10, true, "second");
+
+        assertThat(first).isNotNull();
+        assertThat(second).isNotNull();
+        assertThat(rangeLocks.tryAcquire(path, 105, 1, false, "third")).isNull();
+        assertThat(rangeLocks.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDisjointRangesDoNotConflict() {
+        rangeLocks.tryAcquire(path, 0, 100, false, "first");
+
+        assertThat(rangeLocks.tryAcquire(path, 100, Long.MAX_VALUE, false, "second")).isNotNull();
+        assertThat(rangeLocks.tryAcquire(new Path("/dir/other"), 0, 100, false, "third")).isNotNull();
+        assertThat(rangeLocks.tryAcquire(path, 99, 1, true, "fourth")).isNull();
+    }
+
+    @Test
+    public void testOverlappingRangeOfTheSameHolderIsRejected() {
+        rangeLocks.tryAcquire(path, 0, 100, true, "holder");
+
+        assertThatThrownBy(() -> rangeLocks.tryAcquire(path, 50, 1, true, "holder"))
+            .isInstanceOf(OverlappingFileLockException.class);
+    }
+
+    @Test
+    public void testAcquireWaitsForRelease() throws Exception {
+        var range = rangeLocks.tryAcquire(path, 0, Long.MAX_VALUE, false, "first");
+        var other = CompletableFuture.supplyAsync(() -> {
+            try {
+                return rangeLocks.acquire(path, 10, 10, true, "second");
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        assertThatThrownBy(() -> other.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+
+        rangeLocks.release(range);
+        assertThat(rangeLocks.isHeld(range)).isFalse();
+        assertThat(rangeLocks.isHeld(other.get(5, TimeUnit.SECONDS))).isTrue();
+    }
+
+    @Test
+    public void testReleaseAllDropsEveryRangeOfTheHolder() {
+        var first = rangeLocks.tryAcquire(path, 0, 10, false, "holder");
+        var second = rangeLocks.tryAcquire(new Path("/other"), 0, 10, false, "holder");
+        var kept = rangeLocks.tryAcquire(path, 10, 10, false, "other");
+
+        rangeLocks.releaseAll("holder");
+
+        assertThat(rangeLocks.isHeld(first)).isFalse();
+        assertThat(rangeLocks.isHeld(second)).isFalse();
+        assertThat(rangeLocks.isHeld(kept)).isTrue();
+        assertThat(rangeLocks.size()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,64 @@
+package io.contained.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WriteBackBufferTest {
+    private static final int BLOCK_SIZE = 4;
+
+    @Test
+    public void testRepeatedWritesAreAbsorbed() throws Exception {
+        var buffer = new WriteBackBuffer(100, BLOCK_SIZE);
+        buffer.put(7, new byte[]{1});
+        buffer.put(7, new byte[]{2, 2});
+
+        assertThat(buffer.get(7)).containsExactly(2, 2);
+        assertThat(buffer.size()).isEqualTo(2);
+        assertThat(buffer.getAbsorbedWrites()).isEqualTo(1);
+
+        List<Integer> written = new ArrayList<>();
+        buffer.flush((block, bytes) -> written.add(block));
+        assertThat(written).containsExactly(7);
+        assertThat(buffer.isEmpty()).isTrue();
+        assertThat(buffer.get(7)).isNull();
+    }
+
+    @Test
+    public void testFlushWritesRunsInBlockOrder() throws Exception {
+        var buffer = new WriteBackBuffer(100, BLOCK_SIZE);
+        buffer.put(9, new byte[]{9});
+        buffer.put(3, new byte[]{3, 3, 3, 3});
+        buffer.put(4, new byte[]{4, 4});
+        buffer.put(1, new byte[]{1});
+
+        List<Integer> blocks = new ArrayList<>();
+        List<byte[]> runs = new ArrayList<>();
+        buffer.flush((block, bytes) -> {
+            blocks.add(block);
+            runs.add(bytes);
+        });
+
+        assertThat(blocks).containsExactly(1, 3, 9);
+        assertThat(runs.get(1)).containsExactly(3, 3, 3, 3, 4, 4);
+        assertThat(buffer.getFlushedBlocks()).isEqualTo(4);
+        assertThat(buffer.size()).isZero();
+    }
+
+    @Test
+    public void testDiscardedBlocksAreNotWritten() throws Exception {
+        var buffer = new WriteBackBuffer(2, BLOCK_SIZE);
+        buffer.put(1, new byte[]{1});
+        assertThat(buffer.isFull()).isFalse();
+        buffer.put(2, new byte[]{2});
+        assertThat(buffer.isFull()).isTrue();
+
+        buffer.discard(1);
+        List<Integer> written = new ArrayList<>();
+        buffer.flush((block, bytes) -> written.add(block));
+        assertThat(written).containsExactly(2);
+    }
+}
@@ -1,7 +1,10 @@
 package io.contained.internals.util;
 
+import io.contained.internals.Inode;
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class ByteArrayTransformerTest {
@@ -56,4 +59,17 @@ public class ByteArrayTransformerTest {
         var str = ByteArrayTransformer.toString(bytes);
         assertThat(str).isEqualTo("abcd");
     }
+
+    @Test
+    public void testCompactInodesTransformation() {
+        var inodes = List.of(new Inode("file.txt", 7, false), new Inode("каталог", 300, true));
+        var bytes = ByteArrayTransformer.fromCompactInodesList(inodes);
+
+        assertThat(bytes).hasSize(ByteArrayTransformer.compactSizeOf(inodes.get(0)) + ByteArrayTransformer.compactSizeOf(inodes.get(1)));
+        assertThat(ByteArrayTransformer.compactSizeOf(inodes.get(0))).isEqualTo(15);
+        var transformed = ByteArrayTransformer.toCompactInodesList(bytes);
+        assertThat(transformed).extracting(Inode::getName).containsExactly("file.txt", "каталог");
+        assertThat(transformed).extracting(Inode::getBlock).containsExactly(7, 300);
+        assertThat(transformed).extracting(Inode::isDir).containsExactly(false, true);
+    }
 }